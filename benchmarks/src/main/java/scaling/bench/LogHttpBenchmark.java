@@ -0,0 +1,78 @@
+package scaling.bench;
+
+import org.ini4j.Ini;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end cost of the load generator log calls against a local stub server: the log name lookup,
+ * the old full download and ini4j parse, and a caught-up LogTailer poll over the shared HTTP client.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogHttpBenchmark {
+
+    @Param({"1", "100", "10000"})
+    public int minutes;
+
+    private StubLoadGenerator server;
+    private MethodHandle getLogName;
+    private MethodHandle getInputStream;
+    private MethodHandle poll;
+    private Object tailer;
+    private String logLink;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        server = new StubLoadGenerator(minutes, 5);
+        getLogName = ScalingCode.method("AwsScalingHelper", "getLogName", String.class);
+        getInputStream = ScalingCode.method("AwsScalingHelper", "getInputStream", String.class);
+        poll = ScalingCode.method("LogTailer", "poll");
+        tailer = ScalingCode.constructor("LogTailer", String.class, String.class)
+                .invoke(server.dns(), StubLoadGenerator.LOG_NAME);
+        //Catch up once, so every measured poll only re-reads the trailing section
+        poll.invoke(tailer);
+        logLink = String.format("http://%s/log?name=%s", server.dns(), StubLoadGenerator.LOG_NAME);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public Object getLogName() throws Throwable {
+        return getLogName.invoke(server.dns());
+    }
+
+    @Benchmark
+    public int fullDownloadIni4j() throws Throwable {
+        try (InputStream input = (InputStream) getInputStream.invoke(logLink)) {
+            return new Ini(input).size();
+        }
+    }
+
+    @Benchmark
+    public Object tailerPoll() throws Throwable {
+        return poll.invoke(tailer);
+    }
+}
@@ -0,0 +1,85 @@
+package scaling.bench;
+
+import org.ini4j.Ini;
+import org.ini4j.Profile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory parsing cost of one RPS poll as the log grows: the ini4j parse of the whole document that
+ * monitorRPS used to do, the byte-level parser of LogTailer over the whole document, and the steady-state
+ * LogTailer poll which only sees the trailing section plus one new minute.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogParsingBenchmark {
+
+    @Param({"1", "10", "100", "1000", "10000"})
+    public int minutes;
+
+    @Param({"5"})
+    public int dataCenters;
+
+    private byte[] log;
+    private byte[] tail;
+    private MethodHandle newTailer;
+    private MethodHandle parse;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        log = StubLoadGenerator.log(minutes, dataCenters);
+        //The last two minute sections: what a caught-up tailer re-reads and newly reads on each poll
+        byte[] before = StubLoadGenerator.log(Math.max(0, minutes - 2), dataCenters);
+        tail = new byte[log.length - before.length];
+        System.arraycopy(log, before.length, tail, 0, tail.length);
+        newTailer = ScalingCode.constructor("LogTailer", String.class, String.class);
+        parse = ScalingCode.method("LogTailer", "parse", byte[].class, int.class, int.class);
+    }
+
+    @Benchmark
+    public double ini4jFullParse() throws IOException {
+        double cumulativeRPS = 0;
+        Ini ini = new Ini(new ByteArrayInputStream(log));
+        for (String sectionName : ini.keySet()) {
+            if (sectionName.startsWith("Minute")) {
+                cumulativeRPS = 0;
+                Profile.Section section = ini.get(sectionName);
+                for (String optionKey : section.keySet()) {
+                    cumulativeRPS += Double.parseDouble(section.get(optionKey));
+                }
+            }
+        }
+        return cumulativeRPS;
+    }
+
+    @Benchmark
+    public Object tailerFullParse() throws Throwable {
+        Object tailer = newTailer.invoke("127.0.0.1", StubLoadGenerator.LOG_NAME);
+        return parse.invoke(tailer, log, 0, log.length);
+    }
+
+    @Benchmark
+    public Object tailerIncrementalPoll() throws Throwable {
+        Object tailer = newTailer.invoke("127.0.0.1", StubLoadGenerator.LOG_NAME);
+        return parse.invoke(tailer, tail, 0, tail.length);
+    }
+}
@@ -0,0 +1,60 @@
+package scaling.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead the metrics add to every AWS and load generator call: a histogram record into a held
+ * histogram, and the labelled lookup plus record the call sites do, single-threaded and contended.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+    private Object metrics;
+    private Object histogram;
+    private MethodHandle lookup;
+    private MethodHandle recordNanos;
+    private long value;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        metrics = ScalingCode.method("Metrics", "shared").invoke();
+        lookup = ScalingCode.method("Metrics", "histogram", String.class, String[].class);
+        recordNanos = ScalingCode.method("Metrics$Histogram", "recordNanos", long.class);
+        histogram = lookup.invoke(metrics, "aws_call_seconds", new String[]{"service", "ec2", "operation", "DescribeInstances"});
+    }
+
+    @Benchmark
+    public void record() throws Throwable {
+        recordNanos.invoke(histogram, (value += 7919) & 0xFFFFFFFL);
+    }
+
+    @Benchmark
+    public void lookupAndRecord() throws Throwable {
+        Object labelled = lookup.invoke(metrics, "aws_call_seconds", new String[]{"service", "ec2", "operation", "DescribeInstances"});
+        recordNanos.invoke(labelled, (value += 7919) & 0xFFFFFFFL);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() throws Throwable {
+        recordNanos.invoke(histogram, System.nanoTime() & 0xFFFFFFFL);
+    }
+}
@@ -0,0 +1,101 @@
+package scaling.bench;
+
+import com.amazonaws.services.autoscaling.AbstractAmazonAutoScaling;
+import com.amazonaws.services.autoscaling.AmazonAutoScaling;
+import com.amazonaws.services.autoscaling.model.PutScalingPolicyRequest;
+import com.amazonaws.services.autoscaling.model.PutScalingPolicyResult;
+import com.amazonaws.services.cloudwatch.AbstractAmazonCloudWatch;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.cloudwatch.model.PutMetricAlarmRequest;
+import com.amazonaws.services.cloudwatch.model.PutMetricAlarmResult;
+import com.amazonaws.services.ec2.model.Instance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction cost of the load generator URLs and of the scaling policy and alarm requests. The
+ * Auto Scaling and CloudWatch clients are replaced by no-op clients, so only request building (and
+ * the request logging the policies do) is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBuildingBenchmark {
+    private final Instance lg = new Instance().withPublicDnsName("ec2-54-210-1-17.compute-1.amazonaws.com");
+    private final Instance dc = new Instance().withPublicDnsName("ec2-54-210-2-17.compute-1.amazonaws.com");
+    private final AmazonAutoScaling autoScaling = new NoOpAutoScaling();
+    private final AmazonCloudWatch cloudWatch = new NoOpCloudWatch();
+    private MethodHandle submitCredentialUrl;
+    private MethodHandle getWarmupUrl;
+    private MethodHandle addDcUrl;
+    private MethodHandle applyPolicy;
+    private Object policy;
+
+    @Param({"step", "cpu:50"})
+    public String scalingPolicy;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        submitCredentialUrl = ScalingCode.method("AwsScalingHelper", "submitCredentialUrl", Instance.class, String.class,
+                String.class);
+        getWarmupUrl = ScalingCode.method("AwsAutoScaling", "getWarmupUrl", Instance.class, String.class);
+        addDcUrl = ScalingCode.method("AwsHorizontalScaling", "addDcUrl", Instance.class, Instance.class);
+        applyPolicy = ScalingCode.method("ScalingPolicy", "apply", String.class, AmazonAutoScaling.class,
+                AmazonCloudWatch.class);
+        try {
+            policy = ScalingCode.method("ScalingPolicy", "forName", String.class).invoke(scalingPolicy);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Benchmark
+    public Object submitCredentialUrl() throws Throwable {
+        return submitCredentialUrl.invoke(lg, "andrew", "password");
+    }
+
+    @Benchmark
+    public Object getWarmupUrl() throws Throwable {
+        return getWarmupUrl.invoke(lg, "loadbalancer-1234.us-east-1.elb.amazonaws.com");
+    }
+
+    @Benchmark
+    public Object addDcUrl() throws Throwable {
+        return addDcUrl.invoke(lg, dc);
+    }
+
+    @Benchmark
+    public Object applyScalingPolicy() throws Throwable {
+        return applyPolicy.invoke(policy, "ASG", autoScaling, cloudWatch);
+    }
+
+    private static class NoOpAutoScaling extends AbstractAmazonAutoScaling {
+        @Override
+        public PutScalingPolicyResult putScalingPolicy(PutScalingPolicyRequest request) {
+            return new PutScalingPolicyResult().withPolicyARN("arn:aws:autoscaling:bench:scalingPolicy/" + request.getPolicyName());
+        }
+    }
+
+    private static class NoOpCloudWatch extends AbstractAmazonCloudWatch {
+        @Override
+        public PutMetricAlarmResult putMetricAlarm(PutMetricAlarmRequest request) {
+            return new PutMetricAlarmResult();
+        }
+    }
+}
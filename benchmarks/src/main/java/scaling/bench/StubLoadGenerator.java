@@ -0,0 +1,93 @@
+package scaling.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+
+/**
+ * Local stand-in for the load generator web server: serves the log listing and a test log of a given
+ * number of minute sections, honouring {@code Range: bytes=N-} like the real server.
+ */
+final class StubLoadGenerator implements AutoCloseable {
+    static final String LOG_NAME = "test.1454727271937.log";
+
+    private final HttpServer server;
+    private volatile byte[] log;
+
+    StubLoadGenerator(int minutes, int dataCenters) throws IOException {
+        log = log(minutes, dataCenters);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newFixedThreadPool(2, r -> {
+            Thread thread = new Thread(r, "stub-load-generator");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @return host and port to use as the load generator DNS name
+     */
+    String dns() {
+        return "127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    byte[] log() {
+        return log;
+    }
+
+    /**
+     * Build a test log in the load generator's INI format.
+     */
+    static byte[] log(int minutes, int dataCenters) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("[Test]\ntype=horizontal\ntestFile=").append(LOG_NAME).append("\n\n");
+        for (int minute = 1; minute <= minutes; minute++) {
+            builder.append("[Minute ").append(minute).append("]\n");
+            for (int dc = 0; dc < dataCenters; dc++) {
+                builder.append("ec2-54-210-").append(dc).append("-17.compute-1.amazonaws.com=")
+                        .append(String.format(Locale.ROOT, "%.2f", 700 + (minute * 31 + dc * 17) % 150)).append('\n');
+            }
+            builder.append('\n');
+        }
+        return builder.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        byte[] body;
+        int code = 200;
+        if (query == null) {
+            body = ("<a href='/log?name=" + LOG_NAME + "'>" + LOG_NAME + "</a><br>\n").getBytes(StandardCharsets.US_ASCII);
+        } else {
+            byte[] full = log;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            int from = range == null ? 0 : Integer.parseInt(range.substring(6, range.length() - 1));
+            if (from >= full.length) {
+                code = 416;
+                body = new byte[0];
+            } else {
+                code = range == null ? 200 : 206;
+                body = new byte[full.length - from];
+                System.arraycopy(full, from, body, 0, body.length);
+            }
+        }
+        exchange.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,96 @@
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.cloudwatch.model.DescribeAlarmsRequest;
+import com.amazonaws.services.cloudwatch.model.DescribeAlarmsResult;
+import com.amazonaws.services.cloudwatch.model.MetricAlarm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Event source of the alarms acting on an auto scaling group: each poll describes the alarms of the group
+ * by name and posts a {@link Transition} for every alarm whose state changed since the previous poll.
+ */
+public class AlarmWatcher {
+    private final AmazonCloudWatch cloudWatch;
+    private final String asgName;
+    private final EventLoop loop;
+    private final Map<String, String> states = new HashMap<>();
+
+    public AlarmWatcher(AmazonCloudWatch cloudWatch, String asgName, EventLoop loop) {
+        this.cloudWatch = cloudWatch;
+        this.asgName = asgName;
+        this.loop = loop;
+    }
+
+    /**
+     * Describe the alarms of the group and post their transitions.
+     */
+    public synchronized void poll() {
+        //Step policy alarms are named after the group, and target tracking ones by Auto Scaling
+        for (String prefix : Arrays.asList(asgName + "-", "TargetTracking-" + asgName + "-")) {
+            String token = null;
+            do {
+                DescribeAlarmsResult result = cloudWatch.describeAlarms(new DescribeAlarmsRequest()
+                        .withAlarmNamePrefix(prefix).withNextToken(token));
+                for (MetricAlarm alarm : result.getMetricAlarms()) {
+                    if (actsOnGroup(alarm)) {
+                        post(alarm);
+                    }
+                }
+                token = result.getNextToken();
+            } while (token != null);
+        }
+    }
+
+    private void post(MetricAlarm alarm) {
+        String previous = states.put(alarm.getAlarmName(), alarm.getStateValue());
+        if (!alarm.getStateValue().equals(previous)) {
+            loop.post(new Transition(alarm.getAlarmName(), previous, alarm.getStateValue()));
+        }
+    }
+
+    private boolean actsOnGroup(MetricAlarm alarm) {
+        for (String action : alarm.getAlarmActions()) {
+            if (action.contains(":autoScalingGroupName/" + asgName + ":")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Change of state of one alarm.
+     */
+    public static class Transition {
+        private final String alarmName;
+        private final String from;
+        private final String to;
+
+        Transition(String alarmName, String from, String to) {
+            this.alarmName = alarmName;
+            this.from = from;
+            this.to = to;
+        }
+
+        public String getAlarmName() {
+            return alarmName;
+        }
+
+        /**
+         * @return previous state, or null for an alarm seen for the first time
+         */
+        public String getFrom() {
+            return from;
+        }
+
+        public String getTo() {
+            return to;
+        }
+
+        @Override
+        public String toString() {
+            return alarmName + " " + (from == null ? "" : from + " -> ") + to;
+        }
+    }
+}
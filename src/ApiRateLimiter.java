@@ -0,0 +1,385 @@
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.services.autoscaling.AmazonAutoScaling;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.CreateTagsResult;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancing;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Client-side pacing of the AWS APIs, shared by every run and stack of the process. Each service has a
+ * token bucket, {@code -Daws.rate.<service>=<perSecond>/<burst>} in {@link RunClock} time; throttled calls
+ * are retried with exponential backoff and full jitter; DescribeInstances by id and CreateTags calls issued
+ * while an earlier one is in flight are merged into the next call.
+ */
+public class ApiRateLimiter {
+    private static final Set<String> THROTTLING = new HashSet<>(Arrays.asList("Throttling", "ThrottlingException",
+            "RequestLimitExceeded", "RequestThrottled", "TooManyRequestsException", "SlowDown"));
+    //Most ids EC2 takes in one DescribeInstances or CreateTags request
+    private static final int MAX_IDS = 1000;
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long BASE_DELAY_MILLIS = 200;
+    private static final long MAX_DELAY_MILLIS = 20000;
+
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * @return a limiter with the rates of {@code aws.rate.*}; EC2 defaults to 20/s with bursts of 100, as
+     * its request token bucket for describe calls, the other services to 10/s with bursts of 40
+     */
+    public static ApiRateLimiter fromSystemProperties() {
+        ApiRateLimiter limiter = new ApiRateLimiter();
+        limiter.configure("ec2", System.getProperty("aws.rate.ec2", "20/100"));
+        limiter.configure("elb", System.getProperty("aws.rate.elb", "10/40"));
+        limiter.configure("autoscaling", System.getProperty("aws.rate.autoscaling", "10/40"));
+        limiter.configure("cloudwatch", System.getProperty("aws.rate.cloudwatch", "10/40"));
+        return limiter;
+    }
+
+    /**
+     * @param service name of the service, as in the metrics
+     * @param rate    {@code <perSecond>/<burst>}
+     */
+    public void configure(String service, String rate) {
+        String[] parts = rate.split("/");
+        double perSecond = Double.parseDouble(parts[0]);
+        buckets.put(service, new TokenBucket(perSecond, parts.length > 1 ? Double.parseDouble(parts[1]) : perSecond));
+    }
+
+    /**
+     * Pace the clients of a provider. Wrap the instrumented clients, so the call metrics count the requests
+     * actually sent.
+     */
+    public CloudProvider wrap(CloudProvider cloud) {
+        AmazonEC2 ec2 = wrap(AmazonEC2.class, cloud.ec2(), "ec2");
+        AmazonElasticLoadBalancing elb = wrap(AmazonElasticLoadBalancing.class, cloud.elb(), "elb");
+        AmazonAutoScaling autoScaling = wrap(AmazonAutoScaling.class, cloud.autoScaling(), "autoscaling");
+        AmazonCloudWatch cloudWatch = wrap(AmazonCloudWatch.class, cloud.cloudWatch(), "cloudwatch");
+        return new CloudProvider() {
+            @Override
+            public AmazonEC2 ec2() {
+                return ec2;
+            }
+
+            @Override
+            public AmazonElasticLoadBalancing elb() {
+                return elb;
+            }
+
+            @Override
+            public AmazonAutoScaling autoScaling() {
+                return autoScaling;
+            }
+
+            @Override
+            public AmazonCloudWatch cloudWatch() {
+                return cloudWatch;
+            }
+
+            @Override
+            public void shutdown() {
+                cloud.shutdown();
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T wrap(Class<T> type, T client, String service) {
+        Coalescer<DescribeInstancesResult> describes = new Coalescer<>("DescribeInstances",
+                ids -> ((AmazonEC2) client).describeInstances(new DescribeInstancesRequest().withInstanceIds(ids)),
+                ApiRateLimiter::share);
+        //One coalescer per tag set, as a CreateTags request applies the same tags to all of its resources
+        Map<String, Coalescer<CreateTagsResult>> taggers = new ConcurrentHashMap<>();
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            if (args == null || args.length != 1 || !(args[0] instanceof AmazonWebServiceRequest)) {
+                return invoke(method, client, args);
+            }
+            Object request = args[0];
+            if (request instanceof DescribeInstancesRequest && mergeable((DescribeInstancesRequest) request)) {
+                return describes.submit(service, ((DescribeInstancesRequest) request).getInstanceIds());
+            }
+            if (request instanceof CreateTagsRequest && mergeable((CreateTagsRequest) request)) {
+                List<Tag> tags = ((CreateTagsRequest) request).getTags();
+                return taggers.computeIfAbsent(key(tags), key -> new Coalescer<>("CreateTags",
+                        ids -> ((AmazonEC2) client).createTags(new CreateTagsRequest(ids, tags)),
+                        (result, ids) -> result)).submit(service, ((CreateTagsRequest) request).getResources());
+            }
+            return call(service, () -> invoke(method, client, args));
+        });
+    }
+
+    /**
+     * Send one request once the bucket of its service has a token, retrying it while throttled.
+     */
+    <R> R call(String service, Supplier<R> request) {
+        TokenBucket bucket = buckets.computeIfAbsent(service, key -> new TokenBucket(10, 40));
+        for (int attempt = 0; ; attempt++) {
+            long wait = bucket.reserve();
+            if (wait > 0) {
+                Metrics.shared().histogram("aws_rate_limit_wait_seconds", "service", service).recordMillis(wait);
+                sleep(wait, service);
+            }
+            try {
+                return request.get();
+            } catch (AmazonServiceException e) {
+                if (!THROTTLING.contains(e.getErrorCode()) || attempt + 1 >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                Metrics.shared().counter("aws_throttled_total", "service", service).inc();
+                //The service is over its limit: stop bursting, then back off with full jitter
+                bucket.drain();
+                long ceiling = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << attempt);
+                sleep(ThreadLocalRandom.current().nextLong(ceiling + 1), service);
+            }
+        }
+    }
+
+    private static boolean mergeable(DescribeInstancesRequest request) {
+        return request.getInstanceIds() != null && !request.getInstanceIds().isEmpty()
+                && request.getInstanceIds().size() <= MAX_IDS
+                && (request.getFilters() == null || request.getFilters().isEmpty())
+                && request.getNextToken() == null && request.getMaxResults() == null;
+    }
+
+    private static boolean mergeable(CreateTagsRequest request) {
+        return request.getResources() != null && !request.getResources().isEmpty()
+                && request.getResources().size() <= MAX_IDS
+                && request.getTags() != null && !request.getTags().isEmpty();
+    }
+
+    private static String key(List<Tag> tags) {
+        StringBuilder key = new StringBuilder();
+        for (Tag tag : tags) {
+            key.append(tag.getKey()).append('=').append(tag.getValue()).append('\n');
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the part of a merged DescribeInstances result which describes the given ids
+     */
+    private static DescribeInstancesResult share(DescribeInstancesResult merged, List<String> ids) {
+        Set<String> wanted = new HashSet<>(ids);
+        List<Reservation> reservations = new ArrayList<>();
+        for (Reservation reservation : merged.getReservations()) {
+            List<Instance> instances = new ArrayList<>();
+            for (Instance instance : reservation.getInstances()) {
+                if (wanted.contains(instance.getInstanceId())) {
+                    instances.add(instance);
+                }
+            }
+            if (!instances.isEmpty()) {
+                reservations.add(new Reservation().withReservationId(reservation.getReservationId())
+                        .withOwnerId(reservation.getOwnerId()).withRequesterId(reservation.getRequesterId())
+                        .withGroups(reservation.getGroups()).withInstances(instances));
+            }
+        }
+        return new DescribeInstancesResult().withReservations(reservations);
+    }
+
+    private static void sleep(long millis, String service) {
+        try {
+            RunClock.sleep(millis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException("Interrupted while pacing " + service + " calls");
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object[] args) {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new UndeclaredThrowableException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Token bucket refilled continuously in run time. A caller takes a token at once and waits out the
+     * debt, so callers are served in order without holding the lock while they wait.
+     */
+    static class TokenBucket {
+        private final double perSecond;
+        private final double burst;
+        private double tokens;
+        private long updated;
+
+        TokenBucket(double perSecond, double burst) {
+            this.perSecond = perSecond;
+            this.burst = burst;
+            this.tokens = burst;
+            this.updated = RunClock.now();
+        }
+
+        /**
+         * @return milliseconds to wait before using the token taken
+         */
+        synchronized long reserve() {
+            long now = RunClock.now();
+            tokens = Math.min(burst, tokens + (now - updated) * perSecond / 1000);
+            updated = now;
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1000 / perSecond);
+        }
+
+        synchronized void drain() {
+            tokens = Math.min(tokens, 0);
+        }
+    }
+
+    /**
+     * Merges the ids of the calls of one operation waiting while another is in flight: the first caller
+     * sends its own ids at once, and whoever holds the turn next sends every queued id in one request.
+     */
+    private class Coalescer<R> {
+        private final String operation;
+        private final Function<List<String>, R> request;
+        private final BiFunction<R, List<String>, R> share;
+        private final Queue<Pending<R>> queue = new ArrayDeque<>();
+        private boolean inFlight;
+
+        Coalescer(String operation, Function<List<String>, R> request, BiFunction<R, List<String>, R> share) {
+            this.operation = operation;
+            this.request = request;
+            this.share = share;
+        }
+
+        R submit(String service, List<String> ids) {
+            Pending<R> pending = new Pending<>(ids);
+            synchronized (this) {
+                queue.add(pending);
+                while (inFlight && !pending.result.isDone()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new AbortedException("Interrupted while waiting for " + operation);
+                    }
+                }
+                if (pending.result.isDone()) {
+                    return result(pending);
+                }
+                inFlight = true;
+            }
+            try {
+                //Batches go out in arrival order, so the caller's own batch is sent after a few at most
+                while (!pending.result.isDone()) {
+                    send(service, next());
+                }
+            } finally {
+                synchronized (this) {
+                    inFlight = false;
+                    notifyAll();
+                }
+            }
+            return result(pending);
+        }
+
+        private R result(Pending<R> pending) {
+            try {
+                return pending.result.join();
+            } catch (CompletionException e) {
+                throw (RuntimeException) e.getCause();
+            }
+        }
+
+        private synchronized List<Pending<R>> next() {
+            List<Pending<R>> batch = new ArrayList<>();
+            int ids = 0;
+            while (!queue.isEmpty() && (batch.isEmpty() || ids + queue.peek().ids.size() <= MAX_IDS)) {
+                Pending<R> pending = queue.poll();
+                ids += pending.ids.size();
+                batch.add(pending);
+            }
+            return batch;
+        }
+
+        private void send(String service, List<Pending<R>> batch) {
+            if (batch.size() > 1) {
+                Metrics.shared().counter("aws_coalesced_calls_total", "service", service, "operation", operation)
+                        .add(batch.size() - 1);
+            }
+            Collection<String> ids = new LinkedHashSet<>();
+            for (Pending<R> pending : batch) {
+                ids.addAll(pending.ids);
+            }
+            try {
+                R merged = call(service, () -> request.apply(new ArrayList<>(ids)));
+                for (Pending<R> pending : batch) {
+                    pending.result.complete(batch.size() == 1 ? merged : share.apply(merged, pending.ids));
+                }
+            } catch (AmazonServiceException e) {
+                if (batch.size() == 1 || THROTTLING.contains(e.getErrorCode())) {
+                    fail(batch, e);
+                } else {
+                    //One bad id, such as a terminated instance, fails the merged call: send each call alone
+                    for (Pending<R> pending : batch) {
+                        try {
+                            pending.result.complete(call(service, () -> request.apply(pending.ids)));
+                        } catch (RuntimeException alone) {
+                            pending.result.completeExceptionally(alone);
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                fail(batch, e);
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+
+        private void fail(List<Pending<R>> batch, RuntimeException e) {
+            for (Pending<R> pending : batch) {
+                pending.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static class Pending<R> {
+        private final List<String> ids;
+        private final CompletableFuture<R> result = new CompletableFuture<>();
+
+        Pending(List<String> ids) {
+            this.ids = ids;
+        }
+    }
+}
@@ -1,36 +1,42 @@
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.autoscaling.AmazonAutoScalingClient;
+import com.amazonaws.services.autoscaling.AmazonAutoScaling;
+import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
 import com.amazonaws.services.autoscaling.model.CreateAutoScalingGroupRequest;
 import com.amazonaws.services.autoscaling.model.CreateLaunchConfigurationRequest;
-import com.amazonaws.services.autoscaling.model.DeleteAutoScalingGroupRequest;
-import com.amazonaws.services.autoscaling.model.DeleteLaunchConfigurationRequest;
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsRequest;
+import com.amazonaws.services.autoscaling.model.DescribeLaunchConfigurationsRequest;
 import com.amazonaws.services.autoscaling.model.InstanceMonitoring;
-import com.amazonaws.services.autoscaling.model.PutScalingPolicyRequest;
-import com.amazonaws.services.autoscaling.model.PutScalingPolicyResult;
-import com.amazonaws.services.autoscaling.model.UpdateAutoScalingGroupRequest;
-import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
-import com.amazonaws.services.cloudwatch.model.ComparisonOperator;
-import com.amazonaws.services.cloudwatch.model.Dimension;
-import com.amazonaws.services.cloudwatch.model.PutMetricAlarmRequest;
-import com.amazonaws.services.cloudwatch.model.StandardUnit;
-import com.amazonaws.services.cloudwatch.model.Statistic;
-import com.amazonaws.services.ec2.AmazonEC2Client;
-import com.amazonaws.services.ec2.model.DeleteSecurityGroupRequest;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeSecurityGroupsRequest;
 import com.amazonaws.services.ec2.model.Instance;
-import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancingClient;
+import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancing;
 import com.amazonaws.services.elasticloadbalancing.model.ConfigureHealthCheckRequest;
 import com.amazonaws.services.elasticloadbalancing.model.ConfigureHealthCheckResult;
+import com.amazonaws.services.elasticloadbalancing.model.ConnectionDraining;
 import com.amazonaws.services.elasticloadbalancing.model.CreateLoadBalancerRequest;
 import com.amazonaws.services.elasticloadbalancing.model.CreateLoadBalancerResult;
-import com.amazonaws.services.elasticloadbalancing.model.DeleteLoadBalancerRequest;
+import com.amazonaws.services.elasticloadbalancing.model.CrossZoneLoadBalancing;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeInstanceHealthRequest;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeInstanceHealthResult;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeLoadBalancersRequest;
 import com.amazonaws.services.elasticloadbalancing.model.HealthCheck;
 import com.amazonaws.services.elasticloadbalancing.model.Listener;
+import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerAttributes;
+import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription;
+import com.amazonaws.services.elasticloadbalancing.model.ModifyLoadBalancerAttributesRequest;
 import com.amazonaws.services.elasticloadbalancing.model.Tag;
-import org.ini4j.Ini;
 
 import java.io.IOException;
-import java.util.Properties;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author Siqi Wang siqiw1 on 2/4/16.
@@ -41,110 +47,376 @@ public class AwsAutoScaling extends AwsScalingHelper {
     private static final String SECURITY_GROUP_2 = "AutoScaling2";
     private static final String LOAD_GENERATOR_ID = "ami-8ac4e9e0";
     private static final String DATA_CENTER_ID = "ami-349fbb5e";
-    private static Properties properties = new Properties();
-
-    private static AmazonEC2Client ec2Client;
-    private static AmazonElasticLoadBalancingClient elbClient;
-    private static AmazonAutoScalingClient autoScalingClient;
-    private static AmazonCloudWatchClient cloudWatchClient;
+    //step (default) or cpu:<percent>, see ScalingPolicy.forName
+    private static final ScalingPolicy SCALING_POLICY = ScalingPolicy.forName(System.getProperty("scalingPolicy", "step"));
+    //The junior test group, at most 5 m3.medium in us-east-1a, unless -Dcapacity.plan=true sizes it for targetRps
+    private static final boolean PLAN_CAPACITY = Boolean.getBoolean("capacity.plan");
+    private static final double TARGET_RPS = Double.parseDouble(System.getProperty("targetRps", "4000"));
+    private static final String GROUP_TYPE = "m3.medium";
+    private static final int GROUP_MAX_SIZE = 5;
+    private static final String GROUP_ZONE = "us-east-1a";
+    private static final long LOG_POLL_SECONDS = 5;
+    private static final long ALARM_POLL_SECONDS = 30;
+    private static final long READY_POLL_SECONDS = 15;
+    private static final int HEALTH_CHECK_INTERVAL = 30;
+    private static final int HEALTH_CHECK_UNHEALTHY = 10;
+    private static final int HEALTH_CHECK_GRACE_SECONDS = 240;
+
+    private final StackContext stack;
+    private final AmazonEC2 ec2Client;
+    private final AmazonElasticLoadBalancing elbClient;
+    private final AmazonAutoScaling autoScalingClient;
+    private final AmazonCloudWatch cloudWatchClient;
+    private final CapacityPlanner.Plan plan;
+    //Measures boots from the group creation on, seeing the load balancer whenever the run counts its instances
+    private final ReadinessEngine readiness;
+
+    public AwsAutoScaling(StackContext stack) {
+        this.stack = stack;
+        this.ec2Client = stack.cloud().ec2();
+        this.elbClient = stack.cloud().elb();
+        this.autoScalingClient = stack.cloud().autoScaling();
+        this.cloudWatchClient = stack.cloud().cloudWatch();
+        this.plan = stack.getPlan();
+        this.readiness = new ReadinessEngine(autoScalingClient, elbClient, ec2Client, stack.asgName(),
+                stack.loadBalancerName());
+    }
 
     public static void main(String[] args) throws IOException, InterruptedException {
-        andrewId = args[0].trim();
-        password = args[1].trim();
-        //Load the Properties File with AWS Credentials
-        properties.load(AwsAutoScaling.class.getResourceAsStream("./AwsCredentials.properties"));
-        BasicAWSCredentials basicAWSCredentials = new BasicAWSCredentials(properties.getProperty(ACCESS_KEY), properties.getProperty(SECRET_KEY));
-        //Create an Amazon EC2 Client
-        ec2Client = new AmazonEC2Client(basicAWSCredentials);
-        //Create an ELB client
-        elbClient = new AmazonElasticLoadBalancingClient(basicAWSCredentials);
-        //Create an ASG client
-        autoScalingClient = new AmazonAutoScalingClient(basicAWSCredentials);
-        //Create a Cloud Watch client
-        cloudWatchClient = new AmazonCloudWatchClient(basicAWSCredentials);
+        //Create the clients of real AWS, or of the simulator with -Dcloud=sim
+        CloudProvider cloud = CloudProvider.create(AwsAutoScaling.class);
+        CapacityPlanner.Plan plan = plan(CapacityPlanner.fromSystemProperties(), null);
+        new AwsAutoScaling(new StackContext("", args[0].trim(), args[1].trim(), cloud, SCALING_POLICY, plan,
+                new Semaphore(1))).run();
+        cloud.shutdown();
+        Bootstrap.shared().close();
+        Metrics.shared().close();
+    }
+
+    /**
+     * Plan the group of a stack. By default it is the group the junior test is measured with, so a policy is
+     * compared against the same capacity. With {@code -Dcapacity.plan=true} the group takes the type with
+     * the most RPS per dollar, sized for {@code -DtargetRps} and spread over the planned zones.
+     *
+     * @param type instance type of the group, or null for the default one
+     */
+    static CapacityPlanner.Plan plan(CapacityPlanner planner, String type) {
+        if (!PLAN_CAPACITY) {
+            return planner.fixed(type == null ? GROUP_TYPE : type, GROUP_MAX_SIZE,
+                    Collections.singletonList(GROUP_ZONE));
+        }
+        return type == null ? planner.plan(TARGET_RPS) : planner.plan(TARGET_RPS, Collections.singletonList(type));
+    }
 
+    /**
+     * Run the stack through provisioning, warmup, the junior test and teardown. A crashed run is resumed:
+     * completed steps re-attach to their resources instead of running again.
+     */
+    public void run() throws IOException, InterruptedException {
+        System.out.println(stack + ": capacity plan " + plan.getPrimarySize() + " x " + plan.getPrimaryType()
+                + " over " + plan.getZones());
+        RunJournal journal = stack.openJournal();
+
+        if (!journal.isDone("teardown")) {
+            runTest(journal);
+            journal.record("teardown", "");
+        }
+        //Delete everything tagged for the stack, in parallel where the dependencies allow
+        stack.teardown().run();
+        journal.finish();
+    }
+
+    /**
+     * Provision the stack, wait until it is ready and run the junior test, skipping what the journal
+     * records as done.
+     */
+    private void runTest(RunJournal journal) throws IOException, InterruptedException {
+        //Provision as a dependency graph: independent steps run in parallel
+        ProvisioningGraph graph = new ProvisioningGraph(8);
         //Create security groups
-        createSecurityGroup(ec2Client, SECURITY_GROUP_1);
-        String sg2Id = createSecurityGroup(ec2Client, SECURITY_GROUP_2);
+        ProvisioningGraph.Step<String> sg1 = graph.step("security group 1", journal.resumable("security group 1",
+                () -> createSecurityGroup(ec2Client, stack.name(SECURITY_GROUP_1), stack.tags()), id -> id,
+                this::reattachSecurityGroup));
+        ProvisioningGraph.Step<String> sg2 = graph.step("security group 2", journal.resumable("security group 2",
+                () -> createSecurityGroup(ec2Client, stack.name(SECURITY_GROUP_2), stack.tags()), id -> id,
+                this::reattachSecurityGroup));
         //Create load generator
-        Instance lg = launchInstance(ec2Client, LOAD_GENERATOR_ID, SECURITY_GROUP_1);
-        System.out.println("Instance " + lg.getInstanceId() + " is launched");
+        ProvisioningGraph.Step<Instance> lgStep = graph.step("load generator", journal.resumable("load generator", () -> {
+            Instance instance = launchInstance(ec2Client, LOAD_GENERATOR_ID, stack.name(SECURITY_GROUP_1),
+                    stack.tags());
+            System.out.println("Instance " + instance.getInstanceId() + " is launched");
+            return instance;
+        }, Instance::getInstanceId, id -> reattachInstance(ec2Client, id)), sg1);
         //Create ELB
-        CreateLoadBalancerResult elbResult = launchElb(sg2Id);
-        System.out.println("ELB " + elbResult.getDNSName() + " is launched");
+        ProvisioningGraph.Step<CreateLoadBalancerResult> elbStep = graph.step("load balancer",
+                journal.resumable("load balancer", () -> {
+                    CreateLoadBalancerResult result = launchElb(sg2.get());
+                    System.out.println("ELB " + result.getDNSName() + " is launched");
+                    return result;
+                }, CreateLoadBalancerResult::getDNSName, this::reattachElb), sg2);
         //Create and set up Health Check
-        launchHealthCheck(lg);
+        //Steps acting on the load generator or the ELB run again once either was replaced
+        Callable<String> lgAndElb = () -> lgStep.get().getInstanceId() + "," + elbStep.get().getDNSName();
+        ProvisioningGraph.Step<Void> healthCheck = graph.task("health check", journal.resumable("health check",
+                lgAndElb, () -> launchHealthCheck(lgStep.get())), lgStep, elbStep);
         //Setup launch configuration
-        setLaunchConfiguration(sg2Id);
-        //Create ASG
-        launchAsg();
-        //Setup scale up policy
-        setupScaleOutAlarm();
-        //Setup scale down policy
-        setupScaleInAlarm();
-        //submit password
-        TimeUnit.MINUTES.sleep(1);
-        getConnection(submitCredentialUrl(lg));
-        System.out.println("Credential URL: " + submitCredentialUrl(lg));
-        //ELB warmup
-        getConnection(getWarmupUrl(lg, elbResult.getDNSName()));
-        System.out.println("Warmup URL: " + getWarmupUrl(lg, elbResult.getDNSName()));
-        TimeUnit.MINUTES.sleep(16);
+        ProvisioningGraph.Step<String> launchConfig = graph.step("launch configuration",
+                journal.resumable("launch configuration", () -> {
+                    setLaunchConfiguration(sg2.get());
+                    return stack.launchConfigurationName();
+                }, name -> name, this::reattachLaunchConfiguration), sg2);
+        //Create ASG, known by its creation time so a group created again is told apart
+        ProvisioningGraph.Step<String> asg = graph.step("auto scaling group",
+                journal.resumable("auto scaling group", this::launchAsg, created -> created, this::reattachAsg),
+                launchConfig, elbStep);
+        //Setup scaling policies and their alarms
+        ProvisioningGraph.Step<Void> policy = graph.task("scaling policy", journal.resumable("scaling policy",
+                asg::get, () -> System.out.println("Scaling alarms: "
+                        + stack.getPolicy().apply(stack.asgName(), autoScalingClient, cloudWatchClient))), asg);
+        //submit password as soon as the load generator web server answers
+        ProvisioningGraph.Step<Void> credential = graph.task("submit password", journal.resumable("submit password",
+                () -> lgStep.get().getInstanceId(), () -> {
+            waitFor(awaitBooted(lgStep.get()));
+            getConnection(stack.submitCredentialUrl(lgStep.get()));
+            System.out.println("Credential URL: " + stack.submitCredentialUrl(lgStep.get()));
+        }), lgStep);
+        //ELB warmup once an ASG instance is in service behind the ELB
+        ProvisioningGraph.Step<Void> inService = graph.task("load balancer in service",
+                journal.resumable("load balancer in service", () -> elbStep.get().getDNSName() + "," + asg.get(),
+                        this::awaitElbInService), healthCheck, asg);
+        graph.task("ELB warmup", journal.resumable("ELB warmup", lgAndElb, () -> {
+            String warmupUrl = getWarmupUrl(lgStep.get(), elbStep.get().getDNSName());
+            getConnection(warmupUrl);
+            System.out.println("Warmup URL: " + warmupUrl);
+        }), credential, inService, policy);
+        //Stacks provisioning at once share the AWS request rate, so only a few provision at a time
+        stack.getProvisioning().acquire();
+        try {
+            graph.await();
+        } catch (ExecutionException e) {
+            throw new IOException("Provisioning " + stack + " failed", e.getCause());
+        } finally {
+            stack.getProvisioning().release();
+            System.out.println(graph.report());
+            graph.shutdown();
+        }
+        Instance lg = lgStep.get();
+        CreateLoadBalancerResult elbResult = elbStep.get();
+        String stackInputs = lg.getInstanceId() + "," + elbResult.getDNSName();
+        //Start the test as soon as the stack is ready, and after the 16 minute warmup at the latest. The wait
+        //and the test start over on a new load generator or ELB
+        String warmupWait = journal.get("warmup wait");
+        if (warmupWait == null || !warmupWait.endsWith(" " + stackInputs)) {
+            warmupWait = RunClock.now() + " " + stackInputs;
+            journal.record("warmup wait", warmupWait);
+        }
+        long warmupStart = Long.parseLong(warmupWait.substring(0, warmupWait.indexOf(' ')));
+        long warmupEnd = warmupStart + TimeUnit.MINUTES.toMillis(16);
+
+        //Run the rest as events: the junior test starts when the readiness engine reports ready, alarm
+        //transitions are reported as they happen and the log is polled every few seconds until the test ends
+        EventLoop loop = new EventLoop("auto scaling " + stack);
+        //Keep every log snapshot and alarm transition, for ScalingReplay to try other policies against
+        Map<String, String> header = new LinkedHashMap<>();
+        header.put("kind", "autoscaling");
+        header.put("type", plan.getPrimaryType());
+        header.put("minSize", "1");
+        header.put("maxSize", String.valueOf(plan.getPrimarySize()));
+        //Forecast scale outs mix into what the recording shows of the policy
+        header.put("predictive", String.valueOf(PredictiveScaler.ENABLED));
+        header.put("scaleIn", String.valueOf(ScaleInEngine.ENABLED));
+        RunRecorder recorder = stack.openRecorder(header, journal.isResumed());
+        //Publish the RPS of the log per instance in service, for policies scaling on RPS rather than CPU
+        RpsMetricPublisher publisher = new RpsMetricPublisher(cloudWatchClient, "AutoScalingGroupName",
+                stack.asgName(), this::countInService);
+        LogTailer tailer = logTailer(lg);
+        tailer.addListener(recorder);
+        tailer.addListener(publisher);
+        tailer.addListener(loop::post);
+        //Scale out ahead of the load the minute series forecasts, rather than after a period of high CPU
+        CapacityPlanner.Profile profile = CapacityPlanner.fromSystemProperties().profile(plan.getPrimaryType());
+        PredictiveScaler predictive = PredictiveScaler.ENABLED && profile != null ? new PredictiveScaler(
+                autoScalingClient, stack.asgName(), plan.getPrimarySize(), profile.getRps()) : null;
+        //Terminate idle and nearly paid-up instances first, once the RPS history allows it
+        ScaleInEngine scaleIn = ScaleInEngine.ENABLED ? new ScaleInEngine(autoScalingClient, elbClient, ec2Client,
+                cloudWatchClient, stack.asgName(), stack.loadBalancerName(), 1,
+                profile == null ? 0 : profile.getRps()) : null;
+        loop.on(LogSample.class, sample -> {
+            if (sample.isTestEnd()) {
+                System.out.println(stack + ": test ended " + sample);
+                loop.stop();
+                return;
+            }
+            Metrics.shared().gauge("test_rps", "stack", stack.getName()).set(sample.getTotal());
+            int desired = predictive == null ? 0 : predictive.onMinute(sample);
+            if (desired > 0) {
+                recorder.action("predictive scale out", String.valueOf(desired));
+            }
+            for (String victim : scaleIn == null ? Collections.<String>emptyList() : scaleIn.onMinute(sample)) {
+                recorder.action("scale in", victim);
+            }
+        });
+        AlarmWatcher alarms = new AlarmWatcher(cloudWatchClient, stack.asgName(), loop);
+        loop.on(AlarmWatcher.Transition.class, transition -> {
+            System.out.println("Alarm " + transition);
+            Metrics.shared().counter("alarm_transitions_total", "alarm", transition.getAlarmName(),
+                    "state", transition.getTo()).add(1);
+            recorder.action("alarm " + transition.getAlarmName(), transition.getTo());
+        });
+        loop.every(ALARM_POLL_SECONDS, TimeUnit.SECONDS, alarms::poll);
+        loop.every(RpsMetricPublisher.PUBLISH_SECONDS, TimeUnit.SECONDS, publisher::flush);
+        //The log is only tailed once the junior test has started, as the tailer keeps the first log name
+        if (journal.isDone("junior test", stackInputs)) {
+            loop.every(LOG_POLL_SECONDS, TimeUnit.SECONDS, tailer::poll);
+        } else {
+            //A tailer of its own reads the warmup log, the newest one until the junior test starts
+            LogTailer warmup = new LogTailer(getDNS(lg));
+            AtomicBoolean starting = new AtomicBoolean();
+            AtomicReference<String> lastStatus = new AtomicReference<>();
+            EventLoop.Action startJunior = () -> {
+                if (!starting.compareAndSet(false, true)) {
+                    return;
+                }
+                long waited = RunClock.now() - warmupStart;
+                Metrics.shared().gauge("warmup_wait_seconds", "stack", stack.getName()).set(waited / 1000.0);
+                System.out.println(String.format("%s: starting the junior test %.1f minutes after the warmup,"
+                        + " %.1f minutes before the fixed wait", stack, waited / 60000.0,
+                        Math.max(0, warmupEnd - RunClock.now()) / 60000.0));
+                ReadinessEngine.Recommendation recommendation = readiness.recommendation();
+                if (recommendation != null) {
+                    System.out.println(stack + ": recommended health check, " + recommendation
+                            + " (configured: grace period " + HEALTH_CHECK_GRACE_SECONDS + " s, every "
+                            + HEALTH_CHECK_INTERVAL + " s, unhealthy after " + HEALTH_CHECK_UNHEALTHY
+                            + " checks)");
+                }
+                loop.when(getConnectionAsync(String.format("http://%s/junior?dns=%s", getDNS(lg),
+                        elbResult.getDNSName())), code -> {
+                    journal.record("junior test", stackInputs);
+                    recorder.action("junior test", elbResult.getDNSName());
+                    System.out.println(stack + ": junior test is launched");
+                    loop.every(LOG_POLL_SECONDS, TimeUnit.SECONDS, tailer::poll);
+                });
+            };
+            loop.every(READY_POLL_SECONDS, TimeUnit.SECONDS, () -> {
+                if (starting.get()) {
+                    return;
+                }
+                ReadinessEngine.Status status = readiness.poll(warmup);
+                if (!status.toString().equals(lastStatus.getAndSet(status.toString()))) {
+                    System.out.println(stack + ": readiness " + status);
+                }
+                if (status.isReady()) {
+                    loop.run(startJunior);
+                }
+            });
+            //Whatever the signals say, the test starts once the fixed warmup is over
+            loop.after(warmupEnd - RunClock.now(), TimeUnit.MILLISECONDS, () -> {
+                if (!starting.get()) {
+                    System.out.println(stack + ": not ready after the 16 minute warmup, starting anyway");
+                }
+                startJunior.run();
+            });
+        }
+        try {
+            loop.await();
+        } finally {
+            recorder.close();
+        }
+    }
+
+    private String reattachSecurityGroup(String groupId) {
+        ec2Client.describeSecurityGroups(new DescribeSecurityGroupsRequest().withGroupIds(groupId));
+        return groupId;
+    }
 
-        //Start the junior test
-        getConnection(String.format("http://%s/junior?dns=%s", getDNS(lg), elbResult.getDNSName()));
-        System.out.println("Junior test is launched");
+    private String reattachLaunchConfiguration(String name) {
+        if (autoScalingClient.describeLaunchConfigurations(new DescribeLaunchConfigurationsRequest()
+                .withLaunchConfigurationNames(name)).getLaunchConfigurations().isEmpty()) {
+            throw new IllegalStateException(name + " is gone");
+        }
+        return name;
+    }
 
-        //Read log to decide termination
-        String logName = getLogName(lg);
-        String logLink = String.format("http://%s/log?name=%s", getDNS(lg), logName);
-        Ini ini;
-        while (true) {
-            TimeUnit.MINUTES.sleep(1);
-            ini = new Ini(getInputStream(logLink));
-            for (String sectionName : ini.keySet()) {
-                if (sectionName.equals("Test End")) {
-                    terminateLb();
-                    terminateAsg();
-                    terminateLaunchConfig();
-                    deleteSecurityGroup();
-                    break;
-                }
-            }
+    private String reattachAsg(String created) {
+        List<AutoScalingGroup> found = autoScalingClient.describeAutoScalingGroups(
+                new DescribeAutoScalingGroupsRequest().withAutoScalingGroupNames(stack.asgName())).getAutoScalingGroups();
+        if (found.isEmpty() || !created.equals(createdTime(found.get(0)))) {
+            throw new IllegalStateException(stack.asgName() + " created at " + created + " is gone");
         }
+        return created;
     }
 
-    private static CreateLoadBalancerResult launchElb(String sg2Id) throws InterruptedException {
+    private static String createdTime(AutoScalingGroup group) {
+        return group.getCreatedTime() == null ? "" : String.valueOf(group.getCreatedTime().getTime());
+    }
+
+    private CreateLoadBalancerResult reattachElb(String dns) {
+        List<LoadBalancerDescription> found = elbClient.describeLoadBalancers(new DescribeLoadBalancersRequest()
+                .withLoadBalancerNames(stack.loadBalancerName())).getLoadBalancerDescriptions();
+        if (found.isEmpty() || !dns.equals(found.get(0).getDNSName())) {
+            throw new IllegalStateException(stack.loadBalancerName() + " " + dns + " is gone");
+        }
+        return new CreateLoadBalancerResult().withDNSName(dns);
+    }
+
+    private CreateLoadBalancerResult launchElb(String sg2Id) {
         //create load balancer
         CreateLoadBalancerRequest lbRequest = new CreateLoadBalancerRequest();
-        Tag tag = new Tag();
-        tag.setKey("Project");
-        tag.setValue("2.1");
-        lbRequest.withLoadBalancerName("loadbalancer")
+        for (Map.Entry<String, String> stackTag : stack.tags().entrySet()) {
+            Tag tag = new Tag();
+            tag.setKey(stackTag.getKey());
+            tag.setValue(stackTag.getValue());
+            lbRequest.withTags(tag);
+        }
+        lbRequest.withLoadBalancerName(stack.loadBalancerName())
                 .withListeners(new Listener("HTTP", 80, 80))
                 .withSecurityGroups(sg2Id)
-                .withAvailabilityZones("us-east-1a")
-                .withTags(tag);
+                .withAvailabilityZones(plan.getZones());
         System.out.println("Doing LB request: " + lbRequest);
 
+        //The DNS name is assigned synchronously by CreateLoadBalancer
         CreateLoadBalancerResult lbResult = elbClient.createLoadBalancer(lbRequest);
-        while (lbResult.getDNSName() == null) {
-            TimeUnit.SECONDS.sleep(3);
-        }
         System.out.println("Created load balancer " + lbResult);
+        //Instances scaled in finish their requests before they leave
+        LoadBalancerAttributes attributes = new LoadBalancerAttributes().withConnectionDraining(
+                new ConnectionDraining().withEnabled(true).withTimeout(ScaleInEngine.DRAIN_SECONDS));
+        //Without cross-zone balancing each zone gets an equal share of the load, whatever its instance count
+        if (plan.getZones().size() > 1) {
+            attributes.withCrossZoneLoadBalancing(new CrossZoneLoadBalancing().withEnabled(true));
+        }
+        elbClient.modifyLoadBalancerAttributes(new ModifyLoadBalancerAttributesRequest()
+                .withLoadBalancerName(stack.loadBalancerName())
+                .withLoadBalancerAttributes(attributes));
         return lbResult;
     }
 
 
-    private static void launchHealthCheck(Instance lg) {
+    /**
+     * Wait until at least one instance behind the load balancer is in service.
+     */
+    private void awaitElbInService() {
+        waitFor(StateWatcher.shared().await("instances in service behind " + stack.loadBalancerName(),
+                this::countInService, inService -> inService > 0, StateWatcher.Backoff.api()));
+    }
+
+    /**
+     * @return number of instances in service behind the load balancer
+     */
+    private int countInService() {
+        DescribeInstanceHealthResult health = elbClient.describeInstanceHealth(
+                new DescribeInstanceHealthRequest(stack.loadBalancerName()));
+        return readiness.observe(health.getInstanceStates());
+    }
+
+    private void launchHealthCheck(Instance lg) {
         HealthCheck healthCheck = new HealthCheck();
         String hcUrl = String.format("HTTP:80/heartbeat?lg=%s", getDNS(lg));
         healthCheck.withHealthyThreshold(2)
-                .withUnhealthyThreshold(10)
-                .withInterval(30)
+                .withUnhealthyThreshold(HEALTH_CHECK_UNHEALTHY)
+                .withInterval(HEALTH_CHECK_INTERVAL)
                 .withTimeout(10)
                 .withTarget(hcUrl);
-        ConfigureHealthCheckRequest hcRequest = new ConfigureHealthCheckRequest("loadbalancer", healthCheck);
+        ConfigureHealthCheckRequest hcRequest = new ConfigureHealthCheckRequest(stack.loadBalancerName(), healthCheck);
         System.out.println("Health check launching for " + hcRequest);
         ConfigureHealthCheckResult hcResult = elbClient.configureHealthCheck(hcRequest);
         System.out.println("Health check result: " + hcResult);
@@ -154,12 +426,12 @@ public class AwsAutoScaling extends AwsScalingHelper {
         return String.format("http://%s/warmup?dns=%s", getDNS(lg), elbDns);
     }
 
-    private static void setLaunchConfiguration(String sg2Id) {
+    private void setLaunchConfiguration(String sg2Id) {
         CreateLaunchConfigurationRequest lcRequest = new CreateLaunchConfigurationRequest();
 
-        lcRequest.withLaunchConfigurationName("ASGConfig")
+        lcRequest.withLaunchConfigurationName(stack.launchConfigurationName())
                 .withImageId(DATA_CENTER_ID)
-                .withInstanceType("m3.medium")
+                .withInstanceType(plan.getPrimaryType())
                 .withSecurityGroups(sg2Id);
 
         InstanceMonitoring monitoring = new InstanceMonitoring();
@@ -170,149 +442,36 @@ public class AwsAutoScaling extends AwsScalingHelper {
         autoScalingClient.createLaunchConfiguration(lcRequest);
     }
 
-    private static void launchAsg() {
+    /**
+     * @return creation time of the group
+     */
+    private String launchAsg() {
         CreateAutoScalingGroupRequest asgRequest = new CreateAutoScalingGroupRequest();
-        com.amazonaws.services.autoscaling.model.Tag tag = new com.amazonaws.services.autoscaling.model.Tag();
-        tag.setKey("Project");
-        tag.setValue("2.1");
+        for (Map.Entry<String, String> stackTag : stack.tags().entrySet()) {
+            //Propagated, so the instances of the group are torn down with the stack
+            com.amazonaws.services.autoscaling.model.Tag tag = new com.amazonaws.services.autoscaling.model.Tag();
+            tag.setKey(stackTag.getKey());
+            tag.setValue(stackTag.getValue());
+            tag.setPropagateAtLaunch(Boolean.TRUE);
+            asgRequest.withTags(tag);
+        }
 
-        asgRequest.withAutoScalingGroupName("ASG")
-                .withAvailabilityZones("us-east-1a")
-                .withLaunchConfigurationName("ASGConfig")
-                .withLoadBalancerNames("loadbalancer")
-                .withTags(tag)
-                .withMaxSize(5)
+        asgRequest.withAutoScalingGroupName(stack.asgName())
+                .withAvailabilityZones(plan.getZones())
+                .withLaunchConfigurationName(stack.launchConfigurationName())
+                .withLoadBalancerNames(stack.loadBalancerName())
+                .withMaxSize(plan.getPrimarySize())
                 .withMinSize(1)
                 .withDesiredCapacity(1)
                 .withHealthCheckType("ELB")
-                .withHealthCheckGracePeriod(240);
-        //      .withDefaultCooldown(60);
+                .withHealthCheckGracePeriod(HEALTH_CHECK_GRACE_SECONDS)
+                .withDefaultCooldown(60)
+                //The scale in engine picks the instances to terminate, not the group
+                .withNewInstancesProtectedFromScaleIn(ScaleInEngine.ENABLED);
 
         System.out.println("Creating ASG: " + asgRequest);
         autoScalingClient.createAutoScalingGroup(asgRequest);
-    }
-
-    private static String scalingOutPolicy() {
-        PutScalingPolicyRequest scalingPolicyRequest = new PutScalingPolicyRequest();
-        scalingPolicyRequest.withAutoScalingGroupName("ASG")
-                .withPolicyName("ScaleUp")
-                .withScalingAdjustment(1)
-                .withAdjustmentType("ChangeInCapacity");
-        System.out.println("Scale out policy: " + scalingPolicyRequest);
-
-        PutScalingPolicyResult result = autoScalingClient.putScalingPolicy(scalingPolicyRequest);
-        System.out.println("Scale out policy: " + result);
-        return result.getPolicyARN(); // The policy ARN is needed in the next step.
-    }
-
-    private static String scalingInPolicy() {
-        PutScalingPolicyRequest scalingPolicyRequest = new PutScalingPolicyRequest();
-        scalingPolicyRequest.withAutoScalingGroupName("ASG")
-                .withPolicyName("ScaleDown")
-                .withScalingAdjustment(-1)
-                .withAdjustmentType("ChangeInCapacity");
-        System.out.println("Scale in policy: " + scalingPolicyRequest);
-
-        PutScalingPolicyResult result = autoScalingClient.putScalingPolicy(scalingPolicyRequest);
-        System.out.println("Scale in policy: " + result);
-        return result.getPolicyARN(); // The policy ARN is needed in the next step.
-    }
-
-    private static void setupScaleOutAlarm() {
-        String scaleUpArn = scalingOutPolicy();
-
-        Dimension dimension = new Dimension();
-        dimension.setName("AutoScalingGroupName");
-        dimension.setValue("ASG");
-
-        PutMetricAlarmRequest outRequest = new PutMetricAlarmRequest();
-        outRequest.withAlarmName("ScaleUpAlarm")
-                .withActionsEnabled(true)
-                .withDimensions(dimension)
-                .withMetricName("CPUUtilization")
-                .withNamespace("AWS/EC2")
-                .withComparisonOperator(ComparisonOperator.GreaterThanOrEqualToThreshold)
-                .withThreshold(60d)
-                .withPeriod(60)
-                .withEvaluationPeriods(1)
-                .withStatistic(Statistic.Average)
-                .withUnit(StandardUnit.Percent)
-                .withAlarmActions(scaleUpArn);
-
-        System.out.println("Launching scale out alarm " + outRequest);
-        cloudWatchClient.putMetricAlarm(outRequest);
-    }
-
-    private static void setupScaleInAlarm() {
-        String scaleDownArn = scalingInPolicy();
-
-        Dimension dimension = new Dimension();
-        dimension.setName("AutoScalingGroupName");
-        dimension.setValue("ASG");
-
-        PutMetricAlarmRequest inRequest = new PutMetricAlarmRequest();
-        inRequest.withAlarmName("ScaleDownAlarm")
-                .withActionsEnabled(true)
-                .withDimensions(dimension)
-                .withMetricName("CPUUtilization")
-                .withNamespace("AWS/EC2")
-                .withComparisonOperator(ComparisonOperator.LessThanOrEqualToThreshold)
-                .withThreshold(20d)
-                .withPeriod(60)
-                .withEvaluationPeriods(5)
-                .withStatistic(Statistic.Average)
-                .withUnit(StandardUnit.Percent)
-                .withAlarmActions(scaleDownArn);
-
-        System.out.println("Launching scale in alarm: " + inRequest);
-        cloudWatchClient.putMetricAlarm(inRequest);
-    }
-
-    private static void terminateLb() {
-        DeleteLoadBalancerRequest deleteElb = new DeleteLoadBalancerRequest("loadbalancer");
-        elbClient.deleteLoadBalancer(deleteElb);
-    }
-
-    private static void terminateAsg() {
-        while (true) {
-            try {
-                UpdateAutoScalingGroupRequest updateRequest = new UpdateAutoScalingGroupRequest();
-                updateRequest.withAutoScalingGroupName("ASG")
-                        .withMinSize(0)
-                        .withMaxSize(0);
-                autoScalingClient.updateAutoScalingGroup(updateRequest);
-
-                DeleteAutoScalingGroupRequest deleteAsg = new DeleteAutoScalingGroupRequest();
-                deleteAsg.withAutoScalingGroupName("ASG");
-                autoScalingClient.deleteAutoScalingGroup(deleteAsg);
-                return;
-            } catch (Exception e) {
-                System.out.println("Wait...");
-            }
-        }
-    }
-
-    private static void terminateLaunchConfig() {
-        DeleteLaunchConfigurationRequest deleteLc = new DeleteLaunchConfigurationRequest();
-        autoScalingClient.deleteLaunchConfiguration(deleteLc);
-    }
-
-
-    private static void deleteSecurityGroup() {
-        deleteSingleSecurityGroup(SECURITY_GROUP_1);
-        deleteSingleSecurityGroup(SECURITY_GROUP_2);
-
-    }
-
-    private static void deleteSingleSecurityGroup(String securityGroup2) {
-        while (true) {
-            try {
-                DeleteSecurityGroupRequest deleteSg2 = new DeleteSecurityGroupRequest(securityGroup2);
-                ec2Client.deleteSecurityGroup(deleteSg2);
-                break;
-            } catch (Exception e) {
-                System.out.println("Wait...");
-            }
-        }
+        return createdTime(autoScalingClient.describeAutoScalingGroups(new DescribeAutoScalingGroupsRequest()
+                .withAutoScalingGroupNames(stack.asgName())).getAutoScalingGroups().get(0));
     }
 }
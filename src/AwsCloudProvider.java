@@ -0,0 +1,73 @@
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.autoscaling.AmazonAutoScaling;
+import com.amazonaws.services.autoscaling.AmazonAutoScalingClient;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancing;
+import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancingClient;
+
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Provider of the real AWS SDK clients.
+ */
+public class AwsCloudProvider implements CloudProvider {
+    private final AmazonEC2Client ec2Client;
+    private final AmazonElasticLoadBalancingClient elbClient;
+    private final AmazonAutoScalingClient autoScalingClient;
+    private final AmazonCloudWatchClient cloudWatchClient;
+
+    public AwsCloudProvider(BasicAWSCredentials credentials) {
+        //Create an Amazon EC2 Client
+        ec2Client = new AmazonEC2Client(credentials);
+        //Create an ELB client
+        elbClient = new AmazonElasticLoadBalancingClient(credentials);
+        //Create an ASG client
+        autoScalingClient = new AmazonAutoScalingClient(credentials);
+        //Create a Cloud Watch client
+        cloudWatchClient = new AmazonCloudWatchClient(credentials);
+    }
+
+    /**
+     * Load the Properties File with AWS Credentials next to the given class.
+     *
+     * @param main class next to which AwsCredentials.properties lives
+     */
+    public static AwsCloudProvider fromCredentials(Class<?> main) throws IOException {
+        Properties properties = new Properties();
+        properties.load(main.getResourceAsStream("./AwsCredentials.properties"));
+        return new AwsCloudProvider(new BasicAWSCredentials(properties.getProperty(AwsScalingHelper.ACCESS_KEY),
+                properties.getProperty(AwsScalingHelper.SECRET_KEY)));
+    }
+
+    @Override
+    public AmazonEC2 ec2() {
+        return ec2Client;
+    }
+
+    @Override
+    public AmazonElasticLoadBalancing elb() {
+        return elbClient;
+    }
+
+    @Override
+    public AmazonAutoScaling autoScaling() {
+        return autoScalingClient;
+    }
+
+    @Override
+    public AmazonCloudWatch cloudWatch() {
+        return cloudWatchClient;
+    }
+
+    @Override
+    public void shutdown() {
+        ec2Client.shutdown();
+        elbClient.shutdown();
+        autoScalingClient.shutdown();
+        cloudWatchClient.shutdown();
+    }
+}
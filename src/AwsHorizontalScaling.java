@@ -1,11 +1,15 @@
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.Instance;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Properties;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -14,49 +18,217 @@ import java.util.concurrent.TimeUnit;
 public class AwsHorizontalScaling extends AwsScalingHelper {
 
     protected static final String SECURITY_GROUP = "CloudComputingScalingSecurityGroup";
+    private static final String LOAD_GENERATOR_ID = System.getProperty("loadGeneratorAmi", "ami-8ac4e9e0");
+    private static final String DATA_CENTER_ID = System.getProperty("dataCenterAmi", "ami-349fbb5e");
+    private static final double TARGET_RPS = Double.parseDouble(System.getProperty("targetRps", "4000"));
+    private static final long LOG_POLL_SECONDS = 5;
+    //Tag holding the id of the run
+    static final String RUN_TAG = "Run";
 
-    public static void main(String[] args) throws IOException {
-        andrewId = args[0].trim();
-        password = args[1].trim();
-        //Load the Properties File with AWS Credentials
-        Properties properties = new Properties();
-        properties.load(AwsHorizontalScaling.class.getResourceAsStream("./AwsCredentials.properties"));
-        BasicAWSCredentials basicAWSCredentials = new BasicAWSCredentials(properties.getProperty(ACCESS_KEY), properties.getProperty(SECRET_KEY));
-        //Create an Amazon EC2 Client
-        AmazonEC2Client ec2 = new AmazonEC2Client(basicAWSCredentials);
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String andrewId = args[0].trim();
+        String password = args[1].trim();
+        String controllerName = args.length > 2 ? args[2].trim() : "model";
+        ScalingController controller = ScalingController.forName(controllerName, TARGET_RPS);
+        //Create the EC2 client of real AWS, or of the simulator with -Dcloud=sim
+        CloudProvider cloud = CloudProvider.create(AwsHorizontalScaling.class);
+        AmazonEC2 ec2 = cloud.ec2();
+        //Tag everything of this run with its own id, so teardown leaves other runs of the account alone
+        String runId = "horizontal-" + Long.toString(System.currentTimeMillis(), 36);
+        Map<String, String> tags = new LinkedHashMap<>(projectTags());
+        tags.put(RUN_TAG, runId);
+        try {
+            run(cloud, ec2, andrewId, password, controller, controllerName, tags);
+        } finally {
+            //Terminate the load generator, every data center and the warm pool, and delete the security group,
+            //also when the run failed
+            try {
+                new TeardownEngine(cloud, RUN_TAG, runId).run();
+            } finally {
+                cloud.shutdown();
+                Bootstrap.shared().close();
+                Metrics.shared().close();
+            }
+        }
+    }
+
+    private static void run(CloudProvider cloud, AmazonEC2 ec2, String andrewId, String password,
+                            ScalingController controller, String controllerName, Map<String, String> tags)
+            throws IOException, InterruptedException {
         //Create security group "ScalingSecurityGroup"
-        createSecurityGroup(ec2,SECURITY_GROUP);
+        createSecurityGroup(ec2, SECURITY_GROUP, tags);
+        //Plan the data center types and zones from the throughput measured in earlier runs
+        CapacityPlanner planner = CapacityPlanner.fromSystemProperties();
+        CapacityPlanner.Plan plan = planner.plan(TARGET_RPS);
+        System.out.println("Capacity plan: " + plan);
+        Map<String, String> dcTypes = new ConcurrentHashMap<>();
+
+        //Keep booted data centers in reserve, so a scale out takes one instead of waiting for a boot
+        WarmPool pool = WarmPool.fromSystemProperties(ec2, plan, DATA_CENTER_ID, SECURITY_GROUP, tags);
+        //launch load generator and first data center together, so both boot in parallel
+        CompletableFuture<Instance> lgFuture = launchInstances(ec2, runInstancesRequest(LOAD_GENERATOR_ID,
+                SECURITY_GROUP, "m3.medium", "us-east-1a", 1), tags).get(0);
+        CompletableFuture<Instance> dcFuture = plan.launch(ec2, DATA_CENTER_ID, SECURITY_GROUP, 1, tags).get(0);
+        pool.maintain();
+        Instance lg = awaitInstances(Collections.singletonList(lgFuture)).get(0);
+        System.out.println("instance" + lg.getInstanceId() + " is launched");
+        Instance dc = awaitInstances(Collections.singletonList(dcFuture)).get(0);
+        dcTypes.put(getDNS(dc), dc.getInstanceType());
+        System.out.println("instance" + dc.getInstanceId() + " is launched");
 
-        Instance lg = null;
-        List<String> listOfDataCenter = new ArrayList<>();
+        //start the test process
+        startTest(lg, dc, andrewId, password);
+
+        //React to the test log rather than sleeping a minute per step: the log is polled every few seconds,
+        //and each new minute sample and each finished scale out is an event of the run's loop
+        EventLoop loop = new EventLoop("horizontal scaling");
+        //Keep every log snapshot and scale out, for ScalingReplay to try other controllers against
+        Map<String, String> header = new LinkedHashMap<>();
+        header.put("kind", "horizontal");
+        header.put("type", plan.getPrimaryType());
+        header.put("targetRps", String.valueOf(TARGET_RPS));
+        header.put("controller", controllerName);
+        RunRecorder recorder = RunRecorder.open("AwsHorizontalScaling", header, false);
+        ScalingRun run = new ScalingRun(loop, lg, controller, controllerName, pool, dcTypes, recorder);
+        run.dataCenters.add(dc.getInstanceId());
+        //Publish the RPS of the log, in total and per data center, to CloudWatch
+        RpsMetricPublisher publisher = new RpsMetricPublisher(cloud.cloudWatch(), "LoadGenerator",
+                lg.getInstanceId(), null);
+        LogTailer tailer = logTailer(lg);
+        tailer.addListener(sample -> planner.observe(sample, dcTypes));
+        tailer.addListener(recorder);
+        tailer.addListener(publisher);
+        tailer.addListener(loop::post);
+        loop.on(LogSample.class, run::onSample);
+        loop.every(LOG_POLL_SECONDS, TimeUnit.SECONDS, tailer::poll);
+        loop.every(RpsMetricPublisher.PUBLISH_SECONDS, TimeUnit.SECONDS, publisher::flush);
         try {
-            //launch load generator
-            lg = launchInstance(ec2, "ami-8ac4e9e0",SECURITY_GROUP);
-            System.out.println("instance" + lg.getInstanceId() + " is launched");
-            //launch first data center and add to array list
-            Instance dc = launchInstance(ec2, "ami-349fbb5e",SECURITY_GROUP);
-            listOfDataCenter.add(dc.getInstanceId());
-            System.out.println("instance" + dc.getInstanceId() + " is launched");
-
-            //start the test process
-            startTest(lg, dc);
-
-            //If cumulative RPS is less than 4000, launch new data center instance, submit to load balancer.
-            //Wait for 1 minute to refresh test log for RPS.
-            while (monitorRPS(lg) < 4000) {
-                Instance newDc = launchInstance(ec2, "ami-349fbb5e",SECURITY_GROUP);
-                System.out.println("instance" + newDc.getInstanceId() + " is launched");
-                getConnection(addDcUrl(lg, newDc));
-                TimeUnit.SECONDS.sleep(60);
-            }
-        } catch (InterruptedException e) {
-            monitorRPS(lg);
+            loop.await();
+        } finally {
+            recorder.close();
         }
-        terminateInstance(ec2, listOfDataCenter);
+        planner.save();
     }
 
+
     private static String addDcUrl(Instance lg, Instance dc) {
         return "http://" + getDNS(lg) + "/test/horizontal/add?dns=" + getDNS(dc);
     }
 
+    /**
+     * State and handlers of one horizontal scaling test, all run on its event loop.
+     */
+    private static class ScalingRun {
+        private final EventLoop loop;
+        private final Instance lg;
+        private final ScalingController controller;
+        private final String controllerName;
+        private final WarmPool pool;
+        private final Map<String, String> dcTypes;
+        private final RunRecorder recorder;
+        private final List<String> dataCenters = new ArrayList<>();
+        //Latest snapshot of the minute the log is still writing
+        private LogSample pending;
+        private boolean scalingOut;
+
+        ScalingRun(EventLoop loop, Instance lg, ScalingController controller, String controllerName, WarmPool pool,
+                   Map<String, String> dcTypes, RunRecorder recorder) {
+            this.loop = loop;
+            this.lg = lg;
+            this.controller = controller;
+            this.controllerName = controllerName;
+            this.pool = pool;
+            this.dcTypes = dcTypes;
+            this.recorder = recorder;
+        }
+
+        /**
+         * Stop at the target or at the end of the test; otherwise let the controller decide once per finished
+         * minute how many data centers to add, unless a scale out is still on its way. The section of the
+         * minute being written can be cut short, so a minute is decided on its last snapshot, once the next
+         * minute appears.
+         */
+        void onSample(LogSample sample) {
+            if (sample.isTestEnd()) {
+                System.out.println("Test ended below the target");
+                loop.stop();
+                return;
+            }
+            Metrics.shared().gauge("test_rps").set(sample.getTotal());
+            if (sample.getTotal() >= TARGET_RPS) {
+                System.out.println("Target reached: " + sample);
+                loop.stop();
+                return;
+            }
+            LogSample finished = pending;
+            if (finished != null && sample.getMinute() < finished.getMinute()) {
+                return;
+            }
+            pending = sample;
+            if (scalingOut || finished == null || sample.getMinute() == finished.getMinute()) {
+                return;
+            }
+            long decideStart = System.nanoTime();
+            int count = controller.decide(finished, dataCenters.size());
+            Metrics.shared().histogram("scaling_decision_seconds", "controller", controllerName)
+                    .recordNanos(System.nanoTime() - decideStart);
+            if (count == 0) {
+                pool.maintain();
+                return;
+            }
+            //Take the data centers from the warm pool (launching any it lacks) and submit each to the load
+            //generator as soon as it is ready
+            scalingOut = true;
+            recorder.action("scale out", String.valueOf(count));
+            long scaleOutStart = RunClock.now();
+            List<CompletableFuture<Instance>> taken;
+            try {
+                taken = pool.take(count);
+            } catch (RuntimeException e) {
+                System.out.println("Scale out: cannot launch data centers: " + e.getMessage());
+                Metrics.shared().counter("scale_out_failures_total").add(count);
+                recorder.action("scale out failed", String.valueOf(count));
+                scalingOut = false;
+                return;
+            }
+            List<CompletableFuture<Instance>> added = new ArrayList<>();
+            for (CompletableFuture<Instance> ready : taken) {
+                added.add(ready.thenCompose(newDc -> getConnectionAsync(addDcUrl(lg, newDc)).thenApply(code -> newDc)));
+            }
+            //A data center which fails to launch or to join is left out rather than failing the run: the
+            //controller sees fewer data centers and decides again on the next finished minute
+            List<CompletableFuture<Throwable>> outcomes = new ArrayList<>();
+            for (CompletableFuture<Instance> future : added) {
+                outcomes.add(future.handle((newDc, failure) -> failure));
+            }
+            loop.when(CompletableFuture.allOf(outcomes.toArray(new CompletableFuture<?>[0])), all -> {
+                int joined = 0;
+                for (int i = 0; i < added.size(); i++) {
+                    Throwable failure = outcomes.get(i).join();
+                    if (failure != null) {
+                        System.out.println("Scale out: a data center failed to join: "
+                                + (failure instanceof CompletionException ? failure.getCause() : failure));
+                        continue;
+                    }
+                    Instance newDc = added.get(i).join();
+                    dataCenters.add(newDc.getInstanceId());
+                    dcTypes.put(getDNS(newDc), newDc.getInstanceType());
+                    System.out.println("instance" + newDc.getInstanceId() + " is launched");
+                    joined++;
+                }
+                if (joined < count) {
+                    Metrics.shared().counter("scale_out_failures_total").add(count - joined);
+                    recorder.action("scale out failed", String.valueOf(count - joined));
+                }
+                if (joined > 0) {
+                    //Time from the decision until the load generator accepted the new data centers
+                    Metrics.shared().histogram("scale_out_seconds").recordMillis(RunClock.now() - scaleOutStart);
+                    Metrics.shared().counter("data_centers_added_total").add(joined);
+                    recorder.action("data centers added", String.valueOf(joined));
+                }
+                scalingOut = false;
+            });
+        }
+    }
+
 }
@@ -1,15 +1,18 @@
-import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.*;
-import org.ini4j.Ini;
-import org.ini4j.Profile;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -18,53 +21,163 @@ import java.util.concurrent.TimeUnit;
 public class AwsScalingHelper {
     protected static final String ACCESS_KEY = "aws_access_key_id";
     protected static final String SECRET_KEY = "aws_secret_access_key";
-    protected static String andrewId = "";
-    protected static String password = "";
+    protected static final String PROJECT_TAG = "Project";
+    protected static final String PROJECT = "2.1";
+    private static final Map<AmazonEC2, InstanceStatePoller> pollers = new ConcurrentHashMap<>();
+    private static final Map<String, LogTailer> tailers = new ConcurrentHashMap<>();
+    //Launch times of instances still booting, until they serve HTTP, fail to or are terminated
+    private static final Map<String, Long> launchTimes = new ConcurrentHashMap<>();
 
-    protected static Instance launchInstance(AmazonEC2Client ec2, String imageID, String securityGroup)
-            throws IOException, InterruptedException {
+    protected static Instance launchInstance(AmazonEC2 ec2, String imageID, String securityGroup,
+                                             Map<String, String> tags) throws IOException, InterruptedException {
+        return awaitInstances(launchInstances(ec2, runInstancesRequest(imageID, securityGroup, "m3.medium",
+                "us-east-1a", 1), tags)).get(0);
+    }
+
+    /**
+     * Launch a batch of instances with one request and wait for all of them with the shared poller.
+     *
+     * @param ec2           the EC2 client
+     * @param imageID       AMI of the instances
+     * @param securityGroup security group of the instances
+     * @param count         number of instances to launch
+     * @return one future per instance, completed once that instance is running
+     */
+    protected static List<CompletableFuture<Instance>> launchInstances(AmazonEC2 ec2, String imageID,
+                                                                       String securityGroup, int count) {
+        return launchInstances(ec2, runInstancesRequest(imageID, securityGroup, "m3.medium", "us-east-1a", count));
+    }
 
+    /**
+     * Build the request launching a batch of instances of one type in one availability zone.
+     *
+     * @param imageID       AMI of the instances
+     * @param securityGroup security group of the instances
+     * @param type          instance type
+     * @param zone          availability zone
+     * @param count         number of instances
+     */
+    protected static RunInstancesRequest runInstancesRequest(String imageID, String securityGroup, String type,
+                                                             String zone, int count) {
         //Create Instance Request
         RunInstancesRequest runInstancesRequest = new RunInstancesRequest();
         //Set availability zone of the Instance
-        Placement region = new Placement("us-east-1a");
+        Placement region = new Placement(zone);
         runInstancesRequest.setPlacement(region);
         //Configure Instance Request
         runInstancesRequest
                 .withImageId(imageID)
-                .withInstanceType("m3.medium")
-                .withMinCount(1)
-                .withMaxCount(1)
+                .withInstanceType(type)
+                .withMinCount(count)
+                .withMaxCount(count)
                 .withKeyName("Project0")
                 .withSecurityGroups(securityGroup);
+        //Report the boot to the run rather than being polled, where the instances can reach it
+        String userData = Bootstrap.shared().userData();
+        if (userData != null) {
+            runInstancesRequest.withUserData(userData);
+        }
+        return runInstancesRequest;
+    }
 
-        //Launch Instance
+    protected static List<CompletableFuture<Instance>> launchInstances(AmazonEC2 ec2,
+                                                                       RunInstancesRequest runInstancesRequest) {
+        return launchInstances(ec2, runInstancesRequest, projectTags());
+    }
+
+    /**
+     * Launch the instances of a request and wait for all of them with the shared poller.
+     *
+     * @param ec2                 the EC2 client
+     * @param runInstancesRequest the request
+     * @param tags                tags of the new instances
+     * @return one future per instance, completed once that instance is running
+     */
+    protected static List<CompletableFuture<Instance>> launchInstances(AmazonEC2 ec2,
+                                                                       RunInstancesRequest runInstancesRequest,
+                                                                       Map<String, String> tags) {
+        //Launch Instances
+        long launched = RunClock.now();
         RunInstancesResult runInstancesResult = ec2.runInstances(runInstancesRequest);
-        //Return the Object Reference of the Instance just Launched
-        Instance instance = runInstancesResult.getReservation().getInstances().get(0);
-        //Add tag Project:2.1 to the new instance
-        CreateTagsRequest tagsRequest = createTagRequest(instance);
-        ec2.createTags(tagsRequest);
-
-        //Check instance state and update instance object reference.
-        DescribeInstancesRequest describeInstancesRequest = new DescribeInstancesRequest();
-        InstanceState instanceState = instance.getState();
-
-        while (instanceState.getCode() != 16) {
-            TimeUnit.SECONDS.sleep(1);
-            describeInstancesRequest.withInstanceIds(instance.getInstanceId());
-            DescribeInstancesResult describeInstanceResult = ec2.describeInstances(describeInstancesRequest);
-            instance = describeInstanceResult.getReservations().get(0).getInstances().get(0);
-            instanceState = instance.getState();
+        List<Instance> instances = runInstancesResult.getReservation().getInstances();
+        List<String> instanceIds = new ArrayList<>();
+        for (Instance instance : instances) {
+            instanceIds.add(instance.getInstanceId());
+            launchTimes.put(instance.getInstanceId(), launched);
+            if (runInstancesRequest.getUserData() != null) {
+                Bootstrap.shared().expect(instance.getInstanceId(), runInstancesRequest.getImageId(), launched);
+            }
+        }
+        //Add tag Project:2.1 to all new instances at once
+        ec2.createTags(createTagRequest(instanceIds, tags));
+
+        //Wait for every instance through one batched poller
+        InstanceStatePoller poller = statePoller(ec2);
+        List<CompletableFuture<Instance>> futures = new ArrayList<>();
+        for (String instanceId : instanceIds) {
+            futures.add(poller.awaitRunning(instanceId).whenComplete((instance, e) -> {
+                if (e != null) {
+                    //Never running, so never serving either
+                    launchTimes.remove(instanceId);
+                }
+            }).thenApply(instance -> {
+                recordBoot(instance, "running");
+                return instance;
+            }));
+        }
+        return futures;
+    }
+
+    /**
+     * Block until every launched instance is running.
+     *
+     * @param futures futures returned by {@link #launchInstances}
+     * @return the running instances, in launch order
+     */
+    protected static List<Instance> awaitInstances(List<CompletableFuture<Instance>> futures)
+            throws IOException, InterruptedException {
+        List<Instance> instances = new ArrayList<>();
+        try {
+            for (CompletableFuture<Instance> future : futures) {
+                instances.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
         }
-        return instance;
+        return instances;
+    }
+
+    /**
+     * Re-attach to an instance launched by an earlier run.
+     *
+     * @param ec2        the EC2 client
+     * @param instanceId id of the instance
+     * @return the instance once running
+     * @throws RuntimeException if the instance no longer exists or is terminating
+     */
+    protected static Instance reattachInstance(AmazonEC2 ec2, String instanceId) {
+        //Describe once directly, so a missing instance fails at once rather than at the poller deadline
+        ec2.describeInstances(new DescribeInstancesRequest().withInstanceIds(instanceId));
+        return waitFor(statePoller(ec2).awaitRunning(instanceId));
     }
 
-    protected static CreateTagsRequest createTagRequest(Instance instance) {
-        Tag tag = new Tag("Project", "2.1");
+    protected static InstanceStatePoller statePoller(AmazonEC2 ec2) {
+        return pollers.computeIfAbsent(ec2, client -> new InstanceStatePoller(client, StateWatcher.shared()));
+    }
+
+    /**
+     * @return tags of a resource of this project, Project:2.1
+     */
+    protected static Map<String, String> projectTags() {
+        return Collections.singletonMap(PROJECT_TAG, PROJECT);
+    }
+
+    protected static CreateTagsRequest createTagRequest(Collection<String> resourceIds, Map<String, String> tags) {
         CreateTagsRequest tagsRequest = new CreateTagsRequest();
-        tagsRequest.withResources(instance.getInstanceId())
-                .withTags(tag);
+        tagsRequest.withResources(resourceIds);
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            tagsRequest.withTags(new Tag(tag.getKey(), tag.getValue()));
+        }
         return tagsRequest;
     }
 
@@ -72,8 +185,11 @@ public class AwsScalingHelper {
      * Set up security group which opens to all ports.
      *
      * @param amazonEC2Client the EC2 client
+     * @param securityGroup   name of the group
+     * @param tags            tags of the group
      */
-    protected static String createSecurityGroup(AmazonEC2Client amazonEC2Client, String securityGroup) {
+    protected static String createSecurityGroup(AmazonEC2 amazonEC2Client, String securityGroup,
+                                                Map<String, String> tags) {
         CreateSecurityGroupRequest securityGroupRequest = new CreateSecurityGroupRequest();
         securityGroupRequest.withGroupName(securityGroup)
                 .withDescription("Horizontal scaling security group");
@@ -90,29 +206,93 @@ public class AwsScalingHelper {
         authorizeSecurityGroupIngressRequest.withGroupName(securityGroup)
                 .withIpPermissions(ipPermission);
         amazonEC2Client.authorizeSecurityGroupIngress(authorizeSecurityGroupIngressRequest);
+        //Add tag Project:2.1, so teardown can find the group
+        amazonEC2Client.createTags(createTagRequest(Collections.singletonList(result.getGroupId()), tags));
         return result.getGroupId();
     }
 
+    /**
+     * Record the time from launch to a boot phase of an instance launched by this process.
+     *
+     * @param instance the instance
+     * @param phase    {@code running} once in state 16, {@code http} once its web server answered 200; the
+     *                 {@code booted} and {@code ready} phases the instance reports are recorded by {@link Bootstrap}
+     */
+    protected static void recordBoot(Instance instance, String phase) {
+        //The first answer ends the boot; a restarted instance is not timed again
+        Long launched = phase.equals("http") ? launchTimes.remove(instance.getInstanceId())
+                : launchTimes.get(instance.getInstanceId());
+        if (launched != null) {
+            Metrics.shared().histogram("instance_boot_seconds", "image", instance.getImageId() == null ? ""
+                    : instance.getImageId(), "phase", phase).recordMillis(RunClock.now() - launched);
+        }
+    }
+
+    /**
+     * Wait until an instance launched with the boot script reports its web server up.
+     *
+     * @param instance a running instance
+     * @return future completed with the instance once it reported, at once if it does not report
+     */
+    protected static CompletableFuture<Instance> awaitBooted(Instance instance) {
+        return Bootstrap.shared().awaitReady(instance.getInstanceId()).thenApply(reported -> instance);
+    }
+
+    /**
+     * Wait until the web server of an instance answers 200, asking it once it reported its boot.
+     *
+     * @param instance a running instance
+     * @return future completed with the instance once it serves HTTP
+     */
+    protected static CompletableFuture<Instance> awaitServing(Instance instance) {
+        return awaitBooted(instance).thenCompose(booted -> getConnectionAsync("http://" + getDNS(instance) + "/"))
+                .whenComplete((code, e) -> {
+                    if (e != null) {
+                        launchTimes.remove(instance.getInstanceId());
+                    }
+                })
+                .thenApply(code -> {
+                    recordBoot(instance, "http");
+                    return instance;
+                });
+    }
+
     /**
      * Connect to the URL by submitting http request
      *
      * @param link linkage of the URL
      */
     protected static void getConnection(String link) {
-        while (true) {
-            try {
-                URL url = new URL(link);
-                HttpURLConnection connection;
-                int responseCode = 0;
-                while (responseCode != 200) {
-                    TimeUnit.SECONDS.sleep(5);
-                    connection = (HttpURLConnection) url.openConnection();
-                    responseCode = connection.getResponseCode();
-                }
-                break;
-            } catch (IOException | InterruptedException e) {
-                System.out.println("Wait...");;
-            }
+        waitFor(getConnectionAsync(link));
+    }
+
+    /**
+     * Connect to the URL until it answers 200, without blocking the caller.
+     *
+     * @param link linkage of the URL
+     * @return future completed once the URL answered 200
+     */
+    protected static CompletableFuture<Integer> getConnectionAsync(String link) {
+        //The calls run on the threads of the HTTP client, so a slow instance does not hold up the watcher
+        return StateWatcher.shared().awaitAsync("GET " + link,
+                () -> HttpControlClient.shared().getAsync(link).thenApply(HttpControlClient.Response::getCode),
+                code -> code == 200, StateWatcher.Backoff.http());
+    }
+
+    /**
+     * Block on a future registered with the {@link StateWatcher}.
+     *
+     * @param future the future to wait on
+     * @return the value it completed with
+     */
+    protected static <T> T waitFor(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
         }
     }
 
@@ -121,19 +301,25 @@ public class AwsScalingHelper {
      *
      * @param lg the load generator instance
      * @param dc the first data center instance
+     * @param andrewId andrewId of the test
+     * @param password password of the test
      */
-    protected static void startTest(Instance lg, Instance dc) {
-        String credentialUrl = submitCredentialUrl(lg);
+    protected static void startTest(Instance lg, Instance dc, String andrewId, String password) {
+        String credentialUrl = submitCredentialUrl(lg, andrewId, password);
+        waitFor(awaitBooted(lg));
         getConnection(credentialUrl);
+        recordBoot(lg, "http");
         String startTestUrl = startTestUrl(lg, dc);
+        waitFor(awaitBooted(dc));
         getConnection(startTestUrl);
+        recordBoot(dc, "http");
     }
 
     protected static String getDNS(Instance instance) {
         return instance.getPublicDnsName();
     }
 
-    protected static String submitCredentialUrl(Instance lg) {
+    protected static String submitCredentialUrl(Instance lg, String andrewId, String password) {
         return "http://" + getDNS(lg) + "/password?passwd=" + password + "&andrewId=" +
                 andrewId;
     }
@@ -142,9 +328,17 @@ public class AwsScalingHelper {
         return "http://" + getDNS(lg) + "/test/horizontal?dns=" + getDNS(dc);
     }
 
-    protected static void terminateInstance(AmazonEC2Client ec2, List<String> instanceIds) {
+    protected static void terminateInstance(AmazonEC2 ec2, List<String> instanceIds) {
         TerminateInstancesRequest tir = new TerminateInstancesRequest(instanceIds);
         ec2.terminateInstances(tir);
+        forgetLaunches(instanceIds);
+    }
+
+    /**
+     * Stop timing the boot of instances which are terminated before they served HTTP.
+     */
+    static void forgetLaunches(Collection<String> instanceIds) {
+        launchTimes.keySet().removeAll(instanceIds);
     }
 
     /**
@@ -154,54 +348,24 @@ public class AwsScalingHelper {
      * @return the input stream from the URL
      */
     protected static InputStream getInputStream(String link) {
-        while (true) {
-            try {
-                URL url = new URL(link);
-                InputStream input = url.openStream();
-                while (input == null) {
-                    TimeUnit.SECONDS.sleep(5);
-                    input = url.openStream();
-                }
-                return input;
-            } catch (IOException | InterruptedException e) {
-                throw new RuntimeException(e);
-            }
-        }
+        return waitFor(StateWatcher.shared().awaitAsync("GET " + link, () -> HttpControlClient.shared().getAsync(link),
+                response -> response.getCode() == 200, StateWatcher.Backoff.http())).getStream();
     }
 
-        /**
-         * Read cumulative RPS from system log.
-         *
-         * @param lg the load generator instance
-         * @return current cumulative RPS
-         * @throws IOException
-         */
-
-    static double monitorRPS(Instance lg) throws IOException {
-        try {
-            TimeUnit.SECONDS.sleep(1);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        String logName = getLogName(lg);
-        double cumulativeRPS = 0;
-        String logLink = String.format("http://%s/log?name=%s", getDNS(lg), logName);
-        Ini ini = new Ini(getInputStream(logLink));
-        for (String sectionName : ini.keySet()) {
-            if (sectionName.startsWith("Minute")) {
-                cumulativeRPS = 0;
-                Profile.Section section = ini.get(sectionName);
-
-                for (String optionKey : section.keySet()) {
-                    cumulativeRPS += Double.parseDouble(section.get(optionKey));
-                }
-            }
-        }
-        return cumulativeRPS;
+    /**
+     * @param lg the load generator instance
+     * @return the tailer of the current test log of the load generator, created on first use
+     */
+    protected static LogTailer logTailer(Instance lg) {
+        return tailers.computeIfAbsent(getDNS(lg), LogTailer::new);
     }
 
     protected static String getLogName(Instance lg) throws IOException {
-        String logLink = String.format("http://%s/log", getDNS(lg));
+        return getLogName(getDNS(lg));
+    }
+
+    protected static String getLogName(String lgDns) throws IOException {
+        String logLink = String.format("http://%s/log", lgDns);
         try (Scanner reader = new Scanner(new InputStreamReader(getInputStream(logLink)))) {
             String[] line = reader.nextLine().split("log\\?name=");
             String log = line[1].substring(0, 22);
@@ -0,0 +1,212 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Boot signalling of the instances the runs launch. Launch requests carry a generated user-data script
+ * which reports to a local HTTP endpoint once the instance has booted ({@code booted}) and once its web
+ * server answers on the instance ({@code ready}), so the run reacts to the report rather than polling the
+ * instance every few seconds. Each phase is timed from the launch into {@code instance_boot_seconds}, next
+ * to the {@code running} and {@code http} phases the run observes itself.
+ * <p>
+ * Instances must reach the endpoint: {@code -Dbootstrap.host} is the address they report to (the simulator
+ * defaults it to 127.0.0.1) and {@code -Dbootstrap.port} its port (default any free one). The endpoint listens
+ * on that address only, or on {@code -Dbootstrap.bind} when the host is a NAT address, and the callback path
+ * carries a random token of the run, so reports from anything else are refused. Without a host the instances
+ * launch without user data and are polled as before. An instance which has not reported after
+ * {@code -Dbootstrap.timeoutSeconds} (default 600) is polled too.
+ */
+public class Bootstrap {
+    public static final String CALLBACK_PATH = "/boot";
+    private static final String HOST = System.getProperty("bootstrap.host",
+            "sim".equals(System.getProperty("cloud")) ? "127.0.0.1" : "");
+    private static final String BIND = System.getProperty("bootstrap.bind", HOST);
+    private static final int PORT = Integer.getInteger("bootstrap.port", 0);
+    private static final long TIMEOUT_SECONDS = Long.getLong("bootstrap.timeoutSeconds", 600);
+    private static Bootstrap shared;
+
+    //Instances launched with the script which have not reported ready yet
+    private final Map<String, Launch> expected = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "bootstrap-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private HttpServer server;
+    private String userData;
+    private volatile String token;
+
+    public static synchronized Bootstrap shared() {
+        if (shared == null) {
+            shared = new Bootstrap();
+        }
+        return shared;
+    }
+
+    /**
+     * @return the base64 user data of the instances, starting the endpoint on first use, or null if the
+     * instances cannot report
+     */
+    public synchronized String userData() {
+        if (HOST.isEmpty()) {
+            return null;
+        }
+        if (userData == null) {
+            try {
+                server = HttpServer.create(new InetSocketAddress(BIND, PORT), 0);
+            } catch (IOException e) {
+                System.out.println("Boot reports disabled, cannot listen on " + BIND + ":" + PORT + ": "
+                        + e.getMessage());
+                return null;
+            }
+            token = newToken();
+            server.createContext(CALLBACK_PATH, this::handle);
+            server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "bootstrap-http");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            server.start();
+            String callback = "http://" + HOST + ":" + server.getAddress().getPort() + CALLBACK_PATH + "/" + token;
+            System.out.println("Instances report their boot to http://" + HOST + ":" + server.getAddress().getPort()
+                    + CALLBACK_PATH);
+            userData = Base64.getEncoder().encodeToString(script(callback).getBytes(StandardCharsets.UTF_8));
+        }
+        return userData;
+    }
+
+    /**
+     * @return 128 random bits in hex, new for every endpoint
+     */
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return the user-data script reporting to the callback URL
+     */
+    static String script(String callback) {
+        return "#!/bin/bash\n"
+                + "CALLBACK=" + callback + "\n"
+                + "ID=$(curl -s http://169.254.169.254/latest/meta-data/instance-id)\n"
+                + "curl -s -m 5 \"$CALLBACK?id=$ID&phase=booted\" || true\n"
+                + "until curl -s -f -o /dev/null -m 2 http://localhost/; do sleep 1; done\n"
+                + "curl -s -m 5 \"$CALLBACK?id=$ID&phase=ready\" || true\n";
+    }
+
+    /**
+     * Expect the reports of an instance launched with the user data.
+     *
+     * @param launched run time of the launch request
+     */
+    public void expect(String instanceId, String imageId, long launched) {
+        expected.putIfAbsent(instanceId, new Launch(imageId, launched));
+    }
+
+    /**
+     * @return future completed once the instance reported ready, or at once if no report is expected. After
+     * the timeout it completes anyway, for the caller to fall back to polling.
+     */
+    public CompletableFuture<Void> awaitReady(String instanceId) {
+        Launch launch = expected.get(instanceId);
+        if (launch == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        timeouts.schedule(() -> {
+            if (launch.ready.complete(null)) {
+                expected.remove(instanceId);
+                System.out.println(instanceId + " did not report its boot, polling it instead");
+            }
+        }, RunClock.realMillis(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS)), TimeUnit.MILLISECONDS);
+        return launch.ready;
+    }
+
+    /**
+     * Stop the endpoint.
+     */
+    public synchronized void close() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+            userData = null;
+            token = null;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String expectedPath = CALLBACK_PATH + "/" + token;
+        if (!MessageDigest.isEqual(expectedPath.getBytes(StandardCharsets.UTF_8),
+                exchange.getRequestURI().getRawPath().getBytes(StandardCharsets.UTF_8))) {
+            //Not one of our instances: no token, or the token of another run
+            Metrics.shared().counter("boot_reports_refused_total").inc();
+            exchange.sendResponseHeaders(403, -1);
+            exchange.close();
+            return;
+        }
+        Map<String, String> query = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        for (String pair : raw == null ? new String[0] : raw.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                query.put(pair.substring(0, equals), pair.substring(equals + 1));
+            }
+        }
+        report(query.getOrDefault("id", ""), query.getOrDefault("phase", ""));
+        byte[] body = "OK".getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    private void report(String instanceId, String phase) {
+        Launch launch = expected.get(instanceId);
+        if (launch == null || !(phase.equals("booted") || phase.equals("ready"))) {
+            return;
+        }
+        long millis = RunClock.now() - launch.launched;
+        Metrics.shared().histogram("instance_boot_seconds", "image", launch.imageId, "phase", phase)
+                .recordMillis(millis);
+        if (phase.equals("booted")) {
+            launch.booted = millis;
+            return;
+        }
+        expected.remove(instanceId);
+        if (launch.ready.complete(null)) {
+            System.out.println(String.format("%s reported ready %.1f s after launch%s", instanceId, millis / 1000.0,
+                    launch.booted < 0 ? "" : String.format(" (booted at %.1f s)", launch.booted / 1000.0)));
+        }
+    }
+
+    private static class Launch {
+        private final String imageId;
+        private final long launched;
+        private final CompletableFuture<Void> ready = new CompletableFuture<>();
+        private volatile long booted = -1;
+
+        Launch(String imageId, long launched) {
+            this.imageId = imageId == null ? "" : imageId;
+            this.launched = launched;
+        }
+    }
+}
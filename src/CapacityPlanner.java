@@ -0,0 +1,375 @@
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.Instance;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the instance types and availability zones of the data centers from a throughput and cost profile
+ * of each type. Throughputs start as estimates scaled from the compute units of an m3.medium and are
+ * replaced by the per data center RPS of earlier runs' minute logs, kept in the profile file between runs.
+ */
+public class CapacityPlanner {
+    private static final double M3_MEDIUM_RPS = 850;
+    //Type, on-demand Linux price per hour in us-east-1, EC2 compute units relative to an m3.medium
+    private static final Object[][] CATALOG = {
+            {"m3.medium", 0.067, 1.0},
+            {"m3.large", 0.133, 6.5 / 3},
+            {"c3.large", 0.105, 7.0 / 3},
+    };
+
+    private final Path profilePath;
+    private final Map<String, Profile> profiles = new LinkedHashMap<>();
+    private final List<String> types;
+    private final List<String> zones;
+    //Latest snapshot of the minute the log is still writing
+    private LogSample pending;
+
+    /**
+     * @param profilePath file of measured profiles, read if it exists
+     * @param types       instance types to plan with
+     * @param zones       availability zones to spread the data centers over
+     */
+    public CapacityPlanner(Path profilePath, List<String> types, List<String> zones) throws IOException {
+        this.profilePath = profilePath;
+        this.types = types;
+        this.zones = zones;
+        Properties stored = new Properties();
+        if (Files.exists(profilePath)) {
+            try (InputStream in = Files.newInputStream(profilePath)) {
+                stored.load(in);
+            }
+        }
+        for (Object[] entry : CATALOG) {
+            String type = (String) entry[0];
+            profiles.put(type, new Profile(type, (Double) entry[1], M3_MEDIUM_RPS * (Double) entry[2], 0));
+        }
+        Set<String> planned = new LinkedHashSet<>(profiles.keySet());
+        planned.addAll(types);
+        for (String type : planned) {
+            Profile known = profiles.get(type);
+            String cost = stored.getProperty(type + ".cost", known == null ? null : String.valueOf(known.hourlyCost));
+            String rps = stored.getProperty(type + ".rps", known == null ? null : String.valueOf(known.rps));
+            if (cost == null || rps == null) {
+                throw new IllegalArgumentException("No cost and RPS known for instance type " + type);
+            }
+            profiles.put(type, new Profile(type, Double.parseDouble(cost), Double.parseDouble(rps),
+                    Long.parseLong(stored.getProperty(type + ".samples", "0"))));
+        }
+    }
+
+    /**
+     * Create the planner configured by the {@code capacity.*} system properties: {@code profile} (default
+     * {@code capacity.properties}), {@code types} (m3.medium,m3.large,c3.large) and {@code zones}
+     * (us-east-1a,us-east-1b,us-east-1c).
+     */
+    public static CapacityPlanner fromSystemProperties() throws IOException {
+        return new CapacityPlanner(Paths.get(System.getProperty("capacity.profile", "capacity.properties")),
+                Arrays.asList(System.getProperty("capacity.types", "m3.medium,m3.large,c3.large").split(",")),
+                Arrays.asList(System.getProperty("capacity.zones", "us-east-1a,us-east-1b,us-east-1c").split(",")));
+    }
+
+    /**
+     * Plan the cheapest fleet reaching the target: as many instances of the best RPS per dollar type as
+     * fit under it, and the remainder covered by whichever type covers it for the least money.
+     *
+     * @param targetRps cumulative RPS to reach
+     */
+    public Plan plan(double targetRps) {
+        return plan(targetRps, types);
+    }
+
+    /**
+     * Plan with a subset of the types, such as one type per stack of a test matrix.
+     *
+     * @param targetRps cumulative RPS to reach
+     * @param types     types to plan with, each in the catalog or the profile file
+     */
+    public synchronized Plan plan(double targetRps, List<String> types) {
+        List<Profile> candidates = new ArrayList<>();
+        for (String type : types) {
+            Profile profile = profiles.get(type);
+            if (profile == null) {
+                throw new IllegalArgumentException("No cost and RPS known for instance type " + type);
+            }
+            candidates.add(profile);
+        }
+        candidates.sort(Comparator.comparingDouble(Profile::rpsPerDollar).reversed());
+        Profile best = candidates.get(0);
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        int full = (int) (targetRps / best.rps);
+        if (full > 0) {
+            counts.put(best.type, full);
+        }
+        double remainder = targetRps - full * best.rps;
+        if (remainder > 0 || full == 0) {
+            Profile cheapest = null;
+            int cheapestCount = 0;
+            for (Profile candidate : candidates) {
+                int count = Math.max(1, (int) Math.ceil(remainder / candidate.rps));
+                if (cheapest == null || count * candidate.hourlyCost < cheapestCount * cheapest.hourlyCost) {
+                    cheapest = candidate;
+                    cheapestCount = count;
+                }
+            }
+            counts.merge(cheapest.type, cheapestCount, Integer::sum);
+        }
+        double rps = 0;
+        double cost = 0;
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            rps += count.getValue() * profiles.get(count.getKey()).rps;
+            cost += count.getValue() * profiles.get(count.getKey()).hourlyCost;
+        }
+        return new Plan(targetRps, best, counts, zones, rps, cost,
+                Math.max(1, (int) Math.ceil(targetRps / best.rps)));
+    }
+
+    /**
+     * A fleet of a given size of one type, not sized for a target, such as the group of the junior test.
+     *
+     * @param type  instance type, in the catalog or the profile file
+     * @param size  number of instances
+     * @param zones availability zones to spread them over
+     */
+    public synchronized Plan fixed(String type, int size, List<String> zones) {
+        Profile profile = profiles.get(type);
+        if (profile == null) {
+            throw new IllegalArgumentException("No cost and RPS known for instance type " + type);
+        }
+        return new Plan(size * profile.rps, profile, Collections.singletonMap(type, size), zones,
+                size * profile.rps, size * profile.hourlyCost, size);
+    }
+
+    /**
+     * @return throughput and cost of an instance type, or null for a type neither in the catalog nor measured
+     */
+    public synchronized Profile profile(String type) {
+        return profiles.get(type);
+    }
+
+    /**
+     * Fold the per data center RPS of each finished minute into the profiles of the data centers' types. The
+     * log republishes the minute it is still writing, so a minute is only folded, once, when a later one or
+     * the Test End arrives.
+     *
+     * @param sample    a sample of the load generator log
+     * @param typeByDns instance type of each data center by public DNS name
+     */
+    public synchronized void observe(LogSample sample, Map<String, String> typeByDns) {
+        if (sample.isTestEnd()) {
+            if (pending != null) {
+                fold(pending, typeByDns);
+                pending = null;
+            }
+            return;
+        }
+        if (sample.getMinute() < 0 || pending != null && sample.getMinute() < pending.getMinute()) {
+            return;
+        }
+        if (pending != null && sample.getMinute() > pending.getMinute()) {
+            fold(pending, typeByDns);
+        }
+        pending = sample;
+    }
+
+    private void fold(LogSample sample, Map<String, String> typeByDns) {
+        for (Map.Entry<String, Double> value : sample.getValues().entrySet()) {
+            Profile profile = profiles.get(typeByDns.get(value.getKey()));
+            if (profile != null && value.getValue() > 0) {
+                //Running mean, in which the catalog estimate (0 samples) is replaced by the first measurement
+                profile.rps = (profile.rps * profile.samples + value.getValue()) / (profile.samples + 1);
+                profile.samples++;
+            }
+        }
+    }
+
+    /**
+     * Write the profiles, with the measurements of this run, for later runs to plan with.
+     */
+    public synchronized void save() throws IOException {
+        Properties stored = new Properties();
+        for (Profile profile : profiles.values()) {
+            stored.setProperty(profile.type + ".cost", String.valueOf(profile.hourlyCost));
+            stored.setProperty(profile.type + ".rps", String.format("%.1f", profile.rps));
+            stored.setProperty(profile.type + ".samples", String.valueOf(profile.samples));
+        }
+        try (OutputStream out = Files.newOutputStream(profilePath)) {
+            stored.store(out, "RPS per data center measured from minute logs, cost in dollars per hour");
+        }
+        System.out.println("Capacity profiles saved to " + profilePath + ": " + profiles.values());
+    }
+
+    /**
+     * Throughput and cost of one instance type.
+     */
+    public static class Profile {
+        private final String type;
+        private final double hourlyCost;
+        private double rps;
+        private long samples;
+
+        Profile(String type, double hourlyCost, double rps, long samples) {
+            this.type = type;
+            this.hourlyCost = hourlyCost;
+            this.rps = rps;
+            this.samples = samples;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public double getRps() {
+            return rps;
+        }
+
+        public double getHourlyCost() {
+            return hourlyCost;
+        }
+
+        double rpsPerDollar() {
+            return rps / hourlyCost;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %.0f rps $%.3f/h (%d samples)", type, rps, hourlyCost, samples);
+        }
+    }
+
+    /**
+     * Instance mix and zone spread for a target RPS, and the requests that launch it.
+     */
+    public static class Plan {
+        private final double targetRps;
+        private final Profile primary;
+        private final Map<String, Integer> counts;
+        private final List<String> zones;
+        private final double rps;
+        private final double hourlyCost;
+        private final int primarySize;
+        private final AtomicInteger nextZone = new AtomicInteger();
+        private final AtomicInteger launched = new AtomicInteger();
+
+        Plan(double targetRps, Profile primary, Map<String, Integer> counts, List<String> zones, double rps,
+             double hourlyCost, int primarySize) {
+            this.targetRps = targetRps;
+            this.primary = primary;
+            this.counts = Collections.unmodifiableMap(counts);
+            this.zones = Collections.unmodifiableList(zones);
+            this.rps = rps;
+            this.hourlyCost = hourlyCost;
+            this.primarySize = primarySize;
+        }
+
+        /**
+         * @return the type with the most RPS per dollar, for fleets of a single type
+         */
+        public String getPrimaryType() {
+            return primary.type;
+        }
+
+        /**
+         * @return number of instances per type
+         */
+        public Map<String, Integer> getCounts() {
+            return counts;
+        }
+
+        public List<String> getZones() {
+            return zones;
+        }
+
+        /**
+         * @return instances of the primary type alone needed to reach the target, the size of a single type group
+         */
+        public int getPrimarySize() {
+            return primarySize;
+        }
+
+        /**
+         * Launch data centers, each of the next planned type (the primary type once the plan is used up) and
+         * in the next zone round robin. A zone short of capacity for a type is skipped for the next one rather
+         * than failing the launch.
+         *
+         * @param ec2           the EC2 client
+         * @param imageId       AMI of the instances
+         * @param securityGroup security group of the instances
+         * @param count         number of data centers
+         * @param tags          tags of the data centers
+         * @return one future per data center, completed once it is running
+         */
+        public List<CompletableFuture<Instance>> launch(AmazonEC2 ec2, String imageId, String securityGroup,
+                                                        int count, Map<String, String> tags) {
+            //One RunInstances request per type and zone
+            Map<String, int[]> perZone = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                int[] zoneCounts = perZone.computeIfAbsent(typeOf(launched.getAndIncrement()), type -> new int[zones.size()]);
+                zoneCounts[Math.floorMod(nextZone.getAndIncrement(), zones.size())]++;
+            }
+            List<CompletableFuture<Instance>> futures = new ArrayList<>();
+            for (Map.Entry<String, int[]> type : perZone.entrySet()) {
+                for (int z = 0; z < zones.size(); z++) {
+                    if (type.getValue()[z] > 0) {
+                        futures.addAll(launchInZone(ec2, imageId, securityGroup, type.getKey(), z, type.getValue()[z],
+                                tags));
+                    }
+                }
+            }
+            return futures;
+        }
+
+        private String typeOf(int index) {
+            for (Map.Entry<String, Integer> count : counts.entrySet()) {
+                if (index < count.getValue()) {
+                    return count.getKey();
+                }
+                index -= count.getValue();
+            }
+            return primary.type;
+        }
+
+        private List<CompletableFuture<Instance>> launchInZone(AmazonEC2 ec2, String imageId, String securityGroup,
+                                                               String type, int zone, int count,
+                                                               Map<String, String> tags) {
+            AmazonServiceException shortfall = null;
+            for (int tried = 0; tried < zones.size(); tried++) {
+                String name = zones.get((zone + tried) % zones.size());
+                try {
+                    return AwsScalingHelper.launchInstances(ec2,
+                            AwsScalingHelper.runInstancesRequest(imageId, securityGroup, type, name, count), tags);
+                } catch (AmazonServiceException e) {
+                    if (!"InsufficientInstanceCapacity".equals(e.getErrorCode())) {
+                        throw e;
+                    }
+                    System.out.println("No " + type + " capacity in " + name + ", trying the next zone");
+                    shortfall = e;
+                }
+            }
+            throw shortfall;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s over %s: %.0f rps for $%.3f/h (target %.0f)", counts, zones, rps, hourlyCost,
+                    targetRps);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+import com.amazonaws.services.autoscaling.AmazonAutoScaling;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancing;
+
+import java.io.IOException;
+
+/**
+ * Source of the four service clients a scaling run talks to. The run is the same against
+ * real AWS and against the in-process {@link SimulatedCloud}.
+ */
+public interface CloudProvider {
+
+    AmazonEC2 ec2();
+
+    AmazonElasticLoadBalancing elb();
+
+    AmazonAutoScaling autoScaling();
+
+    AmazonCloudWatch cloudWatch();
+
+    /**
+     * Release clients, servers and threads of the provider.
+     */
+    void shutdown();
+
+    /**
+     * Create the provider selected by the {@code cloud} system property: {@code aws} (default) loads the
+     * credentials next to the given class, {@code sim} starts a simulator on an accelerated clock
+     * ({@code simSpeedup}, default 600). Its clients are instrumented by {@link Metrics} and paced by an
+     * {@link ApiRateLimiter}.
+     *
+     * @param main class next to which AwsCredentials.properties lives
+     */
+    static CloudProvider create(Class<?> main) throws IOException {
+        CloudProvider cloud;
+        if ("sim".equals(System.getProperty("cloud"))) {
+            RunClock.accelerate(Double.parseDouble(System.getProperty("simSpeedup", "600")));
+            cloud = SimulatedCloud.start(SimulatedCloud.Config.fromSystemProperties());
+        } else {
+            cloud = AwsCloudProvider.fromCredentials(main);
+        }
+        Metrics.shared().exportFromSystemProperties();
+        return ApiRateLimiter.fromSystemProperties().wrap(Metrics.shared().instrument(cloud));
+    }
+}
@@ -0,0 +1,237 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Event-driven orchestration of one scaling run. Sources (log polls, alarm polls, instance futures,
+ * timers) post events; the handlers registered for an event's class react to it at once. The events of
+ * one loop are handled one at a time, so handlers share state with each other without locking. Sources
+ * run concurrently with the handlers, so state they share with handlers needs locking, or is better
+ * posted as an event.
+ * <p>
+ * Sources and handlers block on AWS and HTTP calls, so they run on a shared pool of I/O threads which
+ * grows with the work. The loops of several runs only share the scheduler of their timers, of
+ * {@code eventLoop.threads} (default 1) threads, which never blocks. Periods and delays are in
+ * {@link RunClock} time.
+ */
+public class EventLoop {
+    private static final ScheduledExecutorService TIMERS = Executors.newScheduledThreadPool(
+            Integer.getInteger("eventLoop.threads", 1), r -> {
+                Thread thread = new Thread(r, "event-loop-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final ExecutorService IO = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "event-loop-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+    private final ScheduledExecutorService scheduler;
+    private final Executor io;
+    private final Map<Class<?>, List<Handler<Object>>> handlers = new ConcurrentHashMap<>();
+    private final Queue<Object> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final List<ScheduledFuture<?>> sources = new CopyOnWriteArrayList<>();
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    /**
+     * @param name name of the run, used in log messages
+     */
+    public EventLoop(String name) {
+        this(name, TIMERS, IO);
+    }
+
+    /**
+     * @param scheduler fires the timers, and must not be blocked
+     * @param io        runs the sources and handlers
+     */
+    public EventLoop(String name, ScheduledExecutorService scheduler, Executor io) {
+        this.name = name;
+        this.scheduler = scheduler;
+        this.io = io;
+    }
+
+    /**
+     * Handle every event of a class, or of its subclasses, posted to this loop. A handler which throws
+     * fails the loop.
+     */
+    @SuppressWarnings("unchecked")
+    public <E> void on(Class<E> type, Handler<? super E> handler) {
+        handlers.computeIfAbsent(type, key -> new CopyOnWriteArrayList<>()).add((Handler<Object>) handler);
+    }
+
+    /**
+     * Queue an event for the handlers of its class. Safe to call from any thread.
+     */
+    public void post(Object event) {
+        if (done.isDone()) {
+            return;
+        }
+        queue.add(event);
+        if (draining.compareAndSet(false, true)) {
+            io.execute(this::drain);
+        }
+    }
+
+    /**
+     * Run an action on the loop, serialized with the handlers.
+     */
+    public void run(Action action) {
+        post(action);
+    }
+
+    /**
+     * Run a source every period from now on, until the loop stops. The source runs on an I/O thread, outside
+     * the handlers. A source which throws, such as a log poll before the log exists, is logged and run again
+     * next period.
+     *
+     * @param period delay between the end of one run and the start of the next
+     * @param unit   unit of the period
+     * @param source usually a poll which posts events
+     */
+    public void every(long period, TimeUnit unit, Action source) {
+        repeat(source, 0, RunClock.realMillis(unit.toMillis(period)));
+    }
+
+    private void repeat(Action source, long delayMillis, long periodMillis) {
+        if (done.isDone()) {
+            return;
+        }
+        sources.removeIf(ScheduledFuture::isDone);
+        sources.add(scheduler.schedule(() -> io.execute(() -> {
+            if (done.isDone()) {
+                return;
+            }
+            try {
+                source.run();
+            } catch (Exception e) {
+                System.out.println(name + ": source failed, retrying next period: " + e.getMessage());
+            }
+            repeat(source, periodMillis, periodMillis);
+        }), delayMillis, TimeUnit.MILLISECONDS));
+        //A stop between the check and the add would otherwise leave the source scheduled
+        if (done.isDone()) {
+            cancelSources();
+        }
+    }
+
+    /**
+     * Run an action on the loop once a delay has passed.
+     */
+    public void after(long delay, TimeUnit unit, Action action) {
+        sources.add(scheduler.schedule(() -> post(action), RunClock.realMillis(unit.toMillis(delay)),
+                TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Handle the value of a future on the loop once it completes, such as an instance becoming ready. A
+     * future which fails fails the loop.
+     */
+    public <T> void when(CompletableFuture<T> future, Handler<? super T> handler) {
+        future.whenComplete((value, failure) -> {
+            if (failure != null) {
+                fail(failure instanceof CompletionException ? failure.getCause() : failure);
+            } else {
+                post((Action) () -> handler.handle(value));
+            }
+        });
+    }
+
+    /**
+     * End the run: sources stop and queued events are dropped.
+     */
+    public void stop() {
+        if (done.complete(null)) {
+            cancelSources();
+        }
+    }
+
+    public void fail(Throwable failure) {
+        if (done.completeExceptionally(failure)) {
+            cancelSources();
+        }
+    }
+
+    /**
+     * Block until the loop stops.
+     *
+     * @throws IOException if a handler, source future or action failed the loop
+     */
+    public void await() throws IOException, InterruptedException {
+        try {
+            done.get();
+        } catch (ExecutionException e) {
+            throw new IOException(name + " failed", e.getCause());
+        }
+    }
+
+    private void cancelSources() {
+        for (ScheduledFuture<?> source : sources) {
+            source.cancel(false);
+        }
+        queue.clear();
+    }
+
+    private void drain() {
+        try {
+            Object event;
+            while (!done.isDone() && (event = queue.poll()) != null) {
+                dispatch(event);
+            }
+        } finally {
+            draining.set(false);
+            //An event posted between the last poll and the reset would otherwise wait for the next post
+            if (!queue.isEmpty() && !done.isDone() && draining.compareAndSet(false, true)) {
+                io.execute(this::drain);
+            }
+        }
+    }
+
+    private void dispatch(Object event) {
+        try {
+            if (event instanceof Action) {
+                ((Action) event).run();
+                return;
+            }
+            for (Map.Entry<Class<?>, List<Handler<Object>>> entry : handlers.entrySet()) {
+                if (entry.getKey().isInstance(event)) {
+                    for (Handler<Object> handler : entry.getValue()) {
+                        handler.handle(event);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Reacts to one event.
+     */
+    public interface Handler<E> {
+        void handle(E event) throws Exception;
+    }
+
+    /**
+     * Work run on the loop or by a source.
+     */
+    public interface Action {
+        void run() throws Exception;
+    }
+}
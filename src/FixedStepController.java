@@ -0,0 +1,18 @@
+/**
+ * Adds a fixed number of data centers per iteration while below the target.
+ */
+public class FixedStepController implements ScalingController {
+    private final double target;
+    private final int step;
+
+    public FixedStepController(double target, int step) {
+        this.target = target;
+        this.step = step;
+    }
+
+    @Override
+    public int decide(LogSample sample, int dataCenters) {
+        double rps = sample == null ? 0 : sample.getTotal();
+        return rps < target ? step : 0;
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP client for the control calls to the load generator and data centers. Every response body is
+ * read to the end and closed, so the JDK keep-alive cache can hand the socket to the next call to the
+ * same host, and every call is bounded by connect and read timeouts.
+ */
+public class HttpControlClient {
+    private static final int MAX_IDLE_PER_HOST = 8;
+    private static final HttpControlClient SHARED;
+
+    static {
+        //Size of the JDK keep-alive cache per destination, unless set on the command line
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_PER_HOST));
+        }
+        SHARED = new HttpControlClient(5000, 30000, 8);
+    }
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final ExecutorService executor;
+
+    /**
+     * @param connectTimeout connect timeout in milliseconds
+     * @param readTimeout    read timeout in milliseconds
+     * @param asyncThreads   number of threads serving asynchronous calls
+     */
+    public HttpControlClient(int connectTimeout, int readTimeout, int asyncThreads) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(asyncThreads, r -> {
+            Thread thread = new Thread(r, "http-control-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the client shared by all helpers of this process
+     */
+    public static HttpControlClient shared() {
+        return SHARED;
+    }
+
+    public Response get(String link) throws IOException {
+        return get(link, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Submit a GET request and read the whole response.
+     *
+     * @param link    the URL of the http request
+     * @param headers extra request headers
+     * @return status and body of the response, whatever the status
+     */
+    public Response get(String link, Map<String, String> headers) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(link).openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        String route = route(connection.getURL().getPath());
+        String status = "error";
+        long start = System.nanoTime();
+        try {
+            int code = connection.getResponseCode();
+            status = String.valueOf(code);
+            InputStream input = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+            return new Response(code, input == null ? new byte[0] : drain(input));
+        } catch (IOException e) {
+            //Drain the error body as well, otherwise the socket cannot be reused
+            InputStream error = connection.getErrorStream();
+            if (error != null) {
+                drain(error);
+            }
+            throw e;
+        } finally {
+            Metrics.shared().histogram("http_call_seconds", "route", route).recordNanos(System.nanoTime() - start);
+            Metrics.shared().counter("http_calls_total", "route", route, "status", status).inc();
+        }
+    }
+
+    /**
+     * @return the path of a control call without the instance prefix the simulator adds, as a metric label
+     */
+    static String route(String path) {
+        String route = path.replaceFirst("^/i-[0-9a-f]+", "");
+        return route.isEmpty() ? "/" : route;
+    }
+
+    public CompletableFuture<Response> getAsync(String link) {
+        return getAsync(link, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Submit a GET request on the client's threads.
+     *
+     * @param link    the URL of the http request
+     * @param headers extra request headers
+     * @return future completed with the response
+     */
+    public CompletableFuture<Response> getAsync(String link, Map<String, String> headers) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return get(link, headers);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private static byte[] drain(InputStream input) throws IOException {
+        try (InputStream in = input) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                output.write(buffer, 0, n);
+            }
+            return output.toByteArray();
+        }
+    }
+
+    /**
+     * Fully read response of a control call.
+     */
+    public static class Response {
+        private final int code;
+        private final byte[] body;
+
+        public Response(int code, byte[] body) {
+            this.code = code;
+            this.body = body;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public InputStream getStream() {
+            return new ByteArrayInputStream(body);
+        }
+
+        public String getText() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+}
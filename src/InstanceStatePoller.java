@@ -0,0 +1,122 @@
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared poller which waits for many instances to reach the running state with one
+ * batched DescribeInstances call per tick, instead of one polling loop per instance.
+ */
+public class InstanceStatePoller implements StateWatcher.BatchProbe<String, Instance> {
+    protected static final int RUNNING = 16;
+    protected static final int SHUTTING_DOWN = 32;
+    protected static final int TERMINATED = 48;
+    protected static final int STOPPED = 80;
+    private static final String NOT_FOUND = "InvalidInstanceID.NotFound";
+    //EC2 is eventually consistent, so a new id may be unknown for a probe or two before it is given up
+    private static final int NOT_FOUND_LIMIT = 3;
+
+    private final AmazonEC2 ec2;
+    private final StateWatcher.BatchGroup<String, Instance> group;
+    //Consecutive probes which did not find an id
+    private final Map<String, Integer> notFound = new ConcurrentHashMap<>();
+
+    public InstanceStatePoller(AmazonEC2 ec2, StateWatcher watcher) {
+        this.ec2 = ec2;
+        this.group = watcher.group("instance state", this, StateWatcher.Backoff.api());
+    }
+
+    /**
+     * Register an instance to wait on.
+     *
+     * @param instanceId id of the launched instance
+     * @return future completed with the refreshed instance once it is running
+     */
+    public CompletableFuture<Instance> awaitRunning(String instanceId) {
+        return group.await(instanceId, instance -> {
+            int code = instance.getState().getCode();
+            if (code == SHUTTING_DOWN || code == TERMINATED) {
+                throw new IllegalStateException(
+                        "Instance " + instance.getInstanceId() + " is " + instance.getState().getName());
+            }
+            return code == RUNNING;
+        });
+    }
+
+    /**
+     * Register a stopping instance to wait on.
+     *
+     * @param instanceId id of the instance
+     * @return future completed with the refreshed instance once it is stopped
+     */
+    public CompletableFuture<Instance> awaitStopped(String instanceId) {
+        return group.await(instanceId, instance -> {
+            int code = instance.getState().getCode();
+            if (code == SHUTTING_DOWN || code == TERMINATED) {
+                throw new IllegalStateException(
+                        "Instance " + instance.getInstanceId() + " is " + instance.getState().getName());
+            }
+            return code == STOPPED;
+        });
+    }
+
+    /**
+     * Describe every pending instance in one call. One unknown id fails the whole call, so then each is
+     * described alone: the others go on, and the unknown one fails its own wait once it stays unknown.
+     */
+    @Override
+    public Map<String, Instance> describe(Collection<String> instanceIds) {
+        Map<String, Instance> instances = new HashMap<>();
+        try {
+            instances.putAll(describeAll(instanceIds));
+        } catch (AmazonServiceException e) {
+            if (!NOT_FOUND.equals(e.getErrorCode())) {
+                throw e;
+            }
+            if (instanceIds.size() == 1) {
+                notFound(instanceIds.iterator().next(), e);
+            } else {
+                for (String instanceId : instanceIds) {
+                    try {
+                        instances.putAll(describeAll(Collections.singletonList(instanceId)));
+                    } catch (AmazonServiceException alone) {
+                        if (!NOT_FOUND.equals(alone.getErrorCode())) {
+                            throw alone;
+                        }
+                        notFound(instanceId, alone);
+                    }
+                }
+            }
+        }
+        notFound.keySet().removeAll(instances.keySet());
+        return instances;
+    }
+
+    private void notFound(String instanceId, AmazonServiceException e) {
+        if (notFound.merge(instanceId, 1, Integer::sum) >= NOT_FOUND_LIMIT) {
+            notFound.remove(instanceId);
+            group.fail(instanceId, new IllegalStateException("Instance " + instanceId + " does not exist", e));
+        }
+    }
+
+    private Map<String, Instance> describeAll(Collection<String> instanceIds) {
+        DescribeInstancesResult result = ec2.describeInstances(
+                new DescribeInstancesRequest().withInstanceIds(instanceIds));
+        Map<String, Instance> instances = new HashMap<>();
+        for (Reservation reservation : result.getReservations()) {
+            for (Instance instance : reservation.getInstances()) {
+                instances.put(instance.getInstanceId(), instance);
+            }
+        }
+        return instances;
+    }
+}
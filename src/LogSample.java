@@ -0,0 +1,65 @@
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * One parsed section of the load generator log: a {@code [Minute N]} section with the RPS of each
+ * data center, or the {@code [Test End]} section.
+ */
+public class LogSample {
+    public static final String TEST_END = "Test End";
+
+    private final String section;
+    private final Map<String, Double> values;
+    private final double total;
+
+    public LogSample(String section, Map<String, Double> values) {
+        this.section = section;
+        this.values = Collections.unmodifiableMap(values);
+        double sum = 0;
+        for (double value : values.values()) {
+            sum += value;
+        }
+        this.total = sum;
+    }
+
+    public String getSection() {
+        return section;
+    }
+
+    /**
+     * @return minute number of a minute section, or -1 for any other section
+     */
+    public int getMinute() {
+        if (!section.startsWith("Minute")) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(section.substring("Minute".length()).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public boolean isTestEnd() {
+        return TEST_END.equals(section);
+    }
+
+    /**
+     * @return value per key of the section, for minute sections the RPS per data center
+     */
+    public Map<String, Double> getValues() {
+        return values;
+    }
+
+    /**
+     * @return sum of all values, for minute sections the cumulative RPS
+     */
+    public double getTotal() {
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + section + "] " + values;
+    }
+}
@@ -0,0 +1,238 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Incremental reader of the load generator test log. Only the bytes appended since the previous poll
+ * are fetched (HTTP Range, or skipping ahead when the server ignores it), and only the new
+ * {@code [Minute N]} and {@code [Test End]} sections are parsed and published to listeners.
+ * The last section of each poll is re-read on the next one, since the load generator may still be
+ * appending to it, so the cost of a poll stays flat however long the test runs.
+ */
+public class LogTailer {
+    private final String lgDns;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private String logName;
+    private long offset;
+    private String trailingName;
+    private int trailingCount;
+    private LogSample latestMinute;
+    private boolean testEnded;
+
+    public LogTailer(String lgDns) {
+        this.lgDns = lgDns;
+    }
+
+    public LogTailer(String lgDns, String logName) {
+        this.lgDns = lgDns;
+        this.logName = logName;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return name of the log being tailed, looked up once and cached
+     */
+    public synchronized String logName() throws IOException {
+        if (logName == null) {
+            logName = AwsScalingHelper.getLogName(lgDns);
+        }
+        return logName;
+    }
+
+    /**
+     * Fetch and parse whatever was appended to the log since the previous poll.
+     *
+     * @return the samples published by this poll
+     */
+    public synchronized List<LogSample> poll() throws IOException {
+        String logLink = String.format("http://%s/log?name=%s", lgDns, logName());
+        HttpControlClient.Response response = HttpControlClient.shared()
+                .get(logLink, Collections.singletonMap("Range", "bytes=" + offset + "-"));
+        int code = response.getCode();
+        if (code == 416) {
+            return Collections.emptyList();
+        }
+        if (code != 200 && code != 206) {
+            throw new IOException("GET " + logLink + " returned " + code);
+        }
+        byte[] body = response.getBody();
+        //Range not honoured, skip what was already parsed
+        int start = code == 206 ? 0 : (int) Math.min(offset, body.length);
+        return parse(body, start, body.length);
+    }
+
+    /**
+     * Parse a chunk of log which starts at the current offset, advance the offset and publish new samples.
+     *
+     * @param chunk  buffer holding the bytes appended since the last committed offset
+     * @param start  index of the byte at the committed offset
+     * @param length end of the valid bytes in the buffer
+     * @return the samples published
+     */
+    synchronized List<LogSample> parse(byte[] chunk, int start, int length) {
+        List<LogSample> samples = new ArrayList<>();
+        int end = length;
+        while (end > start && chunk[end - 1] != '\n') {
+            end--;
+        }
+        String section = null;
+        int sectionStart = -1;
+        Map<String, Double> values = null;
+        int lineStart = start;
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (chunk[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int from = skipSpace(chunk, lineStart, lineEnd);
+            int to = trimEnd(chunk, from, lineEnd);
+            if (from < to && chunk[from] == '[' && chunk[to - 1] == ']') {
+                if (section != null) {
+                    offer(section, values, samples);
+                }
+                section = new String(chunk, from + 1, to - from - 2, StandardCharsets.US_ASCII);
+                sectionStart = lineStart;
+                values = isSampled(section) ? new LinkedHashMap<>() : null;
+            } else if (values != null && from < to) {
+                int equals = indexOf(chunk, from, to, (byte) '=');
+                if (equals > from) {
+                    String key = new String(chunk, from, trimEnd(chunk, from, equals) - from, StandardCharsets.US_ASCII);
+                    values.put(key, parseDouble(chunk, skipSpace(chunk, equals + 1, to), to));
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        if (section != null) {
+            //The last section may still grow, publish it now and read it again next time. A header cut off
+            //from its values is not published, or an empty Test End would end the test
+            if (values == null || !values.isEmpty()) {
+                offer(section, values, samples);
+            }
+            trailingName = section;
+            trailingCount = values == null ? 0 : values.size();
+            offset += sectionStart - start;
+        } else {
+            offset += end - start;
+        }
+        for (LogSample sample : samples) {
+            for (Listener listener : listeners) {
+                listener.onSample(sample);
+            }
+        }
+        return samples;
+    }
+
+    private void offer(String section, Map<String, Double> values, List<LogSample> samples) {
+        if (values == null) {
+            return;
+        }
+        if (section.equals(trailingName) && values.size() == trailingCount) {
+            return;
+        }
+        LogSample sample = new LogSample(section, values);
+        if (sample.isTestEnd()) {
+            testEnded = true;
+        } else {
+            latestMinute = sample;
+        }
+        samples.add(sample);
+    }
+
+    /**
+     * @return the most recent minute sample, or null before the first one
+     */
+    public synchronized LogSample latestMinute() {
+        return latestMinute;
+    }
+
+    public synchronized boolean isTestEnded() {
+        return testEnded;
+    }
+
+    /**
+     * @return bytes of the log parsed for good; the trailing section after it is read again next poll
+     */
+    synchronized long offset() {
+        return offset;
+    }
+
+    private static boolean isSampled(String section) {
+        return section.startsWith("Minute") || section.equals(LogSample.TEST_END);
+    }
+
+    private static int skipSpace(byte[] chunk, int from, int to) {
+        while (from < to && chunk[from] <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimEnd(byte[] chunk, int from, int to) {
+        while (to > from && chunk[to - 1] <= ' ') {
+            to--;
+        }
+        return to;
+    }
+
+    private static int indexOf(byte[] chunk, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (chunk[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parse a plain decimal without allocating; anything else falls back to {@link Double#parseDouble}.
+     */
+    static double parseDouble(byte[] chunk, int from, int to) {
+        boolean negative = from < to && chunk[from] == '-';
+        int i = negative ? from + 1 : from;
+        long mantissa = 0;
+        int scale = 0;
+        boolean dot = false;
+        int digits = 0;
+        for (; i < to; i++) {
+            byte b = chunk[i];
+            if (b >= '0' && b <= '9') {
+                if (digits++ >= 18) {
+                    break;
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                if (dot) {
+                    scale++;
+                }
+            } else if (b == '.' && !dot) {
+                dot = true;
+            } else {
+                break;
+            }
+        }
+        if (i != to || digits == 0) {
+            String text = new String(chunk, from, to - from, StandardCharsets.US_ASCII);
+            try {
+                return Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        double value = mantissa / Math.pow(10, scale);
+        return negative ? -value : value;
+    }
+
+    /**
+     * Receives every sample parsed from the log.
+     */
+    public interface Listener {
+        void onSample(LogSample sample);
+    }
+}
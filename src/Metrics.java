@@ -0,0 +1,394 @@
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.services.autoscaling.AmazonAutoScaling;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancing;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, gauges and latency histograms of a scaling run, exported in the Prometheus text format on a
+ * local port and as a JSON file. Recording is lock-free. Durations are in {@link RunClock} seconds, so
+ * simulated runs report the minutes a real run would spend.
+ */
+public class Metrics {
+    private static final Metrics SHARED = new Metrics();
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private HttpServer server;
+
+    /**
+     * @return the registry shared by all code of this process
+     */
+    public static Metrics shared() {
+        return SHARED;
+    }
+
+    /**
+     * @param name   metric name
+     * @param labels label names and values, alternating
+     */
+    public Counter counter(String name, String... labels) {
+        return counters.computeIfAbsent(key(name, labels), k -> new Counter());
+    }
+
+    public Gauge gauge(String name, String... labels) {
+        return gauges.computeIfAbsent(key(name, labels), k -> new Gauge());
+    }
+
+    public Histogram histogram(String name, String... labels) {
+        return histograms.computeIfAbsent(key(name, labels), k -> new Histogram());
+    }
+
+    /**
+     * Export as configured by system properties: {@code metrics.port} serves {@code /metrics} on the
+     * loopback interface while the run lasts.
+     */
+    public synchronized void exportFromSystemProperties() throws IOException {
+        Integer port = Integer.getInteger("metrics.port");
+        if (port != null && server == null) {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream output = exchange.getResponseBody()) {
+                    output.write(body);
+                }
+            });
+            server.start();
+            System.out.println("Metrics on http://127.0.0.1:" + port + "/metrics");
+        }
+    }
+
+    /**
+     * Write the JSON export to {@code metrics.file} (default metrics.json) and stop the endpoint.
+     */
+    public synchronized void close() {
+        try {
+            String file = System.getProperty("metrics.file", "metrics.json");
+            Files.write(Paths.get(file), json().getBytes(StandardCharsets.UTF_8));
+            System.out.println("Metrics written to " + file);
+        } catch (IOException e) {
+            System.out.println("Could not write metrics: " + e.getMessage());
+        }
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    /**
+     * Wrap the clients of a provider, so every AWS call is timed and counted by service, operation and
+     * error code.
+     */
+    public CloudProvider instrument(CloudProvider cloud) {
+        AmazonEC2 ec2 = instrument(AmazonEC2.class, cloud.ec2(), "ec2");
+        AmazonElasticLoadBalancing elb = instrument(AmazonElasticLoadBalancing.class, cloud.elb(), "elb");
+        AmazonAutoScaling autoScaling = instrument(AmazonAutoScaling.class, cloud.autoScaling(), "autoscaling");
+        AmazonCloudWatch cloudWatch = instrument(AmazonCloudWatch.class, cloud.cloudWatch(), "cloudwatch");
+        return new CloudProvider() {
+            @Override
+            public AmazonEC2 ec2() {
+                return ec2;
+            }
+
+            @Override
+            public AmazonElasticLoadBalancing elb() {
+                return elb;
+            }
+
+            @Override
+            public AmazonAutoScaling autoScaling() {
+                return autoScaling;
+            }
+
+            @Override
+            public AmazonCloudWatch cloudWatch() {
+                return cloudWatch;
+            }
+
+            @Override
+            public void shutdown() {
+                cloud.shutdown();
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T instrument(Class<T> type, T client, String service) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            if (args == null || args.length != 1 || !(args[0] instanceof AmazonWebServiceRequest)) {
+                return invoke(method, client, args);
+            }
+            String operation = Character.toUpperCase(method.getName().charAt(0)) + method.getName().substring(1);
+            long start = System.nanoTime();
+            String error = "";
+            try {
+                return invoke(method, client, args);
+            } catch (AmazonServiceException e) {
+                error = e.getErrorCode() == null ? "Unknown" : e.getErrorCode();
+                throw e;
+            } catch (RuntimeException e) {
+                error = e.getClass().getSimpleName();
+                throw e;
+            } finally {
+                histogram("aws_call_seconds", "service", service, "operation", operation).recordNanos(System.nanoTime() - start);
+                counter("aws_calls_total", "service", service, "operation", operation, "error", error).inc();
+            }
+        });
+    }
+
+    private static Object invoke(java.lang.reflect.Method method, Object target, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return every metric in the Prometheus text exposition format; histograms as summaries
+     */
+    public String prometheus() {
+        StringBuilder out = new StringBuilder();
+        String type = null;
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(counters).entrySet()) {
+            type = typeLine(out, type, entry.getKey(), "counter");
+            out.append(entry.getKey()).append(' ').append(entry.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, Gauge> entry : new TreeMap<>(gauges).entrySet()) {
+            type = typeLine(out, type, entry.getKey(), "gauge");
+            out.append(entry.getKey()).append(' ').append(entry.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            type = typeLine(out, type, entry.getKey(), "summary");
+            String name = name(entry.getKey());
+            String labels = entry.getKey().substring(name.length());
+            Histogram histogram = entry.getValue();
+            for (double quantile : new double[]{0.5, 0.9, 0.99}) {
+                out.append(name).append(withLabel(labels, "quantile", String.valueOf(quantile))).append(' ')
+                        .append(histogram.percentile(quantile)).append('\n');
+            }
+            out.append(name).append("_sum").append(labels).append(' ').append(histogram.sum()).append('\n');
+            out.append(name).append("_count").append(labels).append(' ').append(histogram.count()).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return every metric as one JSON object, histograms with count, sum, max and percentiles
+     */
+    public String json() {
+        StringBuilder out = new StringBuilder("{\n  \"counters\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(counters).entrySet()) {
+            out.append(separator).append("    ").append(quote(entry.getKey())).append(": ").append(entry.getValue().get());
+            separator = ",\n";
+        }
+        out.append("\n  },\n  \"gauges\": {");
+        separator = "\n";
+        for (Map.Entry<String, Gauge> entry : new TreeMap<>(gauges).entrySet()) {
+            out.append(separator).append("    ").append(quote(entry.getKey())).append(": ").append(entry.getValue().get());
+            separator = ",\n";
+        }
+        out.append("\n  },\n  \"histograms\": {");
+        separator = "\n";
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            out.append(separator).append("    ").append(quote(entry.getKey()))
+                    .append(String.format(": {\"count\": %d, \"sum\": %s, \"max\": %s, \"p50\": %s, \"p90\": %s, \"p99\": %s}",
+                            histogram.count(), histogram.sum(), histogram.max(), histogram.percentile(0.5),
+                            histogram.percentile(0.9), histogram.percentile(0.99)));
+            separator = ",\n";
+        }
+        return out.append("\n  }\n}\n").toString();
+    }
+
+    private static String typeLine(StringBuilder out, String previous, String key, String type) {
+        String name = name(key);
+        if (!name.equals(previous)) {
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+        return name;
+    }
+
+    private static String name(String key) {
+        int brace = key.indexOf('{');
+        return brace < 0 ? key : key.substring(0, brace);
+    }
+
+    private static String withLabel(String labels, String name, String value) {
+        String label = name + "=\"" + value + "\"";
+        return labels.isEmpty() ? "{" + label + "}" : labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
+
+    private static String key(String name, String... labels) {
+        if (labels.length == 0) {
+            return name;
+        }
+        StringBuilder key = new StringBuilder(name).append('{');
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) {
+                key.append(',');
+            }
+            key.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return key.append('}').toString();
+    }
+
+    private static String quote(String text) {
+        return "\"" + text.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * Monotonic count.
+     */
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Last set value.
+     */
+    public static class Gauge {
+        private final AtomicLong bits = new AtomicLong(Double.doubleToLongBits(0));
+
+        public void set(double value) {
+            bits.set(Double.doubleToLongBits(value));
+        }
+
+        public double get() {
+            return Double.longBitsToDouble(bits.get());
+        }
+    }
+
+    /**
+     * Log-linear histogram of durations in the style of HdrHistogram: each power of two of microseconds
+     * is split into 16 buckets, so any recorded value is reported within 1/16 of itself, from one
+     * microsecond to centuries, in a fixed array of counts.
+     */
+    public static class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_COUNT);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumMicros = new LongAdder();
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        /**
+         * @param seconds a duration in run seconds
+         */
+        public void record(double seconds) {
+            recordMicros((long) (seconds * 1_000_000));
+        }
+
+        /**
+         * @param nanos a duration measured with {@link System#nanoTime()}, scaled to run time
+         */
+        public void recordNanos(long nanos) {
+            recordMicros((long) (nanos / 1000 * RunClock.speedup()));
+        }
+
+        /**
+         * @param millis a duration of {@link RunClock} time
+         */
+        public void recordMillis(long millis) {
+            recordMicros(millis * 1000);
+        }
+
+        private void recordMicros(long micros) {
+            long value = Math.max(0, micros);
+            counts.incrementAndGet(index(value));
+            count.increment();
+            sumMicros.add(value);
+            long max;
+            while (value > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, value)) {
+                //retry until the larger value is stored
+            }
+        }
+
+        static int index(long micros) {
+            if (micros < SUB_COUNT) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+            return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+        }
+
+        /**
+         * @return the largest value of the bucket, in microseconds
+         */
+        static long upperBound(int index) {
+            if (index < SUB_COUNT) {
+                return index;
+            }
+            int shift = index / SUB_COUNT - 1;
+            long sub = index % SUB_COUNT;
+            return ((SUB_COUNT + sub + 1) << shift) - 1;
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public double sum() {
+            return sumMicros.sum() / 1e6;
+        }
+
+        public double max() {
+            return maxMicros.get() / 1e6;
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return the value below which the quantile of recorded values falls, in seconds
+         */
+        public double percentile(double quantile) {
+            long total = count();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), maxMicros.get()) / 1e6;
+                }
+            }
+            return max();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Estimates the RPS one data center delivers from the per-instance values of the minute samples seen
+ * so far, and launches the whole estimated shortfall at once. Data centers launched but not yet in the
+ * log are counted as delivering the estimate, so the shortfall is not launched twice.
+ */
+public class ModelBasedController implements ScalingController {
+    private static final double SMOOTHING = 0.5;
+
+    private final double target;
+    private double perInstance;
+
+    public ModelBasedController(double target) {
+        this.target = target;
+    }
+
+    @Override
+    public int decide(LogSample sample, int dataCenters) {
+        if (sample == null) {
+            return 0;
+        }
+        double rps = sample.getTotal();
+        if (rps >= target) {
+            return 0;
+        }
+        int reporting = 0;
+        for (double value : sample.getValues().values()) {
+            if (value > 0) {
+                reporting++;
+            }
+        }
+        if (reporting > 0) {
+            double observed = rps / reporting;
+            perInstance = perInstance == 0 ? observed : SMOOTHING * observed + (1 - SMOOTHING) * perInstance;
+        }
+        if (perInstance == 0) {
+            return 1;
+        }
+        int pending = Math.max(0, dataCenters - reporting);
+        int needed = (int) Math.ceil((target - rps) / perInstance);
+        return Math.max(0, needed - pending);
+    }
+
+    /**
+     * @return current estimate of the RPS of one data center
+     */
+    public double getPerInstance() {
+        return perInstance;
+    }
+}
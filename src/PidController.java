@@ -0,0 +1,38 @@
+/**
+ * PID controller on the relative RPS error. Its output is a growth factor of the current fleet, so the
+ * same gains work for small and large fleets.
+ */
+public class PidController implements ScalingController {
+    private final double target;
+    private final double kp;
+    private final double ki;
+    private final double kd;
+    private double integral;
+    private double previousError;
+    private boolean first = true;
+
+    public PidController(double target, double kp, double ki, double kd) {
+        this.target = target;
+        this.kp = kp;
+        this.ki = ki;
+        this.kd = kd;
+    }
+
+    @Override
+    public int decide(LogSample sample, int dataCenters) {
+        double rps = sample == null ? 0 : sample.getTotal();
+        double error = (target - rps) / target;
+        if (error <= 0) {
+            //Target reached, forget the accumulated error
+            integral = 0;
+            first = true;
+            return 0;
+        }
+        integral += error;
+        double derivative = first ? 0 : error - previousError;
+        previousError = error;
+        first = false;
+        double output = kp * error + ki * integral + kd * derivative;
+        return Math.max(1, (int) Math.ceil(output * Math.max(1, dataCenters)));
+    }
+}
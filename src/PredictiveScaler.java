@@ -0,0 +1,130 @@
+import com.amazonaws.services.autoscaling.AmazonAutoScaling;
+import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsRequest;
+import com.amazonaws.services.autoscaling.model.UpdateAutoScalingGroupRequest;
+
+import java.util.List;
+
+/**
+ * Raises the desired capacity of an auto scaling group ahead of the load, from a forecast of the minute RPS
+ * of the load generator log. The series is fitted online with Holt's linear trend (double exponential
+ * smoothing), and the group is sized for the load forecast {@code -Dpredictive.leadMinutes} (default 5, about
+ * a boot and the health check grace period) ahead, plus {@code -Dpredictive.margin} (default 0.2), capped at
+ * the maximum size of the group. It only ever scales out: scaling in is left to the scaling policy, which
+ * also keeps reacting to what the forecast misses. It is off unless {@code -Dpredictive=true}, so a run
+ * measures its scaling policy alone by default.
+ */
+public class PredictiveScaler {
+    public static final boolean ENABLED = Boolean.getBoolean("predictive");
+    private static final int LEAD_MINUTES = Integer.getInteger("predictive.leadMinutes", 5);
+    private static final double MARGIN = Double.parseDouble(System.getProperty("predictive.margin", "0.2"));
+    //Smoothing of the level and of the trend
+    private static final double ALPHA = 0.5;
+    private static final double BETA = 0.3;
+
+    private final AmazonAutoScaling autoScaling;
+    private final String asgName;
+    private final int maxSize;
+    private final double instanceRps;
+    //Fit of the minutes before the current one, and with the latest snapshot of the current one
+    private Holt fitted = new Holt(ALPHA, BETA);
+    private Holt current = fitted;
+    private int minute;
+    //Desired capacity of the group as last seen or set this minute
+    private int lastDesired;
+
+    /**
+     * @param instanceRps RPS one instance of the group serves
+     */
+    public PredictiveScaler(AmazonAutoScaling autoScaling, String asgName, int maxSize, double instanceRps) {
+        this.autoScaling = autoScaling;
+        this.asgName = asgName;
+        this.maxSize = maxSize;
+        this.instanceRps = instanceRps;
+    }
+
+    /**
+     * Fit a minute sample and scale out if the forecast needs more instances than the group has. The last
+     * section of a poll may be cut short and is published again as it grows, so the snapshots of the current
+     * minute replace each other on top of the fit of the minutes before it.
+     *
+     * @return the desired capacity set, or 0 if it was left alone
+     */
+    public synchronized int onMinute(LogSample sample) {
+        if (sample.getMinute() < minute || instanceRps <= 0) {
+            return 0;
+        }
+        if (sample.getMinute() > minute) {
+            fitted = current;
+            minute = sample.getMinute();
+            //The policy may have scaled in since, so the group is looked at again once a minute
+            lastDesired = 0;
+        }
+        current = fitted.with(sample.getTotal());
+        double ahead = Math.max(current.level(), current.forecast(LEAD_MINUTES));
+        Metrics.shared().gauge("forecast_rps", "group", asgName).set(ahead);
+        int wanted = Math.min(maxSize, (int) Math.ceil(ahead * (1 + MARGIN) / instanceRps));
+        if (wanted <= lastDesired) {
+            return 0;
+        }
+        List<AutoScalingGroup> groups = autoScaling.describeAutoScalingGroups(new DescribeAutoScalingGroupsRequest()
+                .withAutoScalingGroupNames(asgName)).getAutoScalingGroups();
+        int desired = groups.isEmpty() || groups.get(0).getDesiredCapacity() == null ? 0
+                : groups.get(0).getDesiredCapacity();
+        //The policy may already have scaled out further
+        lastDesired = Math.max(desired, wanted);
+        if (wanted <= desired) {
+            return 0;
+        }
+        autoScaling.updateAutoScalingGroup(new UpdateAutoScalingGroupRequest().withAutoScalingGroupName(asgName)
+                .withDesiredCapacity(wanted));
+        Metrics.shared().counter("predictive_scale_outs_total", "group", asgName).inc();
+        System.out.println(String.format("%s: forecast %.0f RPS in %d minutes, desired capacity %d -> %d",
+                asgName, ahead, LEAD_MINUTES, desired, wanted));
+        return wanted;
+    }
+
+    /**
+     * Holt's linear trend: a smoothed level and a smoothed per-step trend. Immutable, so a fit can be
+     * extended with a tentative value and kept.
+     */
+    static class Holt {
+        private final double alpha;
+        private final double beta;
+        private int count;
+        private double level;
+        private double trend;
+
+        Holt(double alpha, double beta) {
+            this.alpha = alpha;
+            this.beta = beta;
+        }
+
+        /**
+         * @return the fit with one more value
+         */
+        Holt with(double value) {
+            Holt next = new Holt(alpha, beta);
+            next.count = count + 1;
+            if (next.count == 1) {
+                next.level = value;
+                return next;
+            }
+            double trend = next.count == 2 ? value - level : this.trend;
+            next.level = alpha * value + (1 - alpha) * (level + trend);
+            next.trend = beta * (next.level - level) + (1 - beta) * trend;
+            return next;
+        }
+
+        double level() {
+            return level;
+        }
+
+        /**
+         * @return the value forecast the given number of steps ahead, at least 0
+         */
+        double forecast(int steps) {
+            return Math.max(0, level + steps * trend);
+        }
+    }
+}
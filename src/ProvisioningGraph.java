@@ -0,0 +1,182 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs provisioning steps as a dependency graph: every step starts as soon as the steps it depends on
+ * are done, so independent steps overlap and setup takes as long as its longest chain. Each step is timed,
+ * and {@link #report()} prints the timeline with the critical path.
+ */
+public class ProvisioningGraph {
+    private final ExecutorService executor;
+    private final List<Step<?>> steps = Collections.synchronizedList(new ArrayList<Step<?>>());
+    private final long origin = RunClock.now();
+
+    /**
+     * @param threads maximum number of steps running at once
+     */
+    public ProvisioningGraph(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "provisioning-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Add a step producing a value.
+     *
+     * @param name         name of the step in the report
+     * @param action       the provisioning call
+     * @param dependencies steps which must complete first
+     * @return the step, whose value dependents read with {@link Step#get()}
+     */
+    public <T> Step<T> step(String name, Callable<T> action, Step<?>... dependencies) {
+        Step<T> step = new Step<>(name, dependencies);
+        CompletableFuture<?>[] before = new CompletableFuture<?>[dependencies.length];
+        for (int i = 0; i < dependencies.length; i++) {
+            before[i] = dependencies[i].future;
+        }
+        CompletableFuture.allOf(before).thenApplyAsync(ignored -> step.run(action), executor)
+                .whenComplete((value, error) -> {
+                    if (error != null) {
+                        step.future.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                    } else {
+                        step.future.complete(value);
+                    }
+                });
+        steps.add(step);
+        return step;
+    }
+
+    /**
+     * Add a step without a value.
+     */
+    public Step<Void> task(String name, Task action, Step<?>... dependencies) {
+        return step(name, () -> {
+            action.run();
+            return null;
+        }, dependencies);
+    }
+
+    /**
+     * Wait for every step added so far.
+     *
+     * @throws ExecutionException with the failure of the first failed step
+     */
+    public void await() throws InterruptedException, ExecutionException {
+        List<Step<?>> all;
+        synchronized (steps) {
+            all = new ArrayList<>(steps);
+        }
+        for (Step<?> step : all) {
+            step.future.get();
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @return start and end of every step relative to the creation of the graph, and the critical path
+     */
+    public String report() {
+        List<Step<?>> all;
+        synchronized (steps) {
+            all = new ArrayList<>(steps);
+        }
+        StringBuilder report = new StringBuilder("Provisioning timeline (s):\n");
+        Step<?> last = null;
+        for (Step<?> step : all) {
+            if (step.end == 0) {
+                report.append(String.format("  %-28s not run%n", step.name));
+                continue;
+            }
+            report.append(String.format("  %-28s %7.1f -> %7.1f  (%6.1f)%n", step.name,
+                    (step.start - origin) / 1000d, (step.end - origin) / 1000d, (step.end - step.start) / 1000d));
+            if (last == null || step.end > last.end) {
+                last = step;
+            }
+        }
+        //Walk back from the step finishing last through the dependency which finished last
+        List<String> path = new ArrayList<>();
+        for (Step<?> step = last; step != null; step = step.latestDependency()) {
+            path.add(0, step.name);
+        }
+        report.append("Critical path: ").append(String.join(" -> ", path));
+        if (last != null) {
+            report.append(String.format(" (%.1f s)", (last.end - origin) / 1000d));
+        }
+        return report.toString();
+    }
+
+    /**
+     * A provisioning call without a value.
+     */
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * One node of the graph.
+     */
+    public static class Step<T> {
+        private final String name;
+        private final Step<?>[] dependencies;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private volatile long start;
+        private volatile long end;
+
+        private Step(String name, Step<?>[] dependencies) {
+            this.name = name;
+            this.dependencies = dependencies;
+        }
+
+        private T run(Callable<T> action) {
+            start = RunClock.now();
+            try {
+                System.out.println("Step started: " + name);
+                return action.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            } finally {
+                end = RunClock.now();
+                Metrics.shared().histogram("provisioning_step_seconds", "step", name).recordMillis(end - start);
+            }
+        }
+
+        private Step<?> latestDependency() {
+            Step<?> latest = null;
+            for (Step<?> dependency : dependencies) {
+                if (dependency.end != 0 && (latest == null || dependency.end > latest.end)) {
+                    latest = dependency;
+                }
+            }
+            return latest;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the value of the step; only call from dependent steps or after {@link #await()}
+         */
+        public T get() {
+            return future.join();
+        }
+
+        public CompletableFuture<T> future() {
+            return future;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+import com.amazonaws.services.autoscaling.AmazonAutoScaling;
+import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsRequest;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancing;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeInstanceHealthRequest;
+import com.amazonaws.services.elasticloadbalancing.model.InstanceState;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides when an auto scaling stack is ready for its test, instead of a fixed warmup sleep. Three signals
+ * are polled together: every instance of the group is InService and the group has its desired capacity,
+ * every instance behind the load balancer is InService, and the warmup log has reached its Test End. The
+ * time from the launch of each instance until the load balancer first reports it InService is measured, to
+ * recommend a health check grace period and tighter health check settings. Only instances seen booting are
+ * measured, as one already in service may have been for a while: the engine is created with the stack and
+ * also observes the load balancer while provisioning waits for it.
+ */
+public class ReadinessEngine {
+    //Health check the recommendation is for: a failed instance is out after INTERVAL * UNHEALTHY seconds
+    static final int RECOMMENDED_INTERVAL = 10;
+    static final int RECOMMENDED_TIMEOUT = 5;
+    static final int RECOMMENDED_HEALTHY = 2;
+    static final int RECOMMENDED_UNHEALTHY = 3;
+    //Margin of the grace period over the slowest measured boot, and its floor
+    private static final double GRACE_MARGIN = 1.2;
+    private static final int MIN_GRACE_SECONDS = 60;
+
+    private final AmazonAutoScaling autoScaling;
+    private final AmazonElasticLoadBalancing elb;
+    private final AmazonEC2 ec2;
+    private final String asgName;
+    private final String loadBalancerName;
+    //Instances seen pending in the group or out of service behind the load balancer, not yet measured
+    private final Set<String> booting = new HashSet<>();
+    //Milliseconds from launch until InService behind the load balancer, by instance id
+    private final Map<String, Long> bootToHealthy = new HashMap<>();
+
+    public ReadinessEngine(AmazonAutoScaling autoScaling, AmazonElasticLoadBalancing elb, AmazonEC2 ec2,
+                           String asgName, String loadBalancerName) {
+        this.autoScaling = autoScaling;
+        this.elb = elb;
+        this.ec2 = ec2;
+        this.asgName = asgName;
+        this.loadBalancerName = loadBalancerName;
+    }
+
+    /**
+     * Read the three signals once.
+     *
+     * @param warmup tailer of the warmup test log, read while the warmup runs
+     */
+    public synchronized Status poll(LogTailer warmup) throws IOException {
+        Status status = new Status();
+        List<AutoScalingGroup> groups = autoScaling.describeAutoScalingGroups(new DescribeAutoScalingGroupsRequest()
+                .withAutoScalingGroupNames(asgName)).getAutoScalingGroups();
+        if (!groups.isEmpty()) {
+            AutoScalingGroup group = groups.get(0);
+            status.desired = group.getDesiredCapacity() == null ? 0 : group.getDesiredCapacity();
+            for (com.amazonaws.services.autoscaling.model.Instance instance : group.getInstances()) {
+                status.asgInstances++;
+                if ("InService".equals(instance.getLifecycleState())
+                        && !"Unhealthy".equals(instance.getHealthStatus())) {
+                    status.asgInService++;
+                } else if ("Pending".equals(instance.getLifecycleState())) {
+                    booting.add(instance.getInstanceId());
+                }
+            }
+        }
+        List<InstanceState> states = elb.describeInstanceHealth(
+                new DescribeInstanceHealthRequest(loadBalancerName)).getInstanceStates();
+        status.elbInstances = states.size();
+        status.elbInService = observe(states);
+        //The first poll looks up the newest log, which is the warmup started during provisioning
+        warmup.poll();
+        LogSample minute = warmup.latestMinute();
+        status.warmupMinute = minute == null ? 0 : minute.getMinute();
+        status.warmupEnded = warmup.isTestEnded();
+        return status;
+    }
+
+    /**
+     * Record the boot time of the instances seen booting that are now in service behind the load balancer.
+     *
+     * @param states instance health of the load balancer
+     * @return number of instances in service
+     */
+    public synchronized int observe(List<InstanceState> states) {
+        int inService = 0;
+        List<String> fresh = new ArrayList<>();
+        for (InstanceState state : states) {
+            if (!"InService".equals(state.getState())) {
+                booting.add(state.getInstanceId());
+                continue;
+            }
+            inService++;
+            if (booting.remove(state.getInstanceId())) {
+                fresh.add(state.getInstanceId());
+            }
+        }
+        if (!fresh.isEmpty()) {
+            measure(fresh);
+        }
+        return inService;
+    }
+
+    private void measure(List<String> fresh) {
+        long now = RunClock.now();
+        for (Reservation reservation : ec2.describeInstances(new DescribeInstancesRequest().withInstanceIds(fresh))
+                .getReservations()) {
+            for (Instance instance : reservation.getInstances()) {
+                if (instance.getLaunchTime() == null) {
+                    continue;
+                }
+                long millis = Math.max(0, now - instance.getLaunchTime().getTime());
+                bootToHealthy.put(instance.getInstanceId(), millis);
+                Metrics.shared().histogram("instance_healthy_seconds").recordMillis(millis);
+            }
+        }
+    }
+
+    /**
+     * @return health check settings fitted to the measured boot times, or null before any was measured
+     */
+    public synchronized Recommendation recommendation() {
+        if (bootToHealthy.isEmpty()) {
+            return null;
+        }
+        long slowest = 0;
+        for (long millis : bootToHealthy.values()) {
+            slowest = Math.max(slowest, millis);
+        }
+        int grace = (int) Math.max(MIN_GRACE_SECONDS, Math.ceil(slowest * GRACE_MARGIN / 1000));
+        return new Recommendation(bootToHealthy.size(), slowest, grace);
+    }
+
+    /**
+     * One reading of the readiness signals.
+     */
+    public static class Status {
+        private int desired;
+        private int asgInstances;
+        private int asgInService;
+        private int elbInstances;
+        private int elbInService;
+        private int warmupMinute;
+        private boolean warmupEnded;
+
+        /**
+         * @return whether the group, the load balancer and the warmup are all ready
+         */
+        public boolean isReady() {
+            return desired > 0 && asgInService >= desired && asgInService == asgInstances
+                    && elbInService > 0 && elbInService == elbInstances && warmupEnded;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("group %d/%d in service (desired %d), load balancer %d/%d in service, warmup %s",
+                    asgInService, asgInstances, desired, elbInService, elbInstances,
+                    warmupEnded ? "ended" : "at minute " + warmupMinute);
+        }
+    }
+
+    /**
+     * Health check settings recommended from the measured boot times.
+     */
+    public static class Recommendation {
+        private final int measured;
+        private final long slowestMillis;
+        private final int gracePeriod;
+
+        Recommendation(int measured, long slowestMillis, int gracePeriod) {
+            this.measured = measured;
+            this.slowestMillis = slowestMillis;
+            this.gracePeriod = gracePeriod;
+        }
+
+        /**
+         * @return health check grace period of the group, in seconds
+         */
+        public int getGracePeriod() {
+            return gracePeriod;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d instances measured, slowest healthy %.0f s after launch: grace period %d s,"
+                            + " health check every %d s with timeout %d s, healthy after %d and unhealthy after %d"
+                            + " checks (a failed instance is out in %d s)", measured, slowestMillis / 1000.0,
+                    gracePeriod, RECOMMENDED_INTERVAL, RECOMMENDED_TIMEOUT, RECOMMENDED_HEALTHY,
+                    RECOMMENDED_UNHEALTHY, RECOMMENDED_INTERVAL * RECOMMENDED_UNHEALTHY);
+        }
+    }
+}
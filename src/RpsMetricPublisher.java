@@ -0,0 +1,134 @@
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Publishes the RPS of the load generator log as custom CloudWatch metrics, so alarms and policies can
+ * scale on RPS per instance instead of CPU. Every {@code -Dmetrics.publishSeconds} (default 10) the minute
+ * sections seen since the last flush, or the latest one again, are aggregated locally into one statistic
+ * set per metric and sent as high resolution data in batched PutMetricData calls, so the number of calls
+ * stays the same however large the fleet grows. The latest section is only sent again for a minute after it
+ * was last seen, so a stalled log shows as missing data rather than as its last RPS.
+ */
+public class RpsMetricPublisher implements LogTailer.Listener {
+    public static final String NAMESPACE = System.getProperty("metrics.namespace", "Project2.1");
+    public static final String RPS = "RequestsPerSecond";
+    public static final String RPS_PER_INSTANCE = "RequestsPerSecondPerInstance";
+    public static final long PUBLISH_SECONDS = Long.getLong("metrics.publishSeconds", 10);
+    //Most data points one PutMetricData call takes
+    private static final int MAX_DATUMS = 20;
+    //How long the latest section is sent again: a minute until the next one, and a flush of slack
+    private static final long REPUBLISH_MILLIS = TimeUnit.MINUTES.toMillis(1)
+            + TimeUnit.SECONDS.toMillis(PUBLISH_SECONDS);
+
+    private final AmazonCloudWatch cloudWatch;
+    private final Dimension dimension;
+    private final IntSupplier instances;
+    //Latest snapshot of each section since the last flush, as the last section is published as it grows
+    private final Map<String, LogSample> pending = new LinkedHashMap<>();
+    private LogSample latest;
+    private long latestSeen;
+
+    /**
+     * @param cloudWatch     the CloudWatch client
+     * @param dimensionName  dimension of the metrics, such as AutoScalingGroupName
+     * @param dimensionValue its value
+     * @param instances      number of instances serving the load, asked once per flush; null when the log
+     *                       has one value per data center
+     */
+    public RpsMetricPublisher(AmazonCloudWatch cloudWatch, String dimensionName, String dimensionValue,
+                              IntSupplier instances) {
+        this.cloudWatch = cloudWatch;
+        this.dimension = new Dimension().withName(dimensionName).withValue(dimensionValue);
+        this.instances = instances;
+    }
+
+    @Override
+    public synchronized void onSample(LogSample sample) {
+        if (sample.getMinute() >= 0) {
+            pending.put(sample.getSection(), sample);
+            latest = sample;
+            latestSeen = RunClock.now();
+        }
+    }
+
+    /**
+     * Send what was aggregated since the previous flush. Between two minute sections the latest one is
+     * sent again, so alarms on periods shorter than a minute keep their data, until it is a minute old.
+     */
+    public void flush() {
+        List<LogSample> samples;
+        synchronized (this) {
+            if (latest == null || pending.isEmpty() && RunClock.now() - latestSeen > REPUBLISH_MILLIS) {
+                return;
+            }
+            samples = pending.isEmpty() ? Collections.singletonList(latest) : new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        Statistics total = new Statistics();
+        Statistics perInstance = new Statistics();
+        int serving = instances == null ? 0 : instances.getAsInt();
+        for (LogSample sample : samples) {
+            total.add(sample.getTotal());
+            if (instances == null) {
+                for (double value : sample.getValues().values()) {
+                    if (value > 0) {
+                        perInstance.add(value);
+                    }
+                }
+            } else if (serving > 0) {
+                perInstance.add(sample.getTotal() / serving);
+            }
+        }
+        Date now = new Date(RunClock.now());
+        Integer resolution = PUBLISH_SECONDS < 60 ? 1 : 60;
+        List<MetricDatum> data = new ArrayList<>();
+        data.add(datum(RPS, total, now, resolution));
+        if (perInstance.count > 0) {
+            data.add(datum(RPS_PER_INSTANCE, perInstance, now, resolution));
+        }
+        for (int from = 0; from < data.size(); from += MAX_DATUMS) {
+            cloudWatch.putMetricData(new PutMetricDataRequest().withNamespace(NAMESPACE)
+                    .withMetricData(data.subList(from, Math.min(data.size(), from + MAX_DATUMS))));
+        }
+    }
+
+    private MetricDatum datum(String name, Statistics statistics, Date timestamp, Integer resolution) {
+        return new MetricDatum().withMetricName(name)
+                .withDimensions(dimension)
+                .withTimestamp(timestamp)
+                .withUnit(StandardUnit.CountSecond)
+                .withStorageResolution(resolution)
+                .withStatisticValues(new StatisticSet()
+                        .withSampleCount((double) statistics.count)
+                        .withSum(statistics.sum)
+                        .withMinimum(statistics.min)
+                        .withMaximum(statistics.max));
+    }
+
+    private static class Statistics {
+        private int count;
+        private double sum;
+        private double min = Double.MAX_VALUE;
+        private double max = -Double.MAX_VALUE;
+
+        void add(double value) {
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clock used for every sleep, timestamp and poll delay of a scaling run. It runs in real time against
+ * AWS; against the simulator it is accelerated, so a 30-minute run replays in seconds while every
+ * component still sees consistent virtual timestamps.
+ */
+public final class RunClock {
+    private static volatile double speedup = 1;
+    private static volatile long originMillis = System.currentTimeMillis();
+    private static volatile long originNanos = System.nanoTime();
+
+    private RunClock() {
+    }
+
+    /**
+     * Run the clock faster than real time from now on.
+     *
+     * @param factor virtual milliseconds per real millisecond
+     */
+    public static synchronized void accelerate(double factor) {
+        originMillis = now();
+        originNanos = System.nanoTime();
+        speedup = factor;
+    }
+
+    /**
+     * @return current virtual time in epoch milliseconds
+     */
+    public static long now() {
+        return originMillis + (long) ((System.nanoTime() - originNanos) / 1_000_000d * speedup);
+    }
+
+    public static double speedup() {
+        return speedup;
+    }
+
+    /**
+     * Sleep for a duration of virtual time.
+     */
+    public static void sleep(long duration, TimeUnit unit) throws InterruptedException {
+        long real = realMillis(unit.toMillis(duration));
+        if (real > 0) {
+            Thread.sleep(real);
+        }
+    }
+
+    /**
+     * @param virtualMillis a duration of virtual time
+     * @return the real time it takes, at least one millisecond for any positive duration
+     */
+    public static long realMillis(long virtualMillis) {
+        if (virtualMillis <= 0) {
+            return 0;
+        }
+        return Math.max(1, (long) (virtualMillis / speedup));
+    }
+}
@@ -0,0 +1,225 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+
+/**
+ * Append-only journal of a scaling run: one line per completed step with its output, such as an instance
+ * id or a DNS name. Steps completing together share one fsync (group commit). A restarted run replays the
+ * journal, re-attaches to what the completed steps created and only runs the remaining steps.
+ */
+public class RunJournal {
+    private final Path path;
+    private final FileChannel channel;
+    private final Map<String, String> completed = new LinkedHashMap<>();
+    private final Object syncLock = new Object();
+    private final boolean resumed;
+    private long appended;
+    private long synced;
+
+    private RunJournal(Path path) throws IOException {
+        this.path = path;
+        if (Files.exists(path)) {
+            replay(Files.readAllLines(path, StandardCharsets.UTF_8), endsWithNewline(path));
+        }
+        this.resumed = !completed.isEmpty();
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Open the journal at {@code journal} (default {@code <name>.journal}), resuming the run it records.
+     *
+     * @param name name of the run, used for the default file name
+     */
+    public static RunJournal open(String name) throws IOException {
+        return open(Paths.get(System.getProperty("journal", name + ".journal")));
+    }
+
+    /**
+     * Open the journal at a path, resuming the run it records.
+     */
+    public static RunJournal open(Path path) throws IOException {
+        RunJournal journal = new RunJournal(path);
+        if (!journal.completed.isEmpty()) {
+            System.out.println("Resuming run from " + journal.path + ", completed: " + journal.completed.keySet());
+        }
+        return journal;
+    }
+
+    private void replay(List<String> lines, boolean complete) {
+        //A last line without a newline is a record torn by a crash, and its step is run again
+        int usable = complete ? lines.size() : lines.size() - 1;
+        for (int i = 0; i < usable; i++) {
+            String[] fields = lines.get(i).split("\t", -1);
+            if (fields.length == 3) {
+                completed.put(unescape(fields[1]), unescape(fields[2]));
+            }
+        }
+    }
+
+    private static boolean endsWithNewline(Path path) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (file.size() == 0) {
+                return true;
+            }
+            ByteBuffer last = ByteBuffer.allocate(1);
+            file.read(last, file.size() - 1);
+            return last.get(0) == '\n';
+        }
+    }
+
+    /**
+     * @return whether the journal recorded steps of an earlier run when it was opened
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public synchronized boolean isDone(String step) {
+        return completed.containsKey(step);
+    }
+
+    /**
+     * @return the output recorded for a completed step, or null
+     */
+    public synchronized String get(String step) {
+        return completed.get(step);
+    }
+
+    /**
+     * Record a completed step durably: returns once the record, and every record appended before it,
+     * is on disk. Threads recording at the same time share the fsync.
+     *
+     * @param step  name of the step
+     * @param value its output, empty for none
+     */
+    public void record(String step, String value) throws IOException {
+        long sequence;
+        synchronized (this) {
+            String line = RunClock.now() + "\t" + escape(step) + "\t" + escape(value) + "\n";
+            ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            completed.put(step, value);
+            sequence = ++appended;
+        }
+        synchronized (syncLock) {
+            if (synced < sequence) {
+                long upTo;
+                synchronized (this) {
+                    upTo = appended;
+                }
+                channel.force(false);
+                synced = upTo;
+            }
+        }
+    }
+
+    /**
+     * Make a step resumable: a completed step re-attaches to its recorded output instead of running; if
+     * that fails, because the resource is gone, the step runs again.
+     *
+     * @param step     name of the step
+     * @param action   the step
+     * @param encode   output to journal text
+     * @param reattach journal text back to the output, checking the resource still exists
+     */
+    public <T> Callable<T> resumable(String step, Callable<T> action, Function<T, String> encode,
+                                     Function<String, T> reattach) {
+        return () -> {
+            String recorded = get(step);
+            if (recorded != null) {
+                try {
+                    T value = reattach.apply(recorded);
+                    System.out.println("Re-attached " + step + ": " + recorded);
+                    return value;
+                } catch (RuntimeException e) {
+                    System.out.println("Could not re-attach " + step + " (" + e.getMessage() + "), running it again");
+                }
+            }
+            T value = action.call();
+            record(step, encode.apply(value));
+            return value;
+        };
+    }
+
+    /**
+     * @return whether the step completed against the given outputs of the steps it depends on
+     */
+    public synchronized boolean isDone(String step, String inputs) {
+        return inputs.equals(completed.get(step));
+    }
+
+    /**
+     * Make a step without output resumable: a completed step is skipped.
+     */
+    public ProvisioningGraph.Task resumable(String step, ProvisioningGraph.Task action) {
+        return () -> {
+            if (isDone(step)) {
+                System.out.println("Skipped completed " + step);
+                return;
+            }
+            action.run();
+            record(step, "");
+        };
+    }
+
+    /**
+     * Make a step acting on the outputs of earlier steps resumable. The step records those outputs, and is
+     * skipped only if it completed against the same ones: when an earlier step ran again, because its
+     * resource was gone, the step runs again against the new resource.
+     *
+     * @param inputs outputs of the steps it depends on, read once those completed
+     */
+    public ProvisioningGraph.Task resumable(String step, Callable<String> inputs, ProvisioningGraph.Task action) {
+        return () -> {
+            String current = inputs.call();
+            if (isDone(step, current)) {
+                System.out.println("Skipped completed " + step);
+                return;
+            }
+            if (isDone(step)) {
+                System.out.println("Running " + step + " again, it completed against " + get(step));
+            }
+            action.run();
+            record(step, current);
+        };
+    }
+
+    /**
+     * Close the journal of a finished run and delete it, so the next run starts afresh.
+     */
+    public void finish() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String text) {
+        StringBuilder out = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                out.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+}
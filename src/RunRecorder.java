@@ -0,0 +1,264 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compact binary recording of a scaling run: every snapshot of the load generator log and every scaling
+ * action, for {@link ScalingReplay} to replay other policies and controllers against. Data center names are
+ * written once and then referred to by number, RPS values as floats. Each record is flushed as it is
+ * written, so a crashed run leaves a readable recording, and a resumed run appends to it.
+ */
+public class RunRecorder implements LogTailer.Listener {
+    private static final int MAGIC = 0x52524543;
+    private static final byte HEADER = 'H';
+    private static final byte KEY = 'K';
+    private static final byte SAMPLE = 'S';
+    private static final byte ACTION = 'A';
+
+    private final Path path;
+    private final DataOutputStream out;
+    private final Map<String, Integer> keys = new HashMap<>();
+    private boolean failed;
+
+    private RunRecorder(Path path, boolean resume) throws IOException {
+        this.path = path;
+        boolean append = resume && Files.exists(path) && Files.size(path) > 0;
+        this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)));
+        if (!append) {
+            out.writeInt(MAGIC);
+        }
+    }
+
+    /**
+     * Open the recording at {@code recording} (default {@code <name>.rec}).
+     *
+     * @param name   name of the run, used for the default file name
+     * @param header what the replay needs to know about the run, such as its kind and instance type
+     * @param resume append to the recording of the run being resumed rather than starting a new one
+     */
+    public static RunRecorder open(String name, Map<String, String> header, boolean resume) throws IOException {
+        return open(Paths.get(System.getProperty("recording", name + ".rec")), header, resume);
+    }
+
+    public static RunRecorder open(Path path, Map<String, String> header, boolean resume) throws IOException {
+        RunRecorder recorder = new RunRecorder(path, resume);
+        recorder.header(header);
+        return recorder;
+    }
+
+    private synchronized void header(Map<String, String> header) {
+        write(() -> {
+            out.writeByte(HEADER);
+            out.writeLong(RunClock.now());
+            out.writeShort(header.size());
+            for (Map.Entry<String, String> entry : header.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+        });
+    }
+
+    /**
+     * Record a snapshot of a log section. The last section of a poll is published again as it grows, so a
+     * section may be recorded several times; the replay keeps the last snapshot.
+     */
+    @Override
+    public synchronized void onSample(LogSample sample) {
+        write(() -> {
+            for (String key : sample.getValues().keySet()) {
+                if (!keys.containsKey(key)) {
+                    keys.put(key, keys.size());
+                    out.writeByte(KEY);
+                    out.writeShort(keys.get(key));
+                    out.writeUTF(key);
+                }
+            }
+            out.writeByte(SAMPLE);
+            out.writeLong(RunClock.now());
+            out.writeUTF(sample.getSection());
+            out.writeShort(sample.getValues().size());
+            for (Map.Entry<String, Double> value : sample.getValues().entrySet()) {
+                out.writeShort(keys.get(value.getKey()));
+                out.writeFloat(value.getValue().floatValue());
+            }
+        });
+    }
+
+    /**
+     * Record a scaling action, such as a scale out or an alarm changing state.
+     *
+     * @param name   what happened
+     * @param detail its argument, such as the number of data centers added
+     */
+    public synchronized void action(String name, String detail) {
+        write(() -> {
+            out.writeByte(ACTION);
+            out.writeLong(RunClock.now());
+            out.writeUTF(name);
+            out.writeUTF(detail);
+        });
+    }
+
+    public synchronized void close() throws IOException {
+        out.close();
+        if (!failed) {
+            System.out.println("Run recorded to " + path);
+        }
+    }
+
+    private void write(Write write) {
+        if (failed) {
+            return;
+        }
+        try {
+            write.run();
+            out.flush();
+        } catch (IOException e) {
+            //The recording is only for later analysis and must not fail the run
+            failed = true;
+            System.out.println("Recording to " + path + " stopped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read a recording. A record torn by a crash ends it.
+     */
+    public static Recording read(Path path) throws IOException {
+        Recording recording = new Recording();
+        Map<Integer, String> names = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(path + " is not a run recording");
+            }
+            int type;
+            while ((type = in.read()) >= 0) {
+                try {
+                    read(in, (byte) type, names, recording);
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        }
+        return recording;
+    }
+
+    private static void read(DataInputStream in, byte type, Map<Integer, String> names, Recording recording)
+            throws IOException {
+        switch (type) {
+            case HEADER: {
+                in.readLong();
+                int count = in.readUnsignedShort();
+                for (int i = 0; i < count; i++) {
+                    recording.header.put(in.readUTF(), in.readUTF());
+                }
+                break;
+            }
+            case KEY:
+                names.put(in.readUnsignedShort(), in.readUTF());
+                break;
+            case SAMPLE: {
+                in.readLong();
+                String section = in.readUTF();
+                int count = in.readUnsignedShort();
+                Map<String, Double> values = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    values.put(names.get(in.readUnsignedShort()), (double) in.readFloat());
+                }
+                recording.add(new LogSample(section, values));
+                break;
+            }
+            case ACTION:
+                recording.actions.add(new Action(in.readLong(), in.readUTF(), in.readUTF()));
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    private interface Write {
+        void run() throws IOException;
+    }
+
+    /**
+     * Content of a recording: its header, the last snapshot of each minute section and the actions.
+     */
+    public static class Recording {
+        private final Map<String, String> header = new LinkedHashMap<>();
+        private final TreeMap<Integer, LogSample> minutes = new TreeMap<>();
+        private final List<Action> actions = new ArrayList<>();
+        private LogSample testEnd;
+
+        private void add(LogSample sample) {
+            if (sample.isTestEnd()) {
+                testEnd = sample;
+            } else if (sample.getMinute() >= 0) {
+                minutes.put(sample.getMinute(), sample);
+            }
+        }
+
+        public String get(String key, String fallback) {
+            return header.getOrDefault(key, fallback);
+        }
+
+        /**
+         * @return the minute samples, in minute order
+         */
+        public List<LogSample> getMinutes() {
+            return new ArrayList<>(minutes.values());
+        }
+
+        public List<Action> getActions() {
+            return Collections.unmodifiableList(actions);
+        }
+
+        /**
+         * @return the Test End section, or null if the recording stops before the end of the test
+         */
+        public LogSample getTestEnd() {
+            return testEnd;
+        }
+    }
+
+    /**
+     * One recorded scaling action.
+     */
+    public static class Action {
+        private final long time;
+        private final String name;
+        private final String detail;
+
+        Action(long time, String name, String detail) {
+            this.time = time;
+            this.name = name;
+            this.detail = detail;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDetail() {
+            return detail;
+        }
+    }
+}
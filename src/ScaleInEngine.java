@@ -0,0 +1,264 @@
+import com.amazonaws.services.autoscaling.AmazonAutoScaling;
+import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsRequest;
+import com.amazonaws.services.autoscaling.model.TerminateInstanceInAutoScalingGroupRequest;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.cloudwatch.model.Datapoint;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.GetMetricStatisticsRequest;
+import com.amazonaws.services.cloudwatch.model.Statistic;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancing;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeInstanceHealthRequest;
+import com.amazonaws.services.elasticloadbalancing.model.InstanceState;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Scale in of an auto scaling group which does not cut off load, with {@code -DscaleIn=true}. The instances
+ * of the group are then protected from scale in, so the group never picks them itself; this engine picks them
+ * instead, once a minute:
+ * <ul>
+ *     <li>when a policy has lowered the desired capacity below the instances in service, and</li>
+ *     <li>when the peak RPS of the last {@code -DscaleIn.windowMinutes} (default 10) minutes, plus {@code
+ *     -DscaleIn.margin} (default 0.3), fits in one instance less. The window starts again after every change
+ *     in capacity, and doubles (up to 4 times) when, within the window after a scale in, the RPS of a minute
+ *     comes back above what the instances left serve with the margin, or the group scales out again. The
+ *     group then does not flap between two sizes.</li>
+ * </ul>
+ * Instances serving nothing behind the load balancer go first, then those contributing the least RPS, then
+ * those closest to the end of their {@code -DscaleIn.billingSeconds} (default 3600, 0 for per-second billing)
+ * billing period, then the newest. The log has one RPS for the whole load balancer, so the contribution of an
+ * instance is estimated from it by the instance's share of the CPU of the group over the window.
+ * They are terminated through the group, which deregisters them and waits out the connection draining of
+ * the load balancer ({@code -DscaleIn.drainSeconds}, default 60) before terminating them.
+ */
+public class ScaleInEngine {
+    //Off by default, so a run measures its scaling policy alone; -DscaleIn=true turns it on
+    public static final boolean ENABLED = Boolean.getBoolean("scaleIn");
+    public static final int DRAIN_SECONDS = Integer.getInteger("scaleIn.drainSeconds", 60);
+    private static final int WINDOW_MINUTES = Integer.getInteger("scaleIn.windowMinutes", 10);
+    private static final double MARGIN = Double.parseDouble(System.getProperty("scaleIn.margin", "0.3"));
+    private static final long BILLING_SECONDS = Long.getLong("scaleIn.billingSeconds", 3600);
+    //Contributions closer than this share of the RPS of one instance count as equal
+    private static final double CONTRIBUTION_STEP = 0.1;
+
+    private final AmazonAutoScaling autoScaling;
+    private final AmazonElasticLoadBalancing elb;
+    private final AmazonEC2 ec2;
+    private final AmazonCloudWatch cloudWatch;
+    private final String asgName;
+    private final String loadBalancerName;
+    private final int minSize;
+    private final double instanceRps;
+    //Latest snapshot total of each minute of the longest window
+    private final TreeMap<Integer, Double> history = new TreeMap<>();
+    private int minute;
+    //First minute of the window, moved on by every change in capacity
+    private int quietSince;
+    private int lastDesired = -1;
+    //Current window, and the minute of the last scale in taking an instance off the desired capacity
+    private int window = WINDOW_MINUTES;
+    private int lastScaleIn = -1;
+    //Instances left serving by the last scale in, and the last scale in the window was doubled for
+    private int keptByScaleIn;
+    private int flapped = -1;
+
+    /**
+     * @param instanceRps RPS one instance of the group serves
+     */
+    public ScaleInEngine(AmazonAutoScaling autoScaling, AmazonElasticLoadBalancing elb, AmazonEC2 ec2,
+                         AmazonCloudWatch cloudWatch, String asgName, String loadBalancerName, int minSize,
+                         double instanceRps) {
+        this.autoScaling = autoScaling;
+        this.elb = elb;
+        this.ec2 = ec2;
+        this.cloudWatch = cloudWatch;
+        this.asgName = asgName;
+        this.loadBalancerName = loadBalancerName;
+        this.minSize = minSize;
+        this.instanceRps = instanceRps;
+    }
+
+    /**
+     * Add a minute sample to the history, and scale in when a new minute starts and the group can lose
+     * instances.
+     *
+     * @return the instances being terminated
+     */
+    public synchronized List<String> onMinute(LogSample sample) {
+        if (sample.getMinute() < minute) {
+            return new ArrayList<>();
+        }
+        boolean next = sample.getMinute() > minute;
+        minute = sample.getMinute();
+        //A snapshot of the minute being written can be cut short, so the window keeps the latest one
+        history.put(minute, sample.getTotal());
+        while (history.firstKey() <= minute - WINDOW_MINUTES * 4) {
+            history.pollFirstEntry();
+        }
+        return next ? scaleIn() : new ArrayList<>();
+    }
+
+    private List<String> scaleIn() {
+        List<AutoScalingGroup> groups = autoScaling.describeAutoScalingGroups(new DescribeAutoScalingGroupsRequest()
+                .withAutoScalingGroupNames(asgName)).getAutoScalingGroups();
+        if (groups.isEmpty()) {
+            return new ArrayList<>();
+        }
+        AutoScalingGroup group = groups.get(0);
+        int desired = group.getDesiredCapacity() == null ? 0 : group.getDesiredCapacity();
+        boolean scaledOut = desired > lastDesired && lastDesired >= 0;
+        //The finished minute needing more than the instances the last scale in left
+        Double finished = history.get(minute - 1);
+        boolean loadBack = lastScaleIn >= 0 && finished != null
+                && finished * (1 + MARGIN) > keptByScaleIn * instanceRps;
+        if (scaledOut || loadBack && minute - lastScaleIn <= window) {
+            quietSince = minute;
+        }
+        if ((scaledOut || loadBack) && lastScaleIn >= 0 && lastScaleIn != flapped && minute - lastScaleIn <= window) {
+            flapped = lastScaleIn;
+            if (window < WINDOW_MINUTES * 4) {
+                window *= 2;
+                System.out.println(String.format("%s: %s after scaling in, waiting %d quiet minutes before the next"
+                        + " scale in", asgName, scaledOut ? "scaled out again" : String.format(
+                        "%.0f RPS came back", finished), window));
+            }
+        } else if (lastScaleIn >= 0 && lastScaleIn == quietSince && minute - lastScaleIn > window) {
+            //The last scale in held for a whole window
+            window = WINDOW_MINUTES;
+        }
+        lastDesired = desired;
+        List<String> serving = new ArrayList<>();
+        for (com.amazonaws.services.autoscaling.model.Instance instance : group.getInstances()) {
+            if ("InService".equals(instance.getLifecycleState()) || "Pending".equals(instance.getLifecycleState())) {
+                serving.add(instance.getInstanceId());
+            }
+        }
+        //A policy lowered the desired capacity, but left the protected instances to us
+        int count = serving.size() - desired;
+        boolean decrement = false;
+        if (count <= 0 && minute - quietSince >= window && desired > minSize && instanceRps > 0) {
+            double peak = 0;
+            for (double total : history.tailMap(minute - window, false).values()) {
+                peak = Math.max(peak, total);
+            }
+            int needed = Math.max(minSize, (int) Math.ceil(peak * (1 + MARGIN) / instanceRps));
+            if (needed < serving.size()) {
+                count = 1;
+                decrement = true;
+                System.out.println(String.format("%s: peak %.0f RPS in the last %d minutes needs %d of %d instances",
+                        asgName, peak, window, needed, serving.size()));
+            }
+        }
+        if (count <= 0) {
+            return new ArrayList<>();
+        }
+        List<String> victims = rank(serving).subList(0, Math.min(count, serving.size()));
+        for (String victim : victims) {
+            autoScaling.terminateInstanceInAutoScalingGroup(new TerminateInstanceInAutoScalingGroupRequest()
+                    .withInstanceId(victim)
+                    .withShouldDecrementDesiredCapacity(decrement));
+            Metrics.shared().counter("scale_in_instances_total", "group", asgName).inc();
+        }
+        System.out.println(asgName + ": scaling in " + victims + (decrement ? "" : " for the policy")
+                + ", draining for " + DRAIN_SECONDS + " s");
+        lastDesired = decrement ? desired - victims.size() : desired;
+        quietSince = minute;
+        if (decrement) {
+            lastScaleIn = minute;
+            keptByScaleIn = serving.size() - victims.size();
+        }
+        return victims;
+    }
+
+    /**
+     * @return the instances in the order they should leave: serving nothing first, then contributing the
+     * least RPS, then closest to the end of their billing period, then newest
+     */
+    private List<String> rank(List<String> instanceIds) {
+        Set<String> inService = new HashSet<>();
+        for (InstanceState state : elb.describeInstanceHealth(
+                new DescribeInstanceHealthRequest(loadBalancerName)).getInstanceStates()) {
+            if ("InService".equals(state.getState())) {
+                inService.add(state.getInstanceId());
+            }
+        }
+        Map<String, Long> launched = new HashMap<>();
+        for (Reservation reservation : ec2.describeInstances(new DescribeInstancesRequest()
+                .withInstanceIds(instanceIds)).getReservations()) {
+            for (Instance instance : reservation.getInstances()) {
+                launched.put(instance.getInstanceId(),
+                        instance.getLaunchTime() == null ? 0 : instance.getLaunchTime().getTime());
+            }
+        }
+        long now = RunClock.now();
+        Map<String, Double> contribution = contributions(inService, now);
+        double step = Math.max(1, instanceRps * CONTRIBUTION_STEP);
+        List<String> ranked = new ArrayList<>(instanceIds);
+        ranked.sort(Comparator.<String>comparingInt(id -> inService.contains(id) ? 1 : 0)
+                .thenComparingLong(id -> Math.round(contribution.getOrDefault(id, 0.0) / step))
+                .thenComparingLong(id -> paidMillisLeft(launched.getOrDefault(id, now), now))
+                .thenComparing(Comparator.<String>comparingLong(id -> launched.getOrDefault(id, now)).reversed()));
+        return ranked;
+    }
+
+    /**
+     * Estimate the RPS each instance in service contributed over the window: the mean RPS of the log, which
+     * is one value for the whole load balancer, split by each instance's share of the summed CPU.
+     *
+     * @return RPS by instance id, empty without CPU data
+     */
+    private Map<String, Double> contributions(Set<String> inService, long now) {
+        Map<String, Double> cpu = new HashMap<>();
+        double total = 0;
+        for (String id : inService) {
+            double sum = 0;
+            int points = 0;
+            for (Datapoint point : cloudWatch.getMetricStatistics(new GetMetricStatisticsRequest()
+                    .withNamespace("AWS/EC2").withMetricName("CPUUtilization")
+                    .withDimensions(new Dimension().withName("InstanceId").withValue(id))
+                    .withStartTime(new Date(now - window * 60_000L)).withEndTime(new Date(now))
+                    .withPeriod(60).withStatistics(Statistic.Average.toString())).getDatapoints()) {
+                sum += point.getAverage();
+                points++;
+            }
+            if (points > 0) {
+                cpu.put(id, sum / points);
+                total += sum / points;
+            }
+        }
+        double rps = 0;
+        Map<Integer, Double> recent = history.tailMap(minute - window, false);
+        for (double minuteRps : recent.values()) {
+            rps += minuteRps / recent.size();
+        }
+        Map<String, Double> contribution = new HashMap<>();
+        for (Map.Entry<String, Double> entry : cpu.entrySet()) {
+            contribution.put(entry.getKey(), total > 0 ? rps * entry.getValue() / total : 0);
+        }
+        return contribution;
+    }
+
+    /**
+     * @return time left in the billing period the instance is in, 0 with per-second billing
+     */
+    static long paidMillisLeft(long launched, long now) {
+        if (BILLING_SECONDS <= 0) {
+            return 0;
+        }
+        long period = BILLING_SECONDS * 1000;
+        return period - Math.max(0, now - launched) % period;
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * Decides how many data centers to add in one iteration of the horizontal scaling loop.
+ */
+public interface ScalingController {
+
+    /**
+     * @param sample      latest minute sample of the test log, or null before the first one
+     * @param dataCenters number of data centers launched so far, including those not yet in the log
+     * @return number of data centers to launch now, 0 to hold
+     */
+    int decide(LogSample sample, int dataCenters);
+
+    /**
+     * Pick a controller by name: {@code fixed}, {@code pid} or {@code model}.
+     *
+     * @param name   name of the strategy
+     * @param target target cumulative RPS
+     */
+    static ScalingController forName(String name, double target) {
+        switch (name) {
+            case "fixed":
+                return new FixedStepController(target, 1);
+            case "pid":
+                return new PidController(target, 1.0, 0.1, 0.0);
+            case "model":
+                return new ModelBasedController(target);
+            default:
+                throw new IllegalArgumentException("Unknown scaling controller " + name);
+        }
+    }
+}
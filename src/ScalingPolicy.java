@@ -0,0 +1,81 @@
+import com.amazonaws.services.autoscaling.AmazonAutoScaling;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+
+import java.util.List;
+
+/**
+ * Declarative scaling policy of an auto scaling group. Implementations turn the declaration into the Auto
+ * Scaling policies and CloudWatch alarms which carry it out.
+ */
+public interface ScalingPolicy {
+
+    /**
+     * Put the policies, and the alarms which trigger them, on the group.
+     *
+     * @param asgName     name of the auto scaling group
+     * @param autoScaling the Auto Scaling client
+     * @param cloudWatch  the CloudWatch client
+     * @return names of the alarms now driving the group
+     */
+    List<String> apply(String asgName, AmazonAutoScaling autoScaling, AmazonCloudWatch cloudWatch);
+
+    /**
+     * @return a fresh minute by minute model of how the policy changes the capacity of the group, for
+     * {@link ScalingReplay} to replay recorded load against
+     * @throws IllegalArgumentException if the metric of the policy cannot be replayed
+     */
+    Model model();
+
+    /**
+     * Pick a policy by name: {@code step} scales on CPU bands of 60/75/90%, {@code cpu:<percent>} tracks an
+     * average CPU utilization of the group, {@code rps:<rps>} an RPS per instance published by
+     * {@link RpsMetricPublisher}. {@code step:<settings>} changes some settings of {@code step},
+     * see {@link StepScalingPolicy#configure}.
+     *
+     * @param name name of the policy
+     */
+    static ScalingPolicy forName(String name) {
+        if (name.startsWith("cpu:")) {
+            return TargetTrackingPolicy.cpu(Double.parseDouble(name.substring(4)));
+        }
+        if (name.startsWith("rps:")) {
+            return TargetTrackingPolicy.rpsPerInstance(Double.parseDouble(name.substring(4)));
+        }
+        if (name.equals("step") || name.startsWith("step:")) {
+            StepScalingPolicy step = StepScalingPolicy.cpu()
+                    .scaleOut(60, 1)
+                    .scaleOut(75, 2)
+                    .scaleOut(90, 3)
+                    .scaleIn(20, -1)
+                    .evaluationPeriods(1, 5)
+                    .warmup(120);
+            return name.equals("step") ? step : step.configure(name.substring(5));
+        }
+        throw new IllegalArgumentException("Unknown scaling policy " + name);
+    }
+
+    /**
+     * Capacity decisions of a policy, one per minute of its metric.
+     */
+    interface Model {
+
+        /**
+         * @param metric   average of the metric over the minute
+         * @param serving  instances counted in the metric
+         * @param capacity instances in the group, booting ones included
+         * @param warming  instances launched less than {@link #warmupSeconds} ago
+         * @return instances to add, or to remove when negative
+         */
+        int adjust(double metric, int serving, int capacity, int warming);
+
+        int warmupSeconds();
+
+        /**
+         * @return whether the metric is the RPS per serving instance, rather than the CPU utilization of the
+         * group in percent
+         */
+        default boolean perInstanceRps() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What-if analysis over a run recorded by {@link RunRecorder}: the recorded load is replayed minute by
+ * minute against other scaling settings, to tune them without paying for new AWS runs:
+ * <pre>
+ *     java ScalingReplay AwsAutoScaling.rec step step:out=70+1/85+2,in=30-1 cpu:50
+ *     java ScalingReplay AwsHorizontalScaling.rec fixed model pid
+ * </pre>
+ * Auto scaling recordings replay policies ({@link ScalingPolicy#forName}) against the RPS of each minute,
+ * which is a lower bound of the load where the recorded group was saturated. Horizontal recordings replay
+ * controllers ({@link ScalingController#forName}) until the target. Instances serve {@code
+ * -Dreplay.instanceRps} each, by default the per data center RPS of the recording or the capacity profile
+ * of the instance type, once {@code -Dreplay.bootMinutes} have passed, by default the scale out time of the
+ * recording or 3.
+ */
+public class ScalingReplay {
+    private static final int DEFAULT_BOOT_MINUTES = 3;
+
+    public static void main(String[] args) throws IOException {
+        RunRecorder.Recording recording = RunRecorder.read(Paths.get(args[0]));
+        String type = recording.get("type", "m3.medium");
+        CapacityPlanner.Profile profile = CapacityPlanner.fromSystemProperties().profile(type);
+        double hourlyCost = profile == null ? 0 : profile.getHourlyCost();
+        boolean horizontal = "horizontal".equals(recording.get("kind", ""));
+        double instanceRps = Double.parseDouble(System.getProperty("replay.instanceRps", String.valueOf(
+                horizontal ? measuredInstanceRps(recording) : profile == null ? 0 : profile.getRps())));
+        int bootMinutes = Integer.getInteger("replay.bootMinutes", measuredBootMinutes(recording));
+        System.out.println(String.format("%s: %s run of %s, %d minutes recorded, %d actions, %.0f RPS per instance,"
+                        + " %d minutes to boot", args[0], recording.get("kind", "unknown"), type,
+                recording.getMinutes().size(), recording.getActions().size(), instanceRps, bootMinutes));
+        if (Boolean.parseBoolean(recording.get("predictive", "false"))) {
+            System.out.println("Recorded with predictive scaling, whose scale outs shaped the recorded load");
+        }
+        if (Boolean.parseBoolean(recording.get("scaleIn", "false"))) {
+            System.out.println("Recorded with the scale in engine, which picked the recorded scale ins");
+        }
+
+        for (int i = 1; i < args.length; i++) {
+            String setting = args[i].trim();
+            Result result;
+            //A setting which cannot be replayed is reported, and the others still run
+            try {
+                if (horizontal) {
+                    double target = Double.parseDouble(recording.get("targetRps", "4000"));
+                    int horizon = Integer.getInteger("replay.minutes", Math.max(30, recording.getMinutes().size()));
+                    result = replay(ScalingController.forName(setting, target), target, horizon, instanceRps,
+                            bootMinutes);
+                } else {
+                    result = replay(ScalingPolicy.forName(setting).model(), recording.getMinutes(),
+                            Integer.parseInt(recording.get("minSize", "1")),
+                            Integer.parseInt(recording.get("maxSize", "10")), instanceRps, bootMinutes);
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println(String.format("%-32s cannot be replayed: %s", setting, e.getMessage()));
+                continue;
+            }
+            System.out.println(String.format("%-32s %s, $%.2f", setting, result, result.instanceMinutes
+                    * hourlyCost / 60));
+        }
+    }
+
+    /**
+     * Replay a controller the way the horizontal scaling run drives it: one decision per minute sample
+     * while no scale out is on its way, starting from one data center, until the target is reached.
+     *
+     * @param controller  the controller
+     * @param target      target cumulative RPS
+     * @param horizon     minutes to give up after
+     * @param instanceRps RPS of one data center
+     * @param bootMinutes minutes from a decision until the new data centers serve
+     */
+    static Result replay(ScalingController controller, double target, int horizon, double instanceRps,
+                         int bootMinutes) {
+        Result result = new Result();
+        result.reachedAt = 0;
+        //Minute after which each data center serves; the first one is added with the start of the test
+        List<Integer> readyAfter = new ArrayList<>();
+        readyAfter.add(0);
+        int busyUntil = 0;
+        for (int minute = 1; minute <= horizon; minute++) {
+            Map<String, Double> values = new LinkedHashMap<>();
+            for (int dc = 0; dc < readyAfter.size(); dc++) {
+                if (readyAfter.get(dc) < minute) {
+                    values.put("dc" + dc, instanceRps);
+                }
+            }
+            LogSample sample = new LogSample("Minute " + minute, values);
+            result.minute(readyAfter.size(), target, sample.getTotal());
+            if (sample.getTotal() >= target) {
+                result.reachedAt = minute;
+                break;
+            }
+            if (minute < busyUntil) {
+                continue;
+            }
+            int count = controller.decide(sample, readyAfter.size());
+            for (int i = 0; i < count; i++) {
+                readyAfter.add(minute + bootMinutes);
+            }
+            busyUntil = count > 0 ? minute + bootMinutes : busyUntil;
+        }
+        return result;
+    }
+
+    /**
+     * Replay a policy against the load of each recorded minute. The group starts at its minimum size;
+     * its CPU is the load over what its serving instances can take, capped at 100%, and its RPS per instance
+     * what they serve of the load, shared evenly.
+     *
+     * @param model       model of the policy
+     * @param minutes     recorded minute samples, whose totals are the load
+     * @param minSize     minimum size of the group
+     * @param maxSize     maximum size of the group
+     * @param instanceRps RPS one instance serves
+     * @param bootMinutes minutes from a launch until the instance serves
+     */
+    static Result replay(ScalingPolicy.Model model, List<LogSample> minutes, int minSize, int maxSize,
+                         double instanceRps, int bootMinutes) {
+        Result result = new Result();
+        int warmupMinutes = (model.warmupSeconds() + 59) / 60;
+        //Minute of launch of each instance, oldest first; the first ones serve from the start
+        List<Integer> launched = new ArrayList<>();
+        for (int i = 0; i < minSize; i++) {
+            launched.add(-bootMinutes);
+        }
+        for (int minute = 0; minute < minutes.size(); minute++) {
+            double load = minutes.get(minute).getTotal();
+            int serving = 0;
+            int warming = 0;
+            for (int start : launched) {
+                if (minute - start >= bootMinutes) {
+                    serving++;
+                }
+                //An instance warms up at least until it serves
+                if (minute - start < Math.max(bootMinutes, warmupMinutes)) {
+                    warming++;
+                }
+            }
+            double capacity = serving * instanceRps;
+            result.minute(launched.size(), load, Math.min(load, capacity));
+            double metric;
+            if (model.perInstanceRps()) {
+                metric = serving == 0 ? 0 : Math.min(load, capacity) / serving;
+            } else {
+                metric = capacity == 0 ? 100 : 100 * Math.min(1, load / capacity);
+            }
+            int size = Math.max(minSize, Math.min(maxSize, launched.size()
+                    + model.adjust(metric, serving, launched.size(), warming)));
+            while (launched.size() < size) {
+                launched.add(minute);
+            }
+            //Scale in removes the newest instances first
+            while (launched.size() > size) {
+                launched.remove(launched.size() - 1);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return mean RPS of the data centers serving in the recorded minutes
+     */
+    private static double measuredInstanceRps(RunRecorder.Recording recording) {
+        double sum = 0;
+        int count = 0;
+        for (LogSample sample : recording.getMinutes()) {
+            for (double value : sample.getValues().values()) {
+                if (value > 0) {
+                    sum += value;
+                    count++;
+                }
+            }
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @return mean minutes from a scale out decision until its data centers were added, rounded up
+     */
+    private static int measuredBootMinutes(RunRecorder.Recording recording) {
+        long total = 0;
+        int count = 0;
+        Long decided = null;
+        for (RunRecorder.Action action : recording.getActions()) {
+            if (action.getName().equals("scale out")) {
+                decided = action.getTime();
+            } else if (action.getName().equals("data centers added") && decided != null) {
+                total += action.getTime() - decided;
+                count++;
+                decided = null;
+            }
+        }
+        return count == 0 ? DEFAULT_BOOT_MINUTES : (int) Math.max(1, Math.ceil(total / (count * 60000.0)));
+    }
+
+    /**
+     * Outcome of one replay.
+     */
+    static class Result {
+        private long instanceMinutes;
+        private double shortfall;
+        private int shortMinutes;
+        private int minutes;
+        private int peak;
+        //Minute the target was reached, 0 if never, -1 without a target
+        private int reachedAt = -1;
+
+        private void minute(int instances, double wanted, double served) {
+            minutes++;
+            instanceMinutes += instances;
+            peak = Math.max(peak, instances);
+            if (served < wanted) {
+                shortfall += wanted - served;
+                shortMinutes++;
+            }
+        }
+
+        /**
+         * @return instances paid for, summed over the minutes
+         */
+        public long getInstanceMinutes() {
+            return instanceMinutes;
+        }
+
+        /**
+         * @return RPS missing from the load, or from the target, summed over the minutes
+         */
+        public double getShortfall() {
+            return shortfall;
+        }
+
+        @Override
+        public String toString() {
+            String target = reachedAt > 0 ? "target at minute " + reachedAt + ", "
+                    : reachedAt == 0 ? "target not reached, " : "";
+            return String.format("%s%d instance-minutes, peak %d, shortfall %.0f RPS-minutes in %d of %d minutes",
+                    target, instanceMinutes, peak, shortfall, shortMinutes, minutes);
+        }
+    }
+}
@@ -0,0 +1,562 @@
+import com.amazonaws.services.autoscaling.AbstractAmazonAutoScaling;
+import com.amazonaws.services.autoscaling.model.Alarm;
+import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.autoscaling.model.Activity;
+import com.amazonaws.services.autoscaling.model.CreateAutoScalingGroupRequest;
+import com.amazonaws.services.autoscaling.model.CreateAutoScalingGroupResult;
+import com.amazonaws.services.autoscaling.model.CreateLaunchConfigurationRequest;
+import com.amazonaws.services.autoscaling.model.CreateLaunchConfigurationResult;
+import com.amazonaws.services.autoscaling.model.CustomizedMetricSpecification;
+import com.amazonaws.services.autoscaling.model.DeleteAutoScalingGroupRequest;
+import com.amazonaws.services.autoscaling.model.DeleteAutoScalingGroupResult;
+import com.amazonaws.services.autoscaling.model.DeleteLaunchConfigurationRequest;
+import com.amazonaws.services.autoscaling.model.DeleteLaunchConfigurationResult;
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsRequest;
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsResult;
+import com.amazonaws.services.autoscaling.model.DescribeLaunchConfigurationsRequest;
+import com.amazonaws.services.autoscaling.model.DescribeLaunchConfigurationsResult;
+import com.amazonaws.services.autoscaling.model.Instance;
+import com.amazonaws.services.autoscaling.model.LaunchConfiguration;
+import com.amazonaws.services.autoscaling.model.MetricDimension;
+import com.amazonaws.services.autoscaling.model.PredefinedMetricSpecification;
+import com.amazonaws.services.autoscaling.model.PutScalingPolicyRequest;
+import com.amazonaws.services.autoscaling.model.PutScalingPolicyResult;
+import com.amazonaws.services.autoscaling.model.SetInstanceProtectionRequest;
+import com.amazonaws.services.autoscaling.model.SetInstanceProtectionResult;
+import com.amazonaws.services.autoscaling.model.StepAdjustment;
+import com.amazonaws.services.autoscaling.model.Tag;
+import com.amazonaws.services.autoscaling.model.TagDescription;
+import com.amazonaws.services.autoscaling.model.TargetTrackingConfiguration;
+import com.amazonaws.services.autoscaling.model.TerminateInstanceInAutoScalingGroupRequest;
+import com.amazonaws.services.autoscaling.model.TerminateInstanceInAutoScalingGroupResult;
+import com.amazonaws.services.autoscaling.model.UpdateAutoScalingGroupRequest;
+import com.amazonaws.services.autoscaling.model.UpdateAutoScalingGroupResult;
+import com.amazonaws.services.cloudwatch.model.ComparisonOperator;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.PutMetricAlarmRequest;
+import com.amazonaws.services.cloudwatch.model.Statistic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Auto Scaling calls against the {@link SimulatedCloud}. Groups launch and terminate instances to track
+ * their desired capacity, and policies are executed by the simulated CloudWatch alarms.
+ */
+class SimulatedAutoScaling extends AbstractAmazonAutoScaling {
+    private static final String ARN_FORMAT =
+            "arn:aws:autoscaling:us-east-1:000000000000:scalingPolicy:%08x:autoScalingGroupName/%s:policyName/%s";
+
+    private final SimulatedCloud cloud;
+    final Map<String, CreateLaunchConfigurationRequest> launchConfigurations = new LinkedHashMap<>();
+    final Map<String, SimAsg> groups = new LinkedHashMap<>();
+    final Map<String, PutScalingPolicyRequest> policies = new LinkedHashMap<>();
+
+    SimulatedAutoScaling(SimulatedCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    @Override
+    public CreateLaunchConfigurationResult createLaunchConfiguration(CreateLaunchConfigurationRequest request) {
+        synchronized (cloud) {
+            if (launchConfigurations.containsKey(request.getLaunchConfigurationName())) {
+                throw SimulatedCloud.error("AmazonAutoScaling", "AlreadyExists",
+                        "Launch Configuration by this name already exists");
+            }
+            launchConfigurations.put(request.getLaunchConfigurationName(), request);
+            return new CreateLaunchConfigurationResult();
+        }
+    }
+
+    @Override
+    public DescribeLaunchConfigurationsResult describeLaunchConfigurations(DescribeLaunchConfigurationsRequest request) {
+        synchronized (cloud) {
+            List<LaunchConfiguration> found = new ArrayList<>();
+            for (CreateLaunchConfigurationRequest lc : launchConfigurations.values()) {
+                if (request.getLaunchConfigurationNames().isEmpty()
+                        || request.getLaunchConfigurationNames().contains(lc.getLaunchConfigurationName())) {
+                    found.add(new LaunchConfiguration().withLaunchConfigurationName(lc.getLaunchConfigurationName())
+                            .withImageId(lc.getImageId())
+                            .withInstanceType(lc.getInstanceType()));
+                }
+            }
+            return new DescribeLaunchConfigurationsResult().withLaunchConfigurations(found);
+        }
+    }
+
+    @Override
+    public DeleteLaunchConfigurationResult deleteLaunchConfiguration(DeleteLaunchConfigurationRequest request) {
+        synchronized (cloud) {
+            String name = request.getLaunchConfigurationName();
+            if (name == null || !launchConfigurations.containsKey(name)) {
+                throw SimulatedCloud.error("AmazonAutoScaling", "ValidationError",
+                        "Launch configuration name not found - " + name);
+            }
+            for (SimAsg asg : groups.values()) {
+                if (name.equals(asg.launchConfiguration)) {
+                    throw SimulatedCloud.error("AmazonAutoScaling", "ResourceInUse",
+                            "Cannot delete launch configuration " + name + " because it is attached to " + asg.name);
+                }
+            }
+            launchConfigurations.remove(name);
+            return new DeleteLaunchConfigurationResult();
+        }
+    }
+
+    @Override
+    public CreateAutoScalingGroupResult createAutoScalingGroup(CreateAutoScalingGroupRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            if (groups.containsKey(request.getAutoScalingGroupName())) {
+                throw SimulatedCloud.error("AmazonAutoScaling", "AlreadyExists",
+                        "AutoScalingGroup by this name already exists");
+            }
+            SimAsg asg = new SimAsg();
+            asg.name = request.getAutoScalingGroupName();
+            asg.launchConfiguration = request.getLaunchConfigurationName();
+            asg.minSize = request.getMinSize();
+            asg.maxSize = request.getMaxSize();
+            asg.desired = request.getDesiredCapacity() == null ? asg.minSize : request.getDesiredCapacity();
+            asg.zones = new ArrayList<>(request.getAvailabilityZones());
+            asg.loadBalancers = new ArrayList<>(request.getLoadBalancerNames());
+            asg.tags = new ArrayList<>(request.getTags());
+            if (request.getDefaultCooldown() != null) {
+                asg.cooldownMillis = request.getDefaultCooldown() * 1000L;
+            }
+            asg.protectNew = Boolean.TRUE.equals(request.getNewInstancesProtectedFromScaleIn());
+            asg.createdTime = RunClock.now();
+            groups.put(asg.name, asg);
+            reconcile(asg, asg.createdTime);
+            return new CreateAutoScalingGroupResult();
+        }
+    }
+
+    @Override
+    public UpdateAutoScalingGroupResult updateAutoScalingGroup(UpdateAutoScalingGroupRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            SimAsg asg = get(request.getAutoScalingGroupName());
+            if (request.getMinSize() != null) {
+                asg.minSize = request.getMinSize();
+            }
+            if (request.getMaxSize() != null) {
+                asg.maxSize = request.getMaxSize();
+            }
+            if (request.getDesiredCapacity() != null) {
+                asg.desired = request.getDesiredCapacity();
+            }
+            if (request.getDefaultCooldown() != null) {
+                asg.cooldownMillis = request.getDefaultCooldown() * 1000L;
+            }
+            asg.desired = Math.max(asg.minSize, Math.min(asg.maxSize, asg.desired));
+            reconcile(asg, RunClock.now());
+            return new UpdateAutoScalingGroupResult();
+        }
+    }
+
+    @Override
+    public DeleteAutoScalingGroupResult deleteAutoScalingGroup(DeleteAutoScalingGroupRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            SimAsg asg = get(request.getAutoScalingGroupName());
+            List<SimulatedCloud.SimInstance> members = members(asg.name);
+            if (!members.isEmpty() && !Boolean.TRUE.equals(request.getForceDelete())) {
+                throw SimulatedCloud.error("AmazonAutoScaling", "ResourceInUse",
+                        "You cannot delete an AutoScalingGroup while there are instances or pending Spot instance request(s) still in the group.");
+            }
+            for (SimulatedCloud.SimInstance instance : members) {
+                cloud.terminate(instance.id, RunClock.now());
+            }
+            groups.remove(asg.name);
+            policies.values().removeIf(policy -> policy.getAutoScalingGroupName().equals(asg.name));
+            //Target tracking alarms belong to their policy and go with it
+            cloud.cloudWatch.deleteAlarmsWithPrefix("TargetTracking-" + asg.name + "-");
+            return new DeleteAutoScalingGroupResult();
+        }
+    }
+
+    @Override
+    public DescribeAutoScalingGroupsResult describeAutoScalingGroups(DescribeAutoScalingGroupsRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            long now = RunClock.now();
+            List<AutoScalingGroup> found = new ArrayList<>();
+            for (SimAsg asg : groups.values()) {
+                if (!request.getAutoScalingGroupNames().isEmpty()
+                        && !request.getAutoScalingGroupNames().contains(asg.name)) {
+                    continue;
+                }
+                List<Instance> members = new ArrayList<>();
+                for (SimulatedCloud.SimInstance instance : members(asg.name)) {
+                    members.add(new Instance().withInstanceId(instance.id)
+                            .withAvailabilityZone(instance.zone)
+                            .withLaunchConfigurationName(asg.launchConfiguration)
+                            .withHealthStatus("Healthy")
+                            .withLifecycleState(instance.draining ? "Terminating"
+                                    : instance.isReady(now) ? "InService" : "Pending")
+                            .withProtectedFromScaleIn(instance.protectedFromScaleIn));
+                }
+                List<TagDescription> tags = new ArrayList<>();
+                for (Tag tag : asg.tags) {
+                    tags.add(new TagDescription().withKey(tag.getKey()).withValue(tag.getValue())
+                            .withResourceId(asg.name).withResourceType("auto-scaling-group"));
+                }
+                found.add(new AutoScalingGroup().withAutoScalingGroupName(asg.name)
+                        .withLaunchConfigurationName(asg.launchConfiguration)
+                        .withMinSize(asg.minSize)
+                        .withMaxSize(asg.maxSize)
+                        .withDesiredCapacity(asg.desired)
+                        .withAvailabilityZones(asg.zones)
+                        .withLoadBalancerNames(asg.loadBalancers)
+                        .withCreatedTime(new Date(asg.createdTime))
+                        .withTags(tags)
+                        .withInstances(members));
+            }
+            return new DescribeAutoScalingGroupsResult().withAutoScalingGroups(found);
+        }
+    }
+
+    @Override
+    public PutScalingPolicyResult putScalingPolicy(PutScalingPolicyRequest request) {
+        synchronized (cloud) {
+            get(request.getAutoScalingGroupName());
+            String arn = String.format(ARN_FORMAT, (request.getAutoScalingGroupName() + request.getPolicyName()).hashCode(),
+                    request.getAutoScalingGroupName(), request.getPolicyName());
+            policies.put(arn, request);
+            PutScalingPolicyResult result = new PutScalingPolicyResult().withPolicyARN(arn);
+            if ("TargetTrackingScaling".equals(request.getPolicyType())) {
+                result.withAlarms(targetTrackingAlarms(request, arn));
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public SetInstanceProtectionResult setInstanceProtection(SetInstanceProtectionRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            SimAsg asg = get(request.getAutoScalingGroupName());
+            for (String instanceId : request.getInstanceIds()) {
+                member(asg.name, instanceId).protectedFromScaleIn = Boolean.TRUE.equals(request.getProtectedFromScaleIn());
+            }
+            //Instances no longer protected are terminated if the group is above its desired capacity
+            reconcile(asg, RunClock.now());
+            return new SetInstanceProtectionResult();
+        }
+    }
+
+    /**
+     * Terminate one instance of a group, protected or not. With connection draining on its load balancers
+     * it leaves them at once and terminates once the draining timeout has passed.
+     */
+    @Override
+    public TerminateInstanceInAutoScalingGroupResult terminateInstanceInAutoScalingGroup(
+            TerminateInstanceInAutoScalingGroupRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            long now = RunClock.now();
+            SimulatedCloud.SimInstance instance = null;
+            for (SimAsg asg : groups.values()) {
+                for (SimulatedCloud.SimInstance member : members(asg.name)) {
+                    if (member.id.equals(request.getInstanceId())) {
+                        instance = member;
+                    }
+                }
+            }
+            if (instance == null) {
+                throw SimulatedCloud.error("AmazonAutoScaling", "ValidationError",
+                        "Instance Id not found - No managed instance found for instance ID " + request.getInstanceId());
+            }
+            SimAsg asg = get(instance.asgName);
+            if (Boolean.TRUE.equals(request.getShouldDecrementDesiredCapacity())) {
+                if (asg.desired <= asg.minSize) {
+                    throw SimulatedCloud.error("AmazonAutoScaling", "ValidationError", "Currently, desiredSize equals "
+                            + "minSize (" + asg.minSize + "). Terminating instance without replacement will violate "
+                            + "group's min size constraint. Either set shouldDecrementDesiredCapacity flag to false or "
+                            + "lower group's min size.");
+                }
+                asg.desired--;
+            }
+            long drain = 0;
+            for (String elbName : asg.loadBalancers) {
+                drain = Math.max(drain, cloud.elb.drainMillis(elbName));
+            }
+            SimulatedCloud.SimInstance leaving = instance;
+            if (drain > 0 && !leaving.draining) {
+                leaving.draining = true;
+                cloud.schedule(now + drain, time -> cloud.terminate(leaving.id, time));
+            } else {
+                cloud.terminate(leaving.id, now);
+            }
+            reconcile(asg, now);
+            return new TerminateInstanceInAutoScalingGroupResult().withActivity(new Activity()
+                    .withActivityId(Integer.toHexString((leaving.id + now).hashCode()))
+                    .withStatusCode("InProgress")
+                    .withDescription("Terminating EC2 instance: " + leaving.id));
+        }
+    }
+
+    /**
+     * Create the alarms Auto Scaling creates for a target tracking policy: high after 3 minutes above the
+     * target, low after 15 minutes below 90% of it.
+     */
+    private List<Alarm> targetTrackingAlarms(PutScalingPolicyRequest request, String arn) {
+        TargetTrackingConfiguration configuration = request.getTargetTrackingConfiguration();
+        List<Alarm> alarms = new ArrayList<>();
+        String prefix = "TargetTracking-" + request.getAutoScalingGroupName();
+        alarms.add(putAlarm(trackedMetric(request).withAlarmName(prefix + "-AlarmHigh-" + Integer.toHexString(arn.hashCode()))
+                .withComparisonOperator(ComparisonOperator.GreaterThanThreshold)
+                .withThreshold(configuration.getTargetValue())
+                .withEvaluationPeriods(3), arn));
+        if (!Boolean.TRUE.equals(configuration.getDisableScaleIn())) {
+            alarms.add(putAlarm(trackedMetric(request).withAlarmName(prefix + "-AlarmLow-" + Integer.toHexString(arn.hashCode()))
+                    .withComparisonOperator(ComparisonOperator.LessThanThreshold)
+                    .withThreshold(configuration.getTargetValue() * 0.9)
+                    .withEvaluationPeriods(15), arn));
+        }
+        return alarms;
+    }
+
+    /**
+     * @return an alarm request on the metric a target tracking policy tracks
+     */
+    private static PutMetricAlarmRequest trackedMetric(PutScalingPolicyRequest request) {
+        TargetTrackingConfiguration configuration = request.getTargetTrackingConfiguration();
+        PutMetricAlarmRequest metric = new PutMetricAlarmRequest();
+        PredefinedMetricSpecification predefined = configuration.getPredefinedMetricSpecification();
+        if (predefined != null && "ASGAverageCPUUtilization".equals(predefined.getPredefinedMetricType())) {
+            metric.withNamespace("AWS/EC2").withMetricName("CPUUtilization")
+                    .withDimensions(new Dimension().withName("AutoScalingGroupName").withValue(request.getAutoScalingGroupName()));
+        } else if (predefined != null) {
+            metric.withNamespace("AWS/ApplicationELB").withMetricName("RequestCountPerTarget");
+        } else {
+            CustomizedMetricSpecification customized = configuration.getCustomizedMetricSpecification();
+            metric.withNamespace(customized.getNamespace()).withMetricName(customized.getMetricName());
+            for (MetricDimension dimension : customized.getDimensions()) {
+                metric.withDimensions(new Dimension().withName(dimension.getName()).withValue(dimension.getValue()));
+            }
+        }
+        return metric;
+    }
+
+    private Alarm putAlarm(PutMetricAlarmRequest alarm, String arn) {
+        cloud.cloudWatch.putMetricAlarm(alarm.withPeriod(60)
+                .withStatistic(Statistic.Average)
+                .withActionsEnabled(true)
+                .withAlarmActions(arn));
+        return new Alarm().withAlarmName(alarm.getAlarmName())
+                .withAlarmARN("arn:aws:cloudwatch:us-east-1:000000000000:alarm:" + alarm.getAlarmName());
+    }
+
+    /**
+     * Execute a policy on behalf of an alarm.
+     *
+     * @param arn       ARN of the policy
+     * @param metric    metric value which breached the alarm
+     * @param threshold threshold of the alarm
+     * @param now       virtual time of the alarm evaluation
+     */
+    void execute(String arn, double metric, double threshold, long now) {
+        PutScalingPolicyRequest policy = policies.get(arn);
+        if (policy == null) {
+            return;
+        }
+        SimAsg asg = groups.get(policy.getAutoScalingGroupName());
+        if (asg == null) {
+            return;
+        }
+        if ("TargetTrackingScaling".equals(policy.getPolicyType())) {
+            track(asg, policy, metric, now);
+            return;
+        }
+        boolean step = "StepScaling".equals(policy.getPolicyType());
+        if (!step) {
+            long cooldown = policy.getCooldown() == null ? asg.cooldownMillis : policy.getCooldown() * 1000L;
+            if (now < asg.lastActivity + cooldown) {
+                return;
+            }
+        }
+        int adjustment = 0;
+        if (step) {
+            //Above the threshold lower bounds are inclusive, below it upper bounds are
+            double delta = metric - threshold;
+            boolean above = delta >= 0;
+            for (StepAdjustment stepAdjustment : policy.getStepAdjustments()) {
+                Double lower = stepAdjustment.getMetricIntervalLowerBound();
+                Double upper = stepAdjustment.getMetricIntervalUpperBound();
+                boolean inLower = lower == null || (above ? delta >= lower : delta > lower);
+                boolean inUpper = upper == null || (above ? delta < upper : delta <= upper);
+                if (inLower && inUpper) {
+                    adjustment = stepAdjustment.getScalingAdjustment();
+                }
+            }
+            //While earlier scale out is warming up, only the part of the step beyond it is added
+            if (adjustment > 0 && now < asg.warmupUntil) {
+                int warming = asg.warmingAdjustment;
+                if (adjustment <= warming) {
+                    return;
+                }
+                asg.warmingAdjustment = adjustment;
+                adjustment -= warming;
+            } else if (adjustment > 0) {
+                asg.warmingAdjustment = adjustment;
+            }
+            if (adjustment > 0) {
+                Integer warmup = policy.getEstimatedInstanceWarmup();
+                asg.warmupUntil = now + (warmup == null ? asg.cooldownMillis : warmup * 1000L);
+            }
+        } else if (policy.getScalingAdjustment() != null) {
+            adjustment = policy.getScalingAdjustment();
+        }
+        int desired;
+        if ("ExactCapacity".equals(policy.getAdjustmentType())) {
+            desired = adjustment;
+        } else if ("PercentChangeInCapacity".equals(policy.getAdjustmentType())) {
+            desired = asg.desired + (int) Math.round(asg.desired * adjustment / 100d);
+        } else {
+            desired = asg.desired + adjustment;
+        }
+        resize(asg, desired, now);
+    }
+
+    /**
+     * Size the group in proportion to the metric over the target. Instances still warming up are not in the
+     * metric, so only instances in service are scaled; a scale out never shrinks the group and vice versa.
+     */
+    private void track(SimAsg asg, PutScalingPolicyRequest policy, double metric, long now) {
+        double target = policy.getTargetTrackingConfiguration().getTargetValue();
+        int ready = 0;
+        for (SimulatedCloud.SimInstance instance : members(asg.name)) {
+            if (instance.isReady(now)) {
+                ready++;
+            }
+        }
+        int wanted = (int) Math.ceil(Math.max(1, ready) * metric / target);
+        resize(asg, metric > target ? Math.max(asg.desired, wanted) : Math.min(asg.desired, wanted), now);
+    }
+
+    private void resize(SimAsg asg, int desired, long now) {
+        desired = Math.max(asg.minSize, Math.min(asg.maxSize, desired));
+        if (desired != asg.desired) {
+            asg.desired = desired;
+            asg.lastActivity = now;
+            reconcile(asg, now);
+        }
+    }
+
+    /**
+     * Launch or terminate instances until the group matches its desired capacity.
+     */
+    void reconcile(SimAsg asg, long now) {
+        //Draining instances are on their way out and no longer count
+        List<SimulatedCloud.SimInstance> members = new ArrayList<>();
+        for (SimulatedCloud.SimInstance member : members(asg.name)) {
+            if (!member.draining) {
+                members.add(member);
+            }
+        }
+        CreateLaunchConfigurationRequest lc = launchConfigurations.get(asg.launchConfiguration);
+        for (int i = members.size(); i < asg.desired && lc != null; i++) {
+            String zone = asg.zones.isEmpty() ? null : asg.zones.get(i % asg.zones.size());
+            SimulatedCloud.SimInstance instance = cloud.launch(lc.getImageId(), lc.getInstanceType(), zone,
+                    lc.getSecurityGroups(), now);
+            instance.asgName = asg.name;
+            instance.protectedFromScaleIn = asg.protectNew;
+            instance.tags.put("aws:autoscaling:groupName", asg.name);
+            for (Tag tag : asg.tags) {
+                if (Boolean.TRUE.equals(tag.getPropagateAtLaunch())) {
+                    instance.tags.put(tag.getKey(), tag.getValue());
+                }
+            }
+        }
+        //Default termination policy, approximated: oldest instance first. Protected instances stay, so the
+        //group can be above its desired capacity until they are terminated explicitly
+        int excess = members.size() - asg.desired;
+        for (SimulatedCloud.SimInstance member : members) {
+            if (excess <= 0) {
+                break;
+            }
+            if (!member.protectedFromScaleIn) {
+                cloud.terminate(member.id, now);
+                excess--;
+            }
+        }
+    }
+
+    /**
+     * @return average CPU utilization of the group: offered load over the capacity in service
+     */
+    double cpu(String asgName, long now) {
+        double capacity = 0;
+        for (SimulatedCloud.SimInstance instance : members(asgName)) {
+            if (instance.isReady(now) && !instance.draining) {
+                capacity += cloud.capacity(instance.type);
+            }
+        }
+        double offered = 0;
+        for (String elbName : loadBalancersOf(asgName)) {
+            offered += cloud.loadGenerator.offeredLoad(elbName, now);
+        }
+        if (capacity == 0) {
+            return offered > 0 ? 100 : 0;
+        }
+        return Math.min(100, 2 + 98 * offered / capacity);
+    }
+
+    List<String> loadBalancersOf(String asgName) {
+        SimAsg asg = groups.get(asgName);
+        return asg == null ? Collections.<String>emptyList() : asg.loadBalancers;
+    }
+
+    List<SimulatedCloud.SimInstance> members(String asgName) {
+        List<SimulatedCloud.SimInstance> members = new ArrayList<>();
+        for (SimulatedCloud.SimInstance instance : cloud.instances.values()) {
+            if (instance.isLive() && asgName.equals(instance.asgName)) {
+                members.add(instance);
+            }
+        }
+        return members;
+    }
+
+    private SimulatedCloud.SimInstance member(String asgName, String instanceId) {
+        for (SimulatedCloud.SimInstance instance : members(asgName)) {
+            if (instance.id.equals(instanceId)) {
+                return instance;
+            }
+        }
+        throw SimulatedCloud.error("AmazonAutoScaling", "ValidationError",
+                "The instance " + instanceId + " is not part of Auto Scaling group " + asgName + ".");
+    }
+
+    private SimAsg get(String name) {
+        SimAsg asg = groups.get(name);
+        if (asg == null) {
+            throw SimulatedCloud.error("AmazonAutoScaling", "ValidationError", "AutoScalingGroup name not found - " + name);
+        }
+        return asg;
+    }
+
+    /**
+     * Simulated auto scaling group.
+     */
+    static class SimAsg {
+        String name;
+        String launchConfiguration;
+        int minSize;
+        int maxSize;
+        int desired;
+        List<String> zones;
+        List<String> loadBalancers;
+        List<Tag> tags;
+        long cooldownMillis = 300_000;
+        long lastActivity = Long.MIN_VALUE / 2;
+        long warmupUntil = Long.MIN_VALUE / 2;
+        int warmingAdjustment;
+        long createdTime;
+        boolean protectNew;
+    }
+}
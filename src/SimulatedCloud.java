@@ -0,0 +1,366 @@
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.autoscaling.AmazonAutoScaling;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancing;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process discrete-event simulator of the EC2, ELB, Auto Scaling and CloudWatch calls a scaling run
+ * makes, plus the load generator's HTTP interface. State changes (boots, log minutes, alarm evaluations)
+ * are queued as events at virtual timestamps of the {@link RunClock} and applied, in order, whenever a
+ * client call or HTTP request observes the simulator, so results do not depend on how fast the run polls.
+ */
+public class SimulatedCloud implements CloudProvider {
+    static final long MINUTE = 60_000;
+
+    final Config config;
+    final Random random;
+    final Map<String, SimInstance> instances = new LinkedHashMap<>();
+    final Map<String, String> securityGroups = new LinkedHashMap<>();
+    final Map<String, Map<String, String>> resourceTags = new LinkedHashMap<>();
+    int groupSequence;
+    final SimulatedEc2 ec2;
+    final SimulatedElb elb;
+    final SimulatedAutoScaling autoScaling;
+    final SimulatedCloudWatch cloudWatch;
+    final SimulatedLoadGenerator loadGenerator;
+    private static final Pattern CALLBACK = Pattern.compile("CALLBACK=(\\S+)");
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    //Runs the boot reports of instances launched with user data
+    private final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "simulated-user-data");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long sequence;
+
+    private SimulatedCloud(Config config) throws IOException {
+        this.config = config;
+        this.random = new Random(config.seed);
+        this.ec2 = new SimulatedEc2(this);
+        this.elb = new SimulatedElb(this);
+        this.autoScaling = new SimulatedAutoScaling(this);
+        this.cloudWatch = new SimulatedCloudWatch(this);
+        this.loadGenerator = new SimulatedLoadGenerator(this);
+    }
+
+    /**
+     * Start a simulator and its load generator HTTP endpoint on a free local port.
+     */
+    public static SimulatedCloud start(Config config) throws IOException {
+        SimulatedCloud cloud = new SimulatedCloud(config);
+        cloud.loadGenerator.start();
+        return cloud;
+    }
+
+    @Override
+    public AmazonEC2 ec2() {
+        return ec2;
+    }
+
+    @Override
+    public AmazonElasticLoadBalancing elb() {
+        return elb;
+    }
+
+    @Override
+    public AmazonAutoScaling autoScaling() {
+        return autoScaling;
+    }
+
+    @Override
+    public AmazonCloudWatch cloudWatch() {
+        return cloudWatch;
+    }
+
+    @Override
+    public void shutdown() {
+        reporter.shutdownNow();
+        loadGenerator.stop();
+    }
+
+    /**
+     * Apply every event due at the current virtual time, in timestamp order.
+     */
+    synchronized void advance() {
+        long now = RunClock.now();
+        while (!events.isEmpty() && events.peek().time <= now) {
+            Event event = events.poll();
+            event.action.accept(event.time);
+        }
+    }
+
+    /**
+     * Queue an action at a virtual timestamp; it receives that timestamp when applied.
+     */
+    synchronized void schedule(long time, LongConsumer action) {
+        events.add(new Event(time, sequence++, action));
+    }
+
+    /**
+     * Launch an instance which becomes running after the boot latency and serves HTTP after the app start latency.
+     */
+    synchronized SimInstance launch(String imageId, String type, String zone, List<String> groups, long now) {
+        String id = String.format("i-%08x", instances.size() + 1);
+        SimInstance instance = new SimInstance(id, imageId, type == null ? "m3.medium" : type,
+                zone == null ? "us-east-1a" : zone, groups, now);
+        instance.dns = loadGenerator.host() + "/" + id;
+        instances.put(id, instance);
+        long boot = jitter(config.bootMillis);
+        instance.bootAt = now + boot;
+        schedule(now + boot, time -> {
+            if (instance.code == 0) {
+                instance.code = 16;
+                instance.runningAt = time;
+            }
+        });
+        instance.readyAt = now + boot + jitter(config.appStartMillis);
+        return instance;
+    }
+
+    /**
+     * Run the boot reports of a user-data script from {@link Bootstrap}, as the instance would: one once it
+     * is running and one once its app serves. Like cloud-init, only the first boot runs the script.
+     */
+    void runUserData(SimInstance instance, String userData) {
+        if (userData == null) {
+            return;
+        }
+        Matcher callback = CALLBACK.matcher(new String(Base64.getDecoder().decode(userData), StandardCharsets.UTF_8));
+        if (callback.find()) {
+            report(instance, callback.group(1), "booted", instance.bootAt);
+            report(instance, callback.group(1), "ready", instance.readyAt);
+        }
+    }
+
+    private void report(SimInstance instance, String callback, String phase, long at) {
+        reporter.schedule(() -> {
+            long next;
+            synchronized (this) {
+                advance();
+                long now = RunClock.now();
+                if (instance.code == 32 || instance.code == 48 || instance.readyAt == Long.MAX_VALUE) {
+                    return;
+                }
+                boolean due = phase.equals("booted") ? instance.code == 16 : instance.isReady(now);
+                next = due ? 0 : now + 1000;
+            }
+            if (next > 0) {
+                report(instance, callback, phase, next);
+                return;
+            }
+            try {
+                HttpControlClient.shared().get(callback + "?id=" + instance.id + "&phase=" + phase);
+            } catch (IOException e) {
+                System.out.println("Boot report of " + instance.id + " failed: " + e.getMessage());
+            }
+        }, RunClock.realMillis(Math.max(0, at - RunClock.now())), TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void terminate(String instanceId, long now) {
+        SimInstance instance = instances.get(instanceId);
+        if (instance == null || instance.code == 32 || instance.code == 48) {
+            return;
+        }
+        instance.code = 32;
+        instance.readyAt = Long.MAX_VALUE;
+        schedule(now + 30_000, time -> instance.code = 48);
+    }
+
+    /**
+     * Stop a running instance; it keeps its id and tags and stops serving at once.
+     */
+    synchronized void stop(String instanceId, long now) {
+        SimInstance instance = instances.get(instanceId);
+        if (instance == null || instance.code != 16) {
+            return;
+        }
+        instance.code = 64;
+        instance.readyAt = Long.MAX_VALUE;
+        schedule(now + jitter(config.stopMillis), time -> {
+            if (instance.code == 64) {
+                instance.code = 80;
+            }
+        });
+    }
+
+    /**
+     * Start a stopped instance, which boots and serves HTTP after the restart latencies.
+     */
+    synchronized void start(String instanceId, long now) {
+        SimInstance instance = instances.get(instanceId);
+        if (instance == null || instance.code != 80) {
+            return;
+        }
+        instance.code = 0;
+        long boot = jitter(config.restartMillis);
+        schedule(now + boot, time -> {
+            if (instance.code == 0) {
+                instance.code = 16;
+                instance.runningAt = time;
+            }
+        });
+        instance.readyAt = now + boot + jitter(config.appRestartMillis);
+    }
+
+    private long jitter(long millis) {
+        return (long) (millis * (0.8 + 0.4 * random.nextDouble()));
+    }
+
+    /**
+     * @return capacity of one instance of the given type in RPS
+     */
+    double capacity(String type) {
+        Double capacity = config.capacityByType.get(type);
+        return capacity == null ? config.capacityRps : capacity;
+    }
+
+    static AmazonServiceException error(String service, String code, String message) {
+        AmazonServiceException exception = new AmazonServiceException(message);
+        exception.setServiceName(service);
+        exception.setErrorCode(code);
+        exception.setStatusCode(400);
+        return exception;
+    }
+
+    /**
+     * Settings of the simulated fleet and load.
+     */
+    public static class Config {
+        long seed = 42;
+        String loadGeneratorImage = "ami-8ac4e9e0";
+        long bootMillis = 60_000;
+        long appStartMillis = 45_000;
+        long stopMillis = 20_000;
+        long restartMillis = 25_000;
+        long appRestartMillis = 10_000;
+        double capacityRps = 850;
+        Map<String, Double> capacityByType = new LinkedHashMap<>();
+        List<String> fullZones = new ArrayList<>();
+        long testMillis = 30 * MINUTE;
+        long warmupMillis = 5 * MINUTE;
+        double baseLoad = 1500;
+        double peakLoad = 5000;
+
+        /**
+         * Read settings from {@code sim.*} system properties, keeping defaults for those not set.
+         */
+        public static Config fromSystemProperties() {
+            Config config = new Config();
+            config.seed = Long.getLong("sim.seed", config.seed);
+            config.loadGeneratorImage = System.getProperty("loadGeneratorAmi", config.loadGeneratorImage);
+            config.bootMillis = Long.getLong("sim.bootMillis", config.bootMillis);
+            config.appStartMillis = Long.getLong("sim.appStartMillis", config.appStartMillis);
+            config.restartMillis = Long.getLong("sim.restartMillis", config.restartMillis);
+            config.capacityRps = Double.parseDouble(System.getProperty("sim.capacityRps", String.valueOf(config.capacityRps)));
+            config.testMillis = Long.getLong("sim.testMinutes", config.testMillis / MINUTE) * MINUTE;
+            config.baseLoad = Double.parseDouble(System.getProperty("sim.baseLoad", String.valueOf(config.baseLoad)));
+            config.peakLoad = Double.parseDouble(System.getProperty("sim.peakLoad", String.valueOf(config.peakLoad)));
+            config.capacityByType.put("m3.medium", config.capacityRps);
+            config.capacityByType.put("m3.large", config.capacityRps * 2);
+            config.capacityByType.put("c3.large", config.capacityRps * 2.2);
+            if (!System.getProperty("sim.fullZones", "").isEmpty()) {
+                config.fullZones.addAll(Arrays.asList(System.getProperty("sim.fullZones").split(",")));
+            }
+            return config;
+        }
+    }
+
+    /**
+     * Simulated EC2 instance.
+     */
+    static class SimInstance {
+        final String id;
+        final String imageId;
+        final String type;
+        final String zone;
+        final List<String> groups;
+        final long launchTime;
+        final Map<String, String> tags = new LinkedHashMap<>();
+        String dns;
+        String asgName;
+        int code;
+        long runningAt;
+        //Virtual time of the first boot, once launched
+        long bootAt;
+        boolean protectedFromScaleIn;
+        //Deregistered from its load balancers and finishing its requests before it terminates
+        boolean draining;
+        long readyAt;
+
+        SimInstance(String id, String imageId, String type, String zone, List<String> groups, long launchTime) {
+            this.id = id;
+            this.imageId = imageId;
+            this.type = type;
+            this.zone = zone;
+            this.groups = new ArrayList<>(groups);
+            this.launchTime = launchTime;
+        }
+
+        boolean isLive() {
+            return code != 32 && code != 48;
+        }
+
+        boolean isReady(long now) {
+            return code == 16 && now >= readyAt;
+        }
+
+        Instance toEc2() {
+            String name = code == 0 ? "pending" : code == 16 ? "running" : code == 32 ? "shutting-down"
+                    : code == 64 ? "stopping" : code == 80 ? "stopped" : "terminated";
+            List<Tag> ec2Tags = new ArrayList<>();
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                ec2Tags.add(new Tag(tag.getKey(), tag.getValue()));
+            }
+            return new Instance().withInstanceId(id)
+                    .withImageId(imageId)
+                    .withInstanceType(type)
+                    .withPlacement(new Placement(zone))
+                    .withLaunchTime(new Date(launchTime))
+                    .withState(new InstanceState().withCode(code).withName(name))
+                    .withPublicDnsName(code == 16 ? dns : "")
+                    .withTags(ec2Tags);
+        }
+    }
+
+    private static class Event implements Comparable<Event> {
+        private final long time;
+        private final long sequence;
+        private final LongConsumer action;
+
+        private Event(long time, long sequence, LongConsumer action) {
+            this.time = time;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int byTime = Long.compare(time, other.time);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+}
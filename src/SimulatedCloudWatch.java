@@ -0,0 +1,269 @@
+import com.amazonaws.services.cloudwatch.AbstractAmazonCloudWatch;
+import com.amazonaws.services.cloudwatch.model.DeleteAlarmsRequest;
+import com.amazonaws.services.cloudwatch.model.DeleteAlarmsResult;
+import com.amazonaws.services.cloudwatch.model.DescribeAlarmsRequest;
+import com.amazonaws.services.cloudwatch.model.DescribeAlarmsResult;
+import com.amazonaws.services.cloudwatch.model.Datapoint;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.GetMetricStatisticsRequest;
+import com.amazonaws.services.cloudwatch.model.GetMetricStatisticsResult;
+import com.amazonaws.services.cloudwatch.model.MetricAlarm;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricAlarmRequest;
+import com.amazonaws.services.cloudwatch.model.PutMetricAlarmResult;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataResult;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * CloudWatch calls against the {@link SimulatedCloud}. Alarms are evaluated at the end of every period on
+ * the virtual clock and run their scaling actions once per period while in ALARM, as CloudWatch does for
+ * Auto Scaling actions. Alarms on custom metrics average the data put in their period.
+ */
+class SimulatedCloudWatch extends AbstractAmazonCloudWatch {
+    private final SimulatedCloud cloud;
+    private final Map<String, SimAlarm> alarms = new LinkedHashMap<>();
+    //Sum and count of the data points of each custom metric, by timestamp
+    private final Map<String, TreeMap<Long, double[]>> data = new LinkedHashMap<>();
+
+    SimulatedCloudWatch(SimulatedCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    @Override
+    public PutMetricAlarmResult putMetricAlarm(PutMetricAlarmRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            SimAlarm alarm = new SimAlarm(request);
+            alarms.put(request.getAlarmName(), alarm);
+            long period = request.getPeriod() * 1000L;
+            cloud.schedule(RunClock.now() + period, time -> evaluate(alarm, time));
+            return new PutMetricAlarmResult();
+        }
+    }
+
+    @Override
+    public PutMetricDataResult putMetricData(PutMetricDataRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            for (MetricDatum datum : request.getMetricData()) {
+                List<Dimension> dimensions = datum.getDimensions();
+                TreeMap<Long, double[]> points = data.computeIfAbsent(key(request.getNamespace(),
+                        datum.getMetricName(), dimensions), key -> new TreeMap<>());
+                long time = datum.getTimestamp() == null ? RunClock.now() : datum.getTimestamp().getTime();
+                double[] point = points.computeIfAbsent(time, key -> new double[2]);
+                if (datum.getStatisticValues() != null) {
+                    point[0] += datum.getStatisticValues().getSum();
+                    point[1] += datum.getStatisticValues().getSampleCount();
+                } else {
+                    point[0] += datum.getValue();
+                    point[1]++;
+                }
+                //An hour is more than any alarm looks back
+                points.headMap(time - 3600_000L).clear();
+            }
+            return new PutMetricDataResult();
+        }
+    }
+
+    private static String key(String namespace, String metricName, List<Dimension> dimensions) {
+        StringBuilder key = new StringBuilder(namespace).append('|').append(metricName);
+        for (Dimension dimension : dimensions) {
+            key.append('|').append(dimension.getName()).append('=').append(dimension.getValue());
+        }
+        return key.toString();
+    }
+
+    @Override
+    public DescribeAlarmsResult describeAlarms(DescribeAlarmsRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            List<MetricAlarm> found = new ArrayList<>();
+            for (SimAlarm alarm : alarms.values()) {
+                PutMetricAlarmRequest definition = alarm.definition;
+                if (!request.getAlarmNames().isEmpty() && !request.getAlarmNames().contains(definition.getAlarmName())) {
+                    continue;
+                }
+                if (request.getAlarmNamePrefix() != null && !definition.getAlarmName().startsWith(request.getAlarmNamePrefix())) {
+                    continue;
+                }
+                if (request.getActionPrefix() != null && !anyStartsWith(definition.getAlarmActions(),
+                        request.getActionPrefix())) {
+                    continue;
+                }
+                found.add(new MetricAlarm().withAlarmName(definition.getAlarmName())
+                        .withStateValue(alarm.state)
+                        .withMetricName(definition.getMetricName())
+                        .withNamespace(definition.getNamespace())
+                        .withThreshold(definition.getThreshold())
+                        .withPeriod(definition.getPeriod())
+                        .withEvaluationPeriods(definition.getEvaluationPeriods())
+                        .withComparisonOperator(definition.getComparisonOperator())
+                        .withAlarmActions(definition.getAlarmActions()));
+            }
+            //Pages of at most 50 alarms, as CloudWatch returns them
+            int from = request.getNextToken() == null ? 0 : Integer.parseInt(request.getNextToken());
+            int to = Math.min(found.size(), from + (request.getMaxRecords() == null ? 50 : request.getMaxRecords()));
+            return new DescribeAlarmsResult().withMetricAlarms(found.subList(from, to))
+                    .withNextToken(to < found.size() ? String.valueOf(to) : null);
+        }
+    }
+
+    /**
+     * Per-instance CPU utilization, the share of its group's CPU an instance in service carries: the load
+     * balancer spreads the load evenly. Other statistics have no data.
+     */
+    @Override
+    public GetMetricStatisticsResult getMetricStatistics(GetMetricStatisticsRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            List<Datapoint> points = new ArrayList<>();
+            String instanceId = null;
+            for (Dimension dimension : request.getDimensions()) {
+                if ("InstanceId".equals(dimension.getName())) {
+                    instanceId = dimension.getValue();
+                }
+            }
+            SimulatedCloud.SimInstance instance = instanceId == null ? null : cloud.instances.get(instanceId);
+            if ("AWS/EC2".equals(request.getNamespace()) && "CPUUtilization".equals(request.getMetricName())
+                    && instance != null && instance.asgName != null) {
+                long period = request.getPeriod() * 1000L;
+                for (long time = request.getStartTime().getTime() + period; time <= request.getEndTime().getTime();
+                     time += period) {
+                    if (instance.isLive() && instance.isReady(time) && !instance.draining) {
+                        points.add(new Datapoint().withTimestamp(new Date(time))
+                                .withAverage(cloud.autoScaling.cpu(instance.asgName, time)));
+                    }
+                }
+            }
+            return new GetMetricStatisticsResult().withLabel(request.getMetricName()).withDatapoints(points);
+        }
+    }
+
+    private static boolean anyStartsWith(List<String> values, String prefix) {
+        for (String value : values) {
+            if (value.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public DeleteAlarmsResult deleteAlarms(DeleteAlarmsRequest request) {
+        synchronized (cloud) {
+            for (String name : request.getAlarmNames()) {
+                SimAlarm alarm = alarms.remove(name);
+                if (alarm != null) {
+                    alarm.deleted = true;
+                }
+            }
+            return new DeleteAlarmsResult();
+        }
+    }
+
+    /**
+     * Delete the alarms whose names start with the prefix, as Auto Scaling does with those of a target
+     * tracking policy.
+     */
+    void deleteAlarmsWithPrefix(String prefix) {
+        synchronized (cloud) {
+            List<String> names = new ArrayList<>();
+            for (String name : alarms.keySet()) {
+                if (name.startsWith(prefix)) {
+                    names.add(name);
+                }
+            }
+            deleteAlarms(new DeleteAlarmsRequest().withAlarmNames(names));
+        }
+    }
+
+    private void evaluate(SimAlarm alarm, long time) {
+        if (alarm.deleted) {
+            return;
+        }
+        PutMetricAlarmRequest definition = alarm.definition;
+        Double value = metric(definition, time);
+        if (value == null) {
+            alarm.state = "INSUFFICIENT_DATA";
+            alarm.breaches = 0;
+        } else if (breaches(definition, value)) {
+            alarm.breaches++;
+            if (alarm.breaches >= definition.getEvaluationPeriods()) {
+                alarm.state = "ALARM";
+                for (String action : definition.getAlarmActions()) {
+                    cloud.autoScaling.execute(action, value, definition.getThreshold(), time);
+                }
+            }
+        } else {
+            alarm.breaches = 0;
+            alarm.state = "OK";
+        }
+        cloud.schedule(time + definition.getPeriod() * 1000L, next -> evaluate(alarm, next));
+    }
+
+    /**
+     * @return the value of the alarm's metric over the period ending at the given time, or null without data
+     */
+    Double metric(PutMetricAlarmRequest definition, long time) {
+        String asgName = dimension(definition, "AutoScalingGroupName");
+        if ("AWS/EC2".equals(definition.getNamespace()) && "CPUUtilization".equals(definition.getMetricName())
+                && asgName != null && cloud.autoScaling.groups.containsKey(asgName)) {
+            return cloud.autoScaling.cpu(asgName, time);
+        }
+        TreeMap<Long, double[]> points = data.get(key(definition.getNamespace(), definition.getMetricName(),
+                definition.getDimensions()));
+        if (points == null) {
+            return null;
+        }
+        double sum = 0;
+        double count = 0;
+        for (double[] point : points.subMap(time - definition.getPeriod() * 1000L, false, time, true).values()) {
+            sum += point[0];
+            count += point[1];
+        }
+        return count == 0 ? null : sum / count;
+    }
+
+    static String dimension(PutMetricAlarmRequest definition, String name) {
+        for (Dimension dimension : definition.getDimensions()) {
+            if (dimension.getName().equals(name)) {
+                return dimension.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static boolean breaches(PutMetricAlarmRequest definition, double value) {
+        double threshold = definition.getThreshold();
+        switch (definition.getComparisonOperator()) {
+            case "GreaterThanOrEqualToThreshold":
+                return value >= threshold;
+            case "GreaterThanThreshold":
+                return value > threshold;
+            case "LessThanThreshold":
+                return value < threshold;
+            case "LessThanOrEqualToThreshold":
+                return value <= threshold;
+            default:
+                return false;
+        }
+    }
+
+    private static class SimAlarm {
+        private final PutMetricAlarmRequest definition;
+        private String state = "INSUFFICIENT_DATA";
+        private int breaches;
+        private boolean deleted;
+
+        private SimAlarm(PutMetricAlarmRequest definition) {
+            this.definition = definition;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+import com.amazonaws.services.ec2.AbstractAmazonEC2;
+import com.amazonaws.services.ec2.model.AuthorizeSecurityGroupIngressRequest;
+import com.amazonaws.services.ec2.model.AuthorizeSecurityGroupIngressResult;
+import com.amazonaws.services.ec2.model.CreateSecurityGroupRequest;
+import com.amazonaws.services.ec2.model.CreateSecurityGroupResult;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.CreateTagsResult;
+import com.amazonaws.services.ec2.model.DeleteSecurityGroupRequest;
+import com.amazonaws.services.ec2.model.DeleteSecurityGroupResult;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeSecurityGroupsRequest;
+import com.amazonaws.services.ec2.model.DescribeSecurityGroupsResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateChange;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.RunInstancesResult;
+import com.amazonaws.services.ec2.model.SecurityGroup;
+import com.amazonaws.services.ec2.model.StartInstancesRequest;
+import com.amazonaws.services.ec2.model.StartInstancesResult;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+import com.amazonaws.services.ec2.model.StopInstancesResult;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesResult;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * EC2 calls against the {@link SimulatedCloud}.
+ */
+class SimulatedEc2 extends AbstractAmazonEC2 {
+    private final SimulatedCloud cloud;
+
+    SimulatedEc2(SimulatedCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    @Override
+    public RunInstancesResult runInstances(RunInstancesRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            long now = RunClock.now();
+            List<String> groups = new ArrayList<>(request.getSecurityGroups());
+            groups.addAll(request.getSecurityGroupIds());
+            String zone = request.getPlacement() == null ? null : request.getPlacement().getAvailabilityZone();
+            if (cloud.config.fullZones.contains(zone)) {
+                throw SimulatedCloud.error("AmazonEC2", "InsufficientInstanceCapacity", "We currently do not have "
+                        + "sufficient " + request.getInstanceType() + " capacity in the Availability Zone you requested ("
+                        + zone + ")");
+            }
+            List<Instance> launched = new ArrayList<>();
+            for (int i = 0; i < request.getMaxCount(); i++) {
+                SimulatedCloud.SimInstance instance = cloud.launch(request.getImageId(), request.getInstanceType(),
+                        zone, groups, now);
+                cloud.runUserData(instance, request.getUserData());
+                launched.add(instance.toEc2());
+            }
+            return new RunInstancesResult().withReservation(new Reservation()
+                    .withReservationId("r-" + launched.get(0).getInstanceId())
+                    .withInstances(launched));
+        }
+    }
+
+    @Override
+    public CreateTagsResult createTags(CreateTagsRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            for (String resource : request.getResources()) {
+                SimulatedCloud.SimInstance instance = cloud.instances.get(resource);
+                Map<String, String> tags = instance != null ? instance.tags
+                        : cloud.resourceTags.computeIfAbsent(resource, id -> new LinkedHashMap<>());
+                for (Tag tag : request.getTags()) {
+                    tags.put(tag.getKey(), tag.getValue());
+                }
+            }
+            return new CreateTagsResult();
+        }
+    }
+
+    @Override
+    public DescribeInstancesResult describeInstances(DescribeInstancesRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            List<Instance> found = new ArrayList<>();
+            if (!request.getInstanceIds().isEmpty()) {
+                for (String instanceId : request.getInstanceIds()) {
+                    SimulatedCloud.SimInstance instance = cloud.instances.get(instanceId);
+                    if (instance == null) {
+                        throw SimulatedCloud.error("AmazonEC2", "InvalidInstanceID.NotFound",
+                                "The instance ID '" + instanceId + "' does not exist");
+                    }
+                    if (matches(instance, request.getFilters())) {
+                        found.add(instance.toEc2());
+                    }
+                }
+            } else {
+                for (SimulatedCloud.SimInstance instance : cloud.instances.values()) {
+                    if (matches(instance, request.getFilters())) {
+                        found.add(instance.toEc2());
+                    }
+                }
+            }
+            List<Reservation> reservations = new ArrayList<>();
+            for (Instance instance : found) {
+                reservations.add(new Reservation().withReservationId("r-" + instance.getInstanceId())
+                        .withInstances(instance));
+            }
+            return new DescribeInstancesResult().withReservations(reservations);
+        }
+    }
+
+    private static boolean matches(SimulatedCloud.SimInstance instance, List<Filter> filters) {
+        for (Filter filter : filters) {
+            String value;
+            if (filter.getName().startsWith("tag:")) {
+                value = instance.tags.get(filter.getName().substring(4));
+            } else if (filter.getName().equals("instance-state-name")) {
+                value = instance.toEc2().getState().getName();
+            } else if (filter.getName().equals("image-id")) {
+                value = instance.imageId;
+            } else {
+                continue;
+            }
+            if (value == null || !filter.getValues().contains(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(Map<String, String> tags, List<Filter> filters) {
+        for (Filter filter : filters) {
+            if (filter.getName().startsWith("tag:")
+                    && !filter.getValues().contains(tags.get(filter.getName().substring(4)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public TerminateInstancesResult terminateInstances(TerminateInstancesRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            return new TerminateInstancesResult().withTerminatingInstances(change(request.getInstanceIds(),
+                    instanceId -> cloud.terminate(instanceId, RunClock.now())));
+        }
+    }
+
+    @Override
+    public StopInstancesResult stopInstances(StopInstancesRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            return new StopInstancesResult().withStoppingInstances(change(request.getInstanceIds(),
+                    instanceId -> cloud.stop(instanceId, RunClock.now())));
+        }
+    }
+
+    @Override
+    public StartInstancesResult startInstances(StartInstancesRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            return new StartInstancesResult().withStartingInstances(change(request.getInstanceIds(),
+                    instanceId -> cloud.start(instanceId, RunClock.now())));
+        }
+    }
+
+    private List<InstanceStateChange> change(List<String> instanceIds, Consumer<String> action) {
+        List<InstanceStateChange> changes = new ArrayList<>();
+        for (String instanceId : instanceIds) {
+            SimulatedCloud.SimInstance instance = cloud.instances.get(instanceId);
+            if (instance == null) {
+                throw SimulatedCloud.error("AmazonEC2", "InvalidInstanceID.NotFound",
+                        "The instance ID '" + instanceId + "' does not exist");
+            }
+            Instance before = instance.toEc2();
+            action.accept(instanceId);
+            changes.add(new InstanceStateChange().withInstanceId(instanceId)
+                    .withPreviousState(before.getState())
+                    .withCurrentState(instance.toEc2().getState()));
+        }
+        return changes;
+    }
+
+    @Override
+    public CreateSecurityGroupResult createSecurityGroup(CreateSecurityGroupRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            if (cloud.securityGroups.containsKey(request.getGroupName())) {
+                throw SimulatedCloud.error("AmazonEC2", "InvalidGroup.Duplicate",
+                        "The security group '" + request.getGroupName() + "' already exists");
+            }
+            String groupId = String.format("sg-%08x", ++cloud.groupSequence);
+            cloud.securityGroups.put(request.getGroupName(), groupId);
+            return new CreateSecurityGroupResult().withGroupId(groupId);
+        }
+    }
+
+    @Override
+    public AuthorizeSecurityGroupIngressResult authorizeSecurityGroupIngress(AuthorizeSecurityGroupIngressRequest request) {
+        return new AuthorizeSecurityGroupIngressResult();
+    }
+
+    @Override
+    public DescribeSecurityGroupsResult describeSecurityGroups(DescribeSecurityGroupsRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            List<SecurityGroup> groups = new ArrayList<>();
+            for (Map.Entry<String, String> group : cloud.securityGroups.entrySet()) {
+                Map<String, String> tags = cloud.resourceTags.getOrDefault(group.getValue(), new LinkedHashMap<>());
+                if ((request.getGroupNames().isEmpty() || request.getGroupNames().contains(group.getKey()))
+                        && (request.getGroupIds().isEmpty() || request.getGroupIds().contains(group.getValue()))
+                        && matches(tags, request.getFilters())) {
+                    List<Tag> groupTags = new ArrayList<>();
+                    for (Map.Entry<String, String> tag : tags.entrySet()) {
+                        groupTags.add(new Tag(tag.getKey(), tag.getValue()));
+                    }
+                    groups.add(new SecurityGroup().withGroupName(group.getKey()).withGroupId(group.getValue())
+                            .withTags(groupTags));
+                }
+            }
+            //Like EC2, asking for an id that does not exist is an error rather than an empty result
+            for (String groupId : request.getGroupIds()) {
+                if (!cloud.securityGroups.containsValue(groupId)) {
+                    throw SimulatedCloud.error("AmazonEC2", "InvalidGroup.NotFound",
+                            "The security group '" + groupId + "' does not exist");
+                }
+            }
+            return new DescribeSecurityGroupsResult().withSecurityGroups(groups);
+        }
+    }
+
+    @Override
+    public DeleteSecurityGroupResult deleteSecurityGroup(DeleteSecurityGroupRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            String name = request.getGroupName();
+            if (name == null) {
+                for (Map.Entry<String, String> group : cloud.securityGroups.entrySet()) {
+                    if (group.getValue().equals(request.getGroupId())) {
+                        name = group.getKey();
+                    }
+                }
+            }
+            String groupId = name == null ? null : cloud.securityGroups.get(name);
+            if (groupId == null) {
+                throw SimulatedCloud.error("AmazonEC2", "InvalidGroup.NotFound", "The security group does not exist");
+            }
+            for (SimulatedCloud.SimInstance instance : cloud.instances.values()) {
+                if (instance.code != 48 && (instance.groups.contains(name) || instance.groups.contains(groupId))) {
+                    throw SimulatedCloud.error("AmazonEC2", "DependencyViolation",
+                            "resource " + groupId + " has a dependent object");
+                }
+            }
+            if (cloud.elb.uses(groupId)) {
+                throw SimulatedCloud.error("AmazonEC2", "DependencyViolation",
+                        "resource " + groupId + " has a dependent object");
+            }
+            cloud.securityGroups.remove(name);
+            cloud.resourceTags.remove(groupId);
+            return new DeleteSecurityGroupResult();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+import com.amazonaws.services.elasticloadbalancing.AbstractAmazonElasticLoadBalancing;
+import com.amazonaws.services.elasticloadbalancing.model.ConfigureHealthCheckRequest;
+import com.amazonaws.services.elasticloadbalancing.model.ConfigureHealthCheckResult;
+import com.amazonaws.services.elasticloadbalancing.model.CreateLoadBalancerRequest;
+import com.amazonaws.services.elasticloadbalancing.model.CreateLoadBalancerResult;
+import com.amazonaws.services.elasticloadbalancing.model.DeleteLoadBalancerRequest;
+import com.amazonaws.services.elasticloadbalancing.model.DeleteLoadBalancerResult;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeInstanceHealthRequest;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeInstanceHealthResult;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeLoadBalancersRequest;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeLoadBalancersResult;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeTagsRequest;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeTagsResult;
+import com.amazonaws.services.elasticloadbalancing.model.HealthCheck;
+import com.amazonaws.services.elasticloadbalancing.model.Instance;
+import com.amazonaws.services.elasticloadbalancing.model.InstanceState;
+import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerAttributes;
+import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription;
+import com.amazonaws.services.elasticloadbalancing.model.ModifyLoadBalancerAttributesRequest;
+import com.amazonaws.services.elasticloadbalancing.model.ModifyLoadBalancerAttributesResult;
+import com.amazonaws.services.elasticloadbalancing.model.Tag;
+import com.amazonaws.services.elasticloadbalancing.model.TagDescription;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Classic ELB calls against the {@link SimulatedCloud}. Instances of attached auto scaling groups are
+ * in service as soon as their app serves HTTP, and leave at once when they start draining.
+ */
+class SimulatedElb extends AbstractAmazonElasticLoadBalancing {
+    private final SimulatedCloud cloud;
+    private final Map<String, SimElb> loadBalancers = new LinkedHashMap<>();
+
+    SimulatedElb(SimulatedCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    @Override
+    public CreateLoadBalancerResult createLoadBalancer(CreateLoadBalancerRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            SimElb elb = new SimElb();
+            elb.name = request.getLoadBalancerName();
+            elb.dns = cloud.loadGenerator.host() + "/elb-" + elb.name;
+            elb.zones = new ArrayList<>(request.getAvailabilityZones());
+            elb.groups = new ArrayList<>(request.getSecurityGroups());
+            elb.tags = new ArrayList<>(request.getTags());
+            loadBalancers.put(elb.name, elb);
+            return new CreateLoadBalancerResult().withDNSName(elb.dns);
+        }
+    }
+
+    @Override
+    public ConfigureHealthCheckResult configureHealthCheck(ConfigureHealthCheckRequest request) {
+        synchronized (cloud) {
+            get(request.getLoadBalancerName()).healthCheck = request.getHealthCheck();
+            return new ConfigureHealthCheckResult().withHealthCheck(request.getHealthCheck());
+        }
+    }
+
+    @Override
+    public DeleteLoadBalancerResult deleteLoadBalancer(DeleteLoadBalancerRequest request) {
+        synchronized (cloud) {
+            loadBalancers.remove(request.getLoadBalancerName());
+            return new DeleteLoadBalancerResult();
+        }
+    }
+
+    @Override
+    public DescribeLoadBalancersResult describeLoadBalancers(DescribeLoadBalancersRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            List<LoadBalancerDescription> descriptions = new ArrayList<>();
+            if (request.getLoadBalancerNames().isEmpty()) {
+                for (SimElb elb : loadBalancers.values()) {
+                    descriptions.add(elb.describe());
+                }
+            } else {
+                for (String name : request.getLoadBalancerNames()) {
+                    descriptions.add(get(name).describe());
+                }
+            }
+            //Pages of at most 400 load balancers, as the ELB API returns them
+            int from = request.getMarker() == null ? 0 : Integer.parseInt(request.getMarker());
+            int to = Math.min(descriptions.size(), from + (request.getPageSize() == null ? 400 : request.getPageSize()));
+            return new DescribeLoadBalancersResult().withLoadBalancerDescriptions(descriptions.subList(from, to))
+                    .withNextMarker(to < descriptions.size() ? String.valueOf(to) : null);
+        }
+    }
+
+    @Override
+    public DescribeTagsResult describeTags(DescribeTagsRequest request) {
+        synchronized (cloud) {
+            List<TagDescription> descriptions = new ArrayList<>();
+            for (String name : request.getLoadBalancerNames()) {
+                descriptions.add(new TagDescription().withLoadBalancerName(name).withTags(get(name).tags));
+            }
+            return new DescribeTagsResult().withTagDescriptions(descriptions);
+        }
+    }
+
+    @Override
+    public DescribeInstanceHealthResult describeInstanceHealth(DescribeInstanceHealthRequest request) {
+        synchronized (cloud) {
+            cloud.advance();
+            long now = RunClock.now();
+            SimElb elb = get(request.getLoadBalancerName());
+            List<InstanceState> states = new ArrayList<>();
+            for (SimulatedCloud.SimInstance instance : members(elb.name)) {
+                boolean healthy = instance.isReady(now);
+                states.add(new InstanceState().withInstanceId(instance.id)
+                        .withState(healthy ? "InService" : "OutOfService")
+                        .withReasonCode(healthy ? "N/A" : "Instance")
+                        .withDescription(healthy ? "N/A" : "Instance has failed at least the UnhealthyThreshold"));
+            }
+            return new DescribeInstanceHealthResult().withInstanceStates(states);
+        }
+    }
+
+    @Override
+    public ModifyLoadBalancerAttributesResult modifyLoadBalancerAttributes(ModifyLoadBalancerAttributesRequest request) {
+        synchronized (cloud) {
+            SimElb elb = get(request.getLoadBalancerName());
+            elb.attributes = request.getLoadBalancerAttributes();
+            return new ModifyLoadBalancerAttributesResult().withLoadBalancerName(elb.name)
+                    .withLoadBalancerAttributes(elb.attributes);
+        }
+    }
+
+    /**
+     * @return live instances of the auto scaling groups attached to the load balancer
+     */
+    List<SimulatedCloud.SimInstance> members(String elbName) {
+        List<SimulatedCloud.SimInstance> members = new ArrayList<>();
+        for (SimulatedCloud.SimInstance instance : cloud.instances.values()) {
+            if (instance.isLive() && !instance.draining && instance.asgName != null
+                    && cloud.autoScaling.loadBalancersOf(instance.asgName).contains(elbName)) {
+                members.add(instance);
+            }
+        }
+        return members;
+    }
+
+    /**
+     * @return connection draining timeout of the load balancer, 0 if draining is off
+     */
+    long drainMillis(String elbName) {
+        SimElb elb = loadBalancers.get(elbName);
+        if (elb == null || elb.attributes == null || elb.attributes.getConnectionDraining() == null
+                || !Boolean.TRUE.equals(elb.attributes.getConnectionDraining().getEnabled())) {
+            return 0;
+        }
+        Integer timeout = elb.attributes.getConnectionDraining().getTimeout();
+        return (timeout == null ? 300 : timeout) * 1000L;
+    }
+
+    /**
+     * @return the load balancer with the given DNS name, or null
+     */
+    SimElb byDns(String dns) {
+        for (SimElb elb : loadBalancers.values()) {
+            if (elb.dns.equals(dns)) {
+                return elb;
+            }
+        }
+        return null;
+    }
+
+    boolean uses(String groupId) {
+        for (SimElb elb : loadBalancers.values()) {
+            if (elb.groups.contains(groupId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private SimElb get(String name) {
+        SimElb elb = loadBalancers.get(name);
+        if (elb == null) {
+            throw SimulatedCloud.error("AmazonElasticLoadBalancing", "LoadBalancerNotFound",
+                    "There is no ACTIVE Load Balancer named '" + name + "'");
+        }
+        return elb;
+    }
+
+    /**
+     * Simulated classic load balancer.
+     */
+    class SimElb {
+        String name;
+        String dns;
+        List<String> zones;
+        List<String> groups;
+        List<Tag> tags;
+        HealthCheck healthCheck;
+        LoadBalancerAttributes attributes;
+
+        LoadBalancerDescription describe() {
+            List<Instance> members = new ArrayList<>();
+            for (SimulatedCloud.SimInstance instance : members(name)) {
+                members.add(new Instance(instance.id));
+            }
+            return new LoadBalancerDescription().withLoadBalancerName(name)
+                    .withDNSName(dns)
+                    .withAvailabilityZones(zones)
+                    .withHealthCheck(healthCheck)
+                    .withInstances(members);
+        }
+    }
+}
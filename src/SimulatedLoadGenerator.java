@@ -0,0 +1,343 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local HTTP endpoint standing in for every simulated instance. A request to
+ * {@code http://127.0.0.1:port/<instance-id>/...} reaches that instance: data centers answer 200 once their
+ * app is up, load generators implement the password, test, warmup, junior and log calls and write the
+ * same INI log format as the real load generator, one {@code [Minute N]} section per virtual minute.
+ */
+class SimulatedLoadGenerator {
+    private static final double HORIZONTAL_TARGET = Double.parseDouble(System.getProperty("targetRps", "4000"));
+
+    private final SimulatedCloud cloud;
+    private final Map<String, List<SimTest>> tests = new HashMap<>();
+    private final Map<String, Boolean> authenticated = new HashMap<>();
+    private HttpServer server;
+    private ExecutorService executor;
+    private String host;
+
+    SimulatedLoadGenerator(SimulatedCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newFixedThreadPool(4, r -> {
+            Thread thread = new Thread(r, "simulated-instance-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        host = "127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return host and port every simulated DNS name points at
+     */
+    String host() {
+        return host;
+    }
+
+    /**
+     * @return RPS the load generators currently send to the load balancer
+     */
+    double offeredLoad(String elbName, long now) {
+        double offered = 0;
+        for (List<SimTest> lgTests : tests.values()) {
+            for (SimTest test : lgTests) {
+                if (test.elbName != null && test.elbName.equals(elbName) && !test.ended && now >= test.start) {
+                    offered += test.offered(now);
+                }
+            }
+        }
+        return offered;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        int code;
+        byte[] body;
+        Map<String, String> headers = new HashMap<>();
+        synchronized (cloud) {
+            cloud.advance();
+            long now = RunClock.now();
+            String path = exchange.getRequestURI().getRawPath();
+            String[] parts = path.split("/", 3);
+            SimulatedCloud.SimInstance instance = parts.length > 1 ? cloud.instances.get(parts[1]) : null;
+            String route = parts.length > 2 ? "/" + parts[2] : "/";
+            Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+            if (instance == null || !instance.isReady(now)) {
+                code = 503;
+                body = "Service Unavailable".getBytes(StandardCharsets.UTF_8);
+            } else if (!instance.imageId.equals(cloud.config.loadGeneratorImage)) {
+                code = 200;
+                body = ("OK " + instance.id).getBytes(StandardCharsets.UTF_8);
+            } else {
+                Response response = loadGenerator(instance, route, query, exchange.getRequestHeaders().getFirst("Range"), now);
+                code = response.code;
+                body = response.body;
+                headers.putAll(response.headers);
+            }
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            exchange.getResponseHeaders().add(header.getKey(), header.getValue());
+        }
+        exchange.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    private Response loadGenerator(SimulatedCloud.SimInstance lg, String route, Map<String, String> query,
+                                   String range, long now) {
+        List<SimTest> lgTests = tests.computeIfAbsent(lg.id, id -> new ArrayList<>());
+        switch (route) {
+            case "/password":
+                authenticated.put(lg.id, Boolean.TRUE);
+                return new Response(200, "Password accepted");
+            case "/heartbeat":
+                return new Response(200, "OK");
+            case "/log":
+                if (query.containsKey("name")) {
+                    for (SimTest test : lgTests) {
+                        if (test.logName.equals(query.get("name"))) {
+                            return Response.range(test.log.toString().getBytes(StandardCharsets.US_ASCII), range);
+                        }
+                    }
+                    return new Response(404, "No such log");
+                }
+                StringBuilder listing = new StringBuilder();
+                for (int i = lgTests.size() - 1; i >= 0; i--) {
+                    String name = lgTests.get(i).logName;
+                    listing.append("<a href='/log?name=").append(name).append("'>").append(name).append("</a><br>\n");
+                }
+                return new Response(200, listing.toString());
+            default:
+                break;
+        }
+        if (!authenticated.containsKey(lg.id)) {
+            return new Response(401, "Submit your password first");
+        }
+        String dns = query.get("dns");
+        switch (route) {
+            case "/test/horizontal": {
+                SimulatedCloud.SimInstance dc = byDns(dns);
+                if (dc == null || !dc.isReady(now)) {
+                    return new Response(400, "Data center is not reachable");
+                }
+                SimTest test = start(lg, lgTests, "horizontal", null, cloud.config.testMillis, now);
+                test.dataCenters.add(dns);
+                return new Response(200, "Test started " + test.logName);
+            }
+            case "/test/horizontal/add": {
+                SimulatedCloud.SimInstance dc = byDns(dns);
+                SimTest test = lgTests.isEmpty() ? null : lgTests.get(lgTests.size() - 1);
+                if (dc == null || !dc.isReady(now) || test == null || test.ended) {
+                    return new Response(400, "Data center is not reachable");
+                }
+                test.dataCenters.add(dns);
+                return new Response(200, "Data center added");
+            }
+            case "/warmup":
+            case "/junior": {
+                SimulatedElb.SimElb elb = cloud.elb.byDns(dns);
+                if (elb == null) {
+                    return new Response(400, "Load balancer is not reachable");
+                }
+                boolean warmup = route.equals("/warmup");
+                SimTest test = start(lg, lgTests, warmup ? "warmup" : "junior", elb.name,
+                        warmup ? cloud.config.warmupMillis : cloud.config.testMillis, now);
+                return new Response(200, "Test started " + test.logName);
+            }
+            default:
+                return new Response(404, "Not found");
+        }
+    }
+
+    private SimTest start(SimulatedCloud.SimInstance lg, List<SimTest> lgTests, String type, String elbName,
+                          long duration, long now) {
+        long stamp = now;
+        for (SimTest test : lgTests) {
+            stamp = Math.max(stamp, test.stamp + 1);
+        }
+        SimTest test = new SimTest(type, String.format("test.%013d.log", stamp), stamp, now, duration, elbName);
+        test.log.append("[Test]\ntype=").append(type).append("\ntestFile=").append(test.logName).append("\n\n");
+        lgTests.add(test);
+        cloud.schedule(now + SimulatedCloud.MINUTE, time -> minute(test, time));
+        return test;
+    }
+
+    /**
+     * Append the section of the minute ending at the given time, and end the test when it is over.
+     */
+    private void minute(SimTest test, long time) {
+        if (test.ended) {
+            return;
+        }
+        test.minutes++;
+        Map<String, Double> values = new LinkedHashMap<>();
+        if (test.elbName == null) {
+            for (String dns : test.dataCenters) {
+                SimulatedCloud.SimInstance dc = byDns(dns);
+                boolean up = dc != null && dc.isReady(time);
+                values.put(dns, up ? cloud.capacity(dc.type) * (0.95 + 0.1 * cloud.random.nextDouble()) : 0);
+            }
+        } else {
+            double capacity = 0;
+            for (SimulatedCloud.SimInstance member : cloud.elb.members(test.elbName)) {
+                if (member.isReady(time)) {
+                    capacity += cloud.capacity(member.type);
+                }
+            }
+            values.put(test.elbName, Math.min(test.offered(time), capacity));
+        }
+        double total = 0;
+        test.log.append("[Minute ").append(test.minutes).append("]\n");
+        for (Map.Entry<String, Double> value : values.entrySet()) {
+            test.log.append(value.getKey()).append('=').append(String.format("%.2f", value.getValue())).append('\n');
+            total += value.getValue();
+        }
+        test.log.append('\n');
+        test.served += total;
+        boolean reached = test.elbName == null && total >= HORIZONTAL_TARGET;
+        if (reached || time - test.start >= test.duration) {
+            test.ended = true;
+            test.log.append("[Test End]\nrps=").append(String.format("%.2f", test.served / test.minutes)).append("\n\n");
+        } else {
+            cloud.schedule(time + SimulatedCloud.MINUTE, next -> minute(test, next));
+        }
+    }
+
+    private SimulatedCloud.SimInstance byDns(String dns) {
+        if (dns == null) {
+            return null;
+        }
+        for (SimulatedCloud.SimInstance instance : cloud.instances.values()) {
+            if (dns.equals(instance.dns)) {
+                return instance;
+            }
+        }
+        return null;
+    }
+
+    private static Map<String, String> query(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            try {
+                if (equals > 0) {
+                    query.put(pair.substring(0, equals), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+                }
+            } catch (java.io.UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return query;
+    }
+
+    /**
+     * One test run by a simulated load generator.
+     */
+    private class SimTest {
+        private final String type;
+        private final String logName;
+        private final long stamp;
+        private final long start;
+        private final long duration;
+        private final String elbName;
+        private final List<String> dataCenters = new ArrayList<>();
+        private final StringBuilder log = new StringBuilder();
+        private int minutes;
+        private double served;
+        private boolean ended;
+
+        private SimTest(String type, String logName, long stamp, long start, long duration, String elbName) {
+            this.type = type;
+            this.logName = logName;
+            this.stamp = stamp;
+            this.start = start;
+            this.duration = duration;
+            this.elbName = elbName;
+        }
+
+        /**
+         * Offered load of the test: flat for a warmup; for the junior test a base load with one spike
+         * in the middle of the run.
+         */
+        private double offered(long now) {
+            double base = cloud.config.baseLoad;
+            if (type.equals("warmup")) {
+                return base * 0.6;
+            }
+            double peak = cloud.config.peakLoad;
+            double f = (now - start) / (double) duration;
+            if (f < 0.3 || f >= 0.85) {
+                return base;
+            } else if (f < 0.45) {
+                return base + (peak - base) * (f - 0.3) / 0.15;
+            } else if (f < 0.7) {
+                return peak;
+            }
+            return peak - (peak - base) * (f - 0.7) / 0.15;
+        }
+    }
+
+    private static class Response {
+        private final int code;
+        private final byte[] body;
+        private final Map<String, String> headers = new HashMap<>();
+
+        private Response(int code, String body) {
+            this(code, body.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private Response(int code, byte[] body) {
+            this.code = code;
+            this.body = body;
+        }
+
+        /**
+         * Serve a byte range of a log as the real web server does for {@code Range: bytes=N-}.
+         */
+        private static Response range(byte[] log, String range) {
+            if (range == null || !range.startsWith("bytes=") || !range.endsWith("-")) {
+                return new Response(200, log);
+            }
+            int from = Integer.parseInt(range.substring(6, range.length() - 1));
+            if (from >= log.length) {
+                Response response = new Response(416, new byte[0]);
+                response.headers.put("Content-Range", "bytes */" + log.length);
+                return response;
+            }
+            byte[] part = new byte[log.length - from];
+            System.arraycopy(log, from, part, 0, part.length);
+            Response response = new Response(206, part);
+            response.headers.put("Content-Range", "bytes " + from + "-" + (log.length - 1) + "/" + log.length);
+            return response;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
+
+/**
+ * Everything one auto scaling stack needs: its namespace, the credentials of its test, the clients it
+ * shares with the other stacks of the process, its scaling policy and capacity plan. Resource names and
+ * tags are namespaced, so stacks run side by side without colliding; the default stack, with an empty
+ * name, keeps the bare names and is tagged Stack:default.
+ */
+public class StackContext {
+    public static final String STACK_TAG = "Stack";
+    //Stack tag of the default stack, which no named stack may take
+    static final String DEFAULT_STACK = "default";
+    //The longest derived name, "<name>-loadbalancer", must stay within the 32 characters of an ELB name
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9]{0,19}");
+
+    private final String name;
+    private final String andrewId;
+    private final String password;
+    private final CloudProvider cloud;
+    private final ScalingPolicy policy;
+    private final CapacityPlanner.Plan plan;
+    private final Semaphore provisioning;
+
+    /**
+     * @param name         namespace of the stack, empty for the default stack
+     * @param andrewId     andrewId submitted to the load generator
+     * @param password     password submitted to the load generator
+     * @param cloud        clients, shared by every stack of the process
+     * @param policy       scaling policy of the group
+     * @param plan         instance type, zones and size of the group
+     * @param provisioning permits to provision, shared by the stacks to bound their concurrent AWS calls
+     */
+    public StackContext(String name, String andrewId, String password, CloudProvider cloud, ScalingPolicy policy,
+                        CapacityPlanner.Plan plan, Semaphore provisioning) {
+        if (!NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Stack name must be at most 19 letters or digits: " + name);
+        }
+        if (name.equals(DEFAULT_STACK)) {
+            throw new IllegalArgumentException("Stack name " + DEFAULT_STACK + " is taken by the default stack");
+        }
+        this.name = name;
+        this.andrewId = andrewId;
+        this.password = password;
+        this.cloud = cloud;
+        this.policy = policy;
+        this.plan = plan;
+        this.provisioning = provisioning;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public CloudProvider cloud() {
+        return cloud;
+    }
+
+    public ScalingPolicy getPolicy() {
+        return policy;
+    }
+
+    public CapacityPlanner.Plan getPlan() {
+        return plan;
+    }
+
+    public Semaphore getProvisioning() {
+        return provisioning;
+    }
+
+    /**
+     * @param base name of a resource of the default stack
+     * @return the name of that resource in this stack
+     */
+    public String name(String base) {
+        return name.isEmpty() ? base : name + "-" + base;
+    }
+
+    public String asgName() {
+        return name("ASG");
+    }
+
+    public String loadBalancerName() {
+        return name("loadbalancer");
+    }
+
+    public String launchConfigurationName() {
+        return name("ASGConfig");
+    }
+
+    /**
+     * @return tags of every resource of the stack: Project:2.1, and Stack:name (Stack:default for the
+     * default stack)
+     */
+    public Map<String, String> tags() {
+        Map<String, String> tags = new LinkedHashMap<>(AwsScalingHelper.projectTags());
+        tags.put(STACK_TAG, stackTag());
+        return Collections.unmodifiableMap(tags);
+    }
+
+    public String submitCredentialUrl(com.amazonaws.services.ec2.model.Instance lg) {
+        return AwsScalingHelper.submitCredentialUrl(lg, andrewId, password);
+    }
+
+    /**
+     * Open the journal of the stack: {@code -Djournal} or {@code AwsAutoScaling.journal} for the default
+     * stack, {@code <name>.journal} for a named one.
+     */
+    public RunJournal openJournal() throws IOException {
+        return name.isEmpty() ? RunJournal.open("AwsAutoScaling") : RunJournal.open(Paths.get(name + ".journal"));
+    }
+
+    /**
+     * Open the recording of the stack: {@code -Drecording} or {@code AwsAutoScaling.rec} for the default
+     * stack, {@code <name>.rec} for a named one.
+     */
+    public RunRecorder openRecorder(Map<String, String> header, boolean resume) throws IOException {
+        return name.isEmpty() ? RunRecorder.open("AwsAutoScaling", header, resume)
+                : RunRecorder.open(Paths.get(name + ".rec"), header, resume);
+    }
+
+    /**
+     * @return engine deleting the resources of this stack only
+     */
+    public TeardownEngine teardown() {
+        return new TeardownEngine(cloud, STACK_TAG, stackTag());
+    }
+
+    private String stackTag() {
+        return name.isEmpty() ? DEFAULT_STACK : name;
+    }
+
+    @Override
+    public String toString() {
+        return name.isEmpty() ? "default stack" : "stack " + name;
+    }
+}
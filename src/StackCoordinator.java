@@ -0,0 +1,70 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs a matrix of auto scaling stacks side by side in one process, each with its own namespace, scaling
+ * policy and instance type:
+ * <pre>
+ *     java StackCoordinator &lt;andrewId&gt; &lt;password&gt; step,step,c3.large cpu50,cpu:50,m3.medium
+ * </pre>
+ * Each argument after the credentials is {@code <name>,<policy>[,<instanceType>]}, the policy as in
+ * {@link ScalingPolicy#forName}; without a type the group is m3.medium, or what the planner picks with
+ * {@code -Dcapacity.plan=true}. The stacks share one set of clients and {@code -Dstacks.provisioning}
+ * (default 2) stacks provision at a time.
+ *
+ * @see StackContext
+ */
+public class StackCoordinator {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String andrewId = args[0].trim();
+        String password = args[1].trim();
+        CloudProvider cloud = CloudProvider.create(StackCoordinator.class);
+        CapacityPlanner planner = CapacityPlanner.fromSystemProperties();
+        Semaphore provisioning = new Semaphore(Integer.getInteger("stacks.provisioning", 2));
+        List<StackContext> stacks = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            String[] spec = args[i].trim().split(",");
+            CapacityPlanner.Plan plan = AwsAutoScaling.plan(planner, spec.length > 2 ? spec[2] : null);
+            stacks.add(new StackContext(spec[0], andrewId, password, cloud,
+                    ScalingPolicy.forName(spec.length > 1 ? spec[1] : "step"), plan, provisioning));
+        }
+        if (stacks.isEmpty()) {
+            throw new IllegalArgumentException("No stacks given, expected <name>,<policy>[,<instanceType>] arguments");
+        }
+
+        //One thread per stack, which mostly waits on its provisioning graph and event loop
+        ExecutorService executor = Executors.newFixedThreadPool(stacks.size());
+        Map<StackContext, Future<?>> runs = new LinkedHashMap<>();
+        for (StackContext stack : stacks) {
+            runs.put(stack, executor.submit(() -> {
+                new AwsAutoScaling(stack).run();
+                return null;
+            }));
+        }
+        List<String> failed = new ArrayList<>();
+        for (Map.Entry<StackContext, Future<?>> run : runs.entrySet()) {
+            try {
+                run.getValue().get();
+                System.out.println(run.getKey() + " finished");
+            } catch (ExecutionException e) {
+                System.out.println(run.getKey() + " failed: " + e.getCause());
+                failed.add(run.getKey().getName());
+            }
+        }
+        executor.shutdown();
+        cloud.shutdown();
+        Bootstrap.shared().close();
+        Metrics.shared().close();
+        if (!failed.isEmpty()) {
+            throw new IOException("Stacks " + failed + " failed, re-run them to resume from their journals");
+        }
+    }
+}
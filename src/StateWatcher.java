@@ -0,0 +1,335 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Central scheduler for every "wait until" in the project. Conditions are registered once and
+ * re-checked with exponential backoff and jitter until they hold or their deadline passes; the
+ * returned future is completed either way. Conditions on many resources of the same kind can share
+ * a {@link BatchGroup}, so one describe call covers all of them. Delays and deadlines are in
+ * {@link RunClock} time.
+ */
+public class StateWatcher {
+    private static final StateWatcher SHARED = new StateWatcher(2);
+
+    private final ScheduledExecutorService scheduler;
+
+    public StateWatcher(int threads) {
+        scheduler = Executors.newScheduledThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "state-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the watcher shared by all helpers of this process
+     */
+    public static StateWatcher shared() {
+        return SHARED;
+    }
+
+    /**
+     * Poll a probe until its value satisfies the condition. A probe which throws counts as not ready yet;
+     * a condition which throws fails the wait.
+     *
+     * @param name    description used in log and timeout messages
+     * @param probe   reads the current state
+     * @param done    condition on the state
+     * @param backoff delays between polls and overall deadline
+     * @return future completed with the first state satisfying the condition
+     */
+    public <T> CompletableFuture<T> await(String name, Callable<T> probe, Predicate<T> done, Backoff backoff) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long deadline = backoff.deadlineFromNow();
+        schedule(() -> check(name, probe, done, backoff, deadline, 0, future), 0);
+        return future;
+    }
+
+    /**
+     * Poll an asynchronous probe until its value satisfies the condition, such as an HTTP call running on
+     * threads of its own. The watcher only schedules the probes, so slow probes never hold up the other
+     * waits. A probe which fails counts as not ready yet; a condition which throws fails the wait.
+     *
+     * @param name    description used in log and timeout messages
+     * @param probe   starts reading the current state
+     * @param done    condition on the state
+     * @param backoff delays between polls and overall deadline
+     * @return future completed with the first state satisfying the condition
+     */
+    public <T> CompletableFuture<T> awaitAsync(String name, Supplier<CompletableFuture<T>> probe, Predicate<T> done,
+                                               Backoff backoff) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long deadline = backoff.deadlineFromNow();
+        schedule(() -> checkAsync(name, probe, done, backoff, deadline, 0, future), 0);
+        return future;
+    }
+
+    /**
+     * Retry an action until it completes without an exception.
+     *
+     * @param name    description used in log and timeout messages
+     * @param action  the action to retry
+     * @param backoff delays between attempts and overall deadline
+     * @return future completed with the result of the first successful attempt
+     */
+    public <T> CompletableFuture<T> retry(String name, Callable<T> action, Backoff backoff) {
+        return await(name, action, result -> true, backoff);
+    }
+
+    /**
+     * Create a group whose conditions are all checked by one batched probe per tick.
+     *
+     * @param name    description used in log and timeout messages
+     * @param probe   describes the state of many keys at once
+     * @param backoff delays between polls; the deadline applies to every registered key
+     */
+    public <K, V> BatchGroup<K, V> group(String name, BatchProbe<K, V> probe, Backoff backoff) {
+        return new BatchGroup<>(name, probe, backoff);
+    }
+
+    private <T> void check(String name, Callable<T> probe, Predicate<T> done, Backoff backoff,
+                           long deadline, int attempt, CompletableFuture<T> future) {
+        if (future.isDone()) {
+            return;
+        }
+        T value = null;
+        boolean probed = false;
+        try {
+            value = probe.call();
+            probed = true;
+        } catch (Exception e) {
+            System.out.println("Wait for " + name + ": " + e.getMessage());
+        }
+        try {
+            if (probed && done.test(value)) {
+                future.complete(value);
+                return;
+            }
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            return;
+        }
+        if (RunClock.now() >= deadline) {
+            future.completeExceptionally(new TimeoutException("Gave up waiting for " + name));
+            return;
+        }
+        schedule(() -> check(name, probe, done, backoff, deadline, attempt + 1, future), backoff.delay(attempt));
+    }
+
+    private <T> void checkAsync(String name, Supplier<CompletableFuture<T>> probe, Predicate<T> done,
+                                Backoff backoff, long deadline, int attempt, CompletableFuture<T> future) {
+        if (future.isDone()) {
+            return;
+        }
+        CompletableFuture<T> value;
+        try {
+            value = probe.get();
+        } catch (RuntimeException e) {
+            value = new CompletableFuture<>();
+            value.completeExceptionally(e);
+        }
+        value.whenComplete((state, failure) -> {
+            if (failure == null) {
+                try {
+                    if (done.test(state)) {
+                        future.complete(state);
+                        return;
+                    }
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                    return;
+                }
+            } else {
+                Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                        ? failure.getCause() : failure;
+                System.out.println("Wait for " + name + ": " + cause.getMessage());
+            }
+            if (RunClock.now() >= deadline) {
+                future.completeExceptionally(new TimeoutException("Gave up waiting for " + name));
+                return;
+            }
+            schedule(() -> checkAsync(name, probe, done, backoff, deadline, attempt + 1, future),
+                    backoff.delay(attempt));
+        });
+    }
+
+    private void schedule(Runnable task, long delayMillis) {
+        scheduler.schedule(task, RunClock.realMillis(delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Describes the state of many resources with a single call.
+     */
+    public interface BatchProbe<K, V> {
+        /**
+         * @param keys resources to describe
+         * @return state per key; keys missing from the map are treated as not ready
+         */
+        Map<K, V> describe(Collection<K> keys) throws Exception;
+    }
+
+    /**
+     * Exponential backoff with equal jitter, capped per delay and bounded by an overall deadline.
+     */
+    public static class Backoff {
+        private final long initialMillis;
+        private final long maxMillis;
+        private final long deadlineMillis;
+
+        public Backoff(long initial, long max, long deadline, TimeUnit unit) {
+            this.initialMillis = unit.toMillis(initial);
+            this.maxMillis = unit.toMillis(max);
+            this.deadlineMillis = unit.toMillis(deadline);
+        }
+
+        /**
+         * @return backoff for AWS API state changes: 1s doubling to 30s, for up to 30 minutes
+         */
+        public static Backoff api() {
+            return new Backoff(1, 30, 1800, TimeUnit.SECONDS);
+        }
+
+        /**
+         * @return backoff for HTTP endpoints on instances: 1s doubling to 10s, for up to 30 minutes
+         */
+        public static Backoff http() {
+            return new Backoff(1, 10, 1800, TimeUnit.SECONDS);
+        }
+
+        long delay(int attempt) {
+            long delay = maxMillis;
+            if (attempt < 30) {
+                delay = Math.min(maxMillis, initialMillis << attempt);
+            }
+            long half = Math.max(1, delay / 2);
+            return half + ThreadLocalRandom.current().nextLong(half);
+        }
+
+        long deadlineFromNow() {
+            return RunClock.now() + deadlineMillis;
+        }
+    }
+
+    /**
+     * Conditions on resources of one kind, all checked by one probe call per tick. The poll delay backs off
+     * while nothing changes and resets whenever a condition completes or a new one is registered.
+     */
+    public class BatchGroup<K, V> {
+        private final String name;
+        private final BatchProbe<K, V> probe;
+        private final Backoff backoff;
+        private final Map<K, Waiter<V>> waiters = new ConcurrentHashMap<>();
+        private int idleTicks;
+        private boolean scheduled;
+
+        private BatchGroup(String name, BatchProbe<K, V> probe, Backoff backoff) {
+            this.name = name;
+            this.probe = probe;
+            this.backoff = backoff;
+        }
+
+        /**
+         * Register a condition on one resource.
+         *
+         * @param key  the resource
+         * @param done condition on its state; may throw {@link IllegalStateException} to fail the wait
+         * @return future completed with the first state satisfying the condition
+         */
+        public CompletableFuture<V> await(K key, Predicate<V> done) {
+            Waiter<V> waiter = waiters.computeIfAbsent(key, k -> new Waiter<>(done, backoff.deadlineFromNow()));
+            synchronized (this) {
+                idleTicks = 0;
+                if (!scheduled) {
+                    scheduled = true;
+                    schedule(this::tick, backoff.delay(0));
+                }
+            }
+            return waiter.future;
+        }
+
+        /**
+         * Fail the wait on one resource, leaving the others of the group waiting.
+         *
+         * @param key   the resource
+         * @param cause completes its future exceptionally
+         */
+        public void fail(K key, Exception cause) {
+            Waiter<V> waiter = waiters.remove(key);
+            if (waiter != null) {
+                waiter.future.completeExceptionally(cause);
+            }
+        }
+
+        private void tick() {
+            boolean progress = false;
+            List<K> keys = new ArrayList<>(waiters.keySet());
+            try {
+                Map<K, V> states = probe.describe(keys);
+                for (Map.Entry<K, V> entry : states.entrySet()) {
+                    Waiter<V> waiter = waiters.get(entry.getKey());
+                    if (waiter != null && waiter.offer(entry.getValue())) {
+                        waiters.remove(entry.getKey());
+                        progress = true;
+                    }
+                }
+            } catch (Exception e) {
+                System.out.println("Wait for " + name + ": " + e.getMessage());
+            }
+            long now = RunClock.now();
+            Iterator<Map.Entry<K, Waiter<V>>> iterator = waiters.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<K, Waiter<V>> entry = iterator.next();
+                if (now >= entry.getValue().deadline) {
+                    entry.getValue().future.completeExceptionally(
+                            new TimeoutException("Gave up waiting for " + name + " " + entry.getKey()));
+                    iterator.remove();
+                }
+            }
+            synchronized (this) {
+                idleTicks = progress ? 0 : idleTicks + 1;
+                scheduled = !waiters.isEmpty();
+                if (scheduled) {
+                    schedule(this::tick, backoff.delay(idleTicks));
+                }
+            }
+        }
+    }
+
+    private static class Waiter<V> {
+        private final Predicate<V> done;
+        private final long deadline;
+        private final CompletableFuture<V> future = new CompletableFuture<>();
+
+        private Waiter(Predicate<V> done, long deadline) {
+            this.done = done;
+            this.deadline = deadline;
+        }
+
+        private boolean offer(V value) {
+            try {
+                if (done.test(value)) {
+                    future.complete(value);
+                    return true;
+                }
+                return false;
+            } catch (IllegalStateException e) {
+                future.completeExceptionally(e);
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+import com.amazonaws.services.autoscaling.AmazonAutoScaling;
+import com.amazonaws.services.autoscaling.model.PutScalingPolicyRequest;
+import com.amazonaws.services.autoscaling.model.StepAdjustment;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.cloudwatch.model.ComparisonOperator;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.PutMetricAlarmRequest;
+import com.amazonaws.services.cloudwatch.model.Statistic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Step scaling on a metric of the group: each band of the metric adds or removes its own number of
+ * instances, so a spike is answered with several instances in one alarm period instead of one.
+ * Scale out bands share one alarm at the lowest band, scale in bands one alarm at the highest band.
+ */
+public class StepScalingPolicy implements ScalingPolicy {
+    private static final Pattern BAND = Pattern.compile("(\\d+(?:\\.\\d+)?)([+-]\\d+)");
+
+    private final String namespace;
+    private final String metricName;
+    private final TreeMap<Double, Integer> outBands = new TreeMap<>();
+    private final TreeMap<Double, Integer> inBands = new TreeMap<>();
+    private int period = 60;
+    private int outPeriods = 1;
+    private int inPeriods = 5;
+    private int warmup = 300;
+
+    public StepScalingPolicy(String namespace, String metricName) {
+        this.namespace = namespace;
+        this.metricName = metricName;
+    }
+
+    /**
+     * @return a policy on the average CPU utilization of the group, without bands
+     */
+    public static StepScalingPolicy cpu() {
+        return new StepScalingPolicy("AWS/EC2", "CPUUtilization");
+    }
+
+    /**
+     * Add {@code instances} when the metric is at or above {@code threshold}, up to the next band.
+     */
+    public StepScalingPolicy scaleOut(double threshold, int instances) {
+        outBands.put(threshold, instances);
+        return this;
+    }
+
+    /**
+     * Change capacity by {@code instances} (negative) when the metric is at or below {@code threshold}, down to
+     * the next band.
+     */
+    public StepScalingPolicy scaleIn(double threshold, int instances) {
+        inBands.put(threshold, instances);
+        return this;
+    }
+
+    /**
+     * @param out periods the metric must breach before scaling out
+     * @param in  periods the metric must breach before scaling in
+     */
+    public StepScalingPolicy evaluationPeriods(int out, int in) {
+        this.outPeriods = out;
+        this.inPeriods = in;
+        return this;
+    }
+
+    /**
+     * @param seconds time a new instance needs before it counts towards the metric
+     */
+    public StepScalingPolicy warmup(int seconds) {
+        this.warmup = seconds;
+        return this;
+    }
+
+    /**
+     * Replace some settings, each {@code <name>=<value>} and separated by commas:
+     * {@code out=60+1/75+2/90+3} and {@code in=20-1} for the bands as threshold and change in capacity,
+     * {@code periods=1/5} for the evaluation periods out and in, {@code warmup=120} in seconds. For example
+     * {@code out=70+1/85+2,periods=2/5} scales out later, and only after two periods above 70%.
+     */
+    public StepScalingPolicy configure(String settings) {
+        for (String setting : settings.split(",")) {
+            String[] entry = setting.split("=", 2);
+            if (entry.length != 2) {
+                throw new IllegalArgumentException("Expected <name>=<value>: " + setting);
+            }
+            switch (entry[0].trim()) {
+                case "out":
+                    bands(outBands, entry[1]);
+                    break;
+                case "in":
+                    bands(inBands, entry[1]);
+                    break;
+                case "periods": {
+                    String[] periods = entry[1].split("/");
+                    evaluationPeriods(Integer.parseInt(periods[0].trim()), Integer.parseInt(periods[1].trim()));
+                    break;
+                }
+                case "warmup":
+                    warmup(Integer.parseInt(entry[1].trim()));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown step scaling setting " + entry[0]);
+            }
+        }
+        return this;
+    }
+
+    private static void bands(TreeMap<Double, Integer> bands, String spec) {
+        bands.clear();
+        for (String band : spec.split("/")) {
+            Matcher matcher = BAND.matcher(band.trim());
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Expected <threshold>+<instances> or <threshold>-<instances>: "
+                        + band);
+            }
+            bands.put(Double.parseDouble(matcher.group(1)), Integer.parseInt(matcher.group(2)));
+        }
+    }
+
+    /**
+     * Alarms in ALARM run their policy every period. A scale out adds what its band asks for beyond the
+     * instances still warming up; a scale in goes ahead whatever is warming.
+     */
+    @Override
+    public Model model() {
+        return new Model() {
+            private int outBreaches;
+            private int inBreaches;
+
+            @Override
+            public int adjust(double metric, int serving, int capacity, int warming) {
+                Map.Entry<Double, Integer> out = outBands.floorEntry(metric);
+                Map.Entry<Double, Integer> in = inBands.ceilingEntry(metric);
+                outBreaches = out == null ? 0 : outBreaches + 1;
+                inBreaches = in == null ? 0 : inBreaches + 1;
+                if (out != null && outBreaches >= outPeriods) {
+                    return Math.max(0, out.getValue() - warming);
+                }
+                if (in != null && inBreaches >= inPeriods) {
+                    return in.getValue();
+                }
+                return 0;
+            }
+
+            @Override
+            public int warmupSeconds() {
+                return warmup;
+            }
+        };
+    }
+
+    @Override
+    public List<String> apply(String asgName, AmazonAutoScaling autoScaling, AmazonCloudWatch cloudWatch) {
+        List<String> alarms = new ArrayList<>();
+        if (!outBands.isEmpty()) {
+            String arn = autoScaling.putScalingPolicy(policyRequest(asgName, "ScaleUp", outBands)).getPolicyARN();
+            PutMetricAlarmRequest alarm = alarmRequest(asgName, asgName + "-ScaleUpAlarm", arn, outBands.firstKey(),
+                    ComparisonOperator.GreaterThanOrEqualToThreshold, outPeriods);
+            System.out.println("Launching scale out alarm " + alarm);
+            cloudWatch.putMetricAlarm(alarm);
+            alarms.add(alarm.getAlarmName());
+        }
+        if (!inBands.isEmpty()) {
+            String arn = autoScaling.putScalingPolicy(policyRequest(asgName, "ScaleDown", inBands)).getPolicyARN();
+            PutMetricAlarmRequest alarm = alarmRequest(asgName, asgName + "-ScaleDownAlarm", arn, inBands.lastKey(),
+                    ComparisonOperator.LessThanOrEqualToThreshold, inPeriods);
+            System.out.println("Launching scale in alarm " + alarm);
+            cloudWatch.putMetricAlarm(alarm);
+            alarms.add(alarm.getAlarmName());
+        }
+        return alarms;
+    }
+
+    /**
+     * Build the step policy of a set of bands. Step bounds are relative to the alarm threshold: the lowest
+     * band for scale out, the highest band for scale in.
+     */
+    PutScalingPolicyRequest policyRequest(String asgName, String policyName, TreeMap<Double, Integer> bands) {
+        boolean out = bands == outBands;
+        double threshold = out ? bands.firstKey() : bands.lastKey();
+        List<StepAdjustment> steps = new ArrayList<>();
+        for (Map.Entry<Double, Integer> band : bands.entrySet()) {
+            StepAdjustment step = new StepAdjustment().withScalingAdjustment(band.getValue());
+            if (out) {
+                Double next = bands.higherKey(band.getKey());
+                step.withMetricIntervalLowerBound(band.getKey() - threshold)
+                        .withMetricIntervalUpperBound(next == null ? null : next - threshold);
+            } else {
+                Double next = bands.lowerKey(band.getKey());
+                step.withMetricIntervalUpperBound(band.getKey() - threshold)
+                        .withMetricIntervalLowerBound(next == null ? null : next - threshold);
+            }
+            steps.add(step);
+        }
+        PutScalingPolicyRequest request = new PutScalingPolicyRequest();
+        request.withAutoScalingGroupName(asgName)
+                .withPolicyName(policyName)
+                .withPolicyType("StepScaling")
+                .withAdjustmentType("ChangeInCapacity")
+                .withMetricAggregationType("Average")
+                .withStepAdjustments(steps);
+        if (out) {
+            //Estimated warmup only applies to scale out policies
+            request.withEstimatedInstanceWarmup(warmup);
+        }
+        System.out.println("Scaling policy: " + request);
+        return request;
+    }
+
+    PutMetricAlarmRequest alarmRequest(String asgName, String alarmName, String policyArn, double threshold,
+                                       ComparisonOperator operator, int evaluationPeriods) {
+        Dimension dimension = new Dimension();
+        dimension.setName("AutoScalingGroupName");
+        dimension.setValue(asgName);
+
+        PutMetricAlarmRequest request = new PutMetricAlarmRequest();
+        request.withAlarmName(alarmName)
+                .withActionsEnabled(true)
+                .withDimensions(dimension)
+                .withMetricName(metricName)
+                .withNamespace(namespace)
+                .withComparisonOperator(operator)
+                .withThreshold(threshold)
+                .withPeriod(period)
+                .withEvaluationPeriods(evaluationPeriods)
+                .withStatistic(Statistic.Average)
+                .withAlarmActions(policyArn);
+        return request;
+    }
+}
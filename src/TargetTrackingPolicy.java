@@ -0,0 +1,152 @@
+import com.amazonaws.services.autoscaling.AmazonAutoScaling;
+import com.amazonaws.services.autoscaling.model.Alarm;
+import com.amazonaws.services.autoscaling.model.CustomizedMetricSpecification;
+import com.amazonaws.services.autoscaling.model.MetricDimension;
+import com.amazonaws.services.autoscaling.model.MetricStatistic;
+import com.amazonaws.services.autoscaling.model.MetricType;
+import com.amazonaws.services.autoscaling.model.PredefinedMetricSpecification;
+import com.amazonaws.services.autoscaling.model.PutScalingPolicyRequest;
+import com.amazonaws.services.autoscaling.model.PutScalingPolicyResult;
+import com.amazonaws.services.autoscaling.model.TargetTrackingConfiguration;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Target tracking: Auto Scaling creates the alarms itself and sizes the group in proportion to how far the
+ * metric is from the target, so capacity follows load in one step rather than one instance per period.
+ */
+public class TargetTrackingPolicy implements ScalingPolicy {
+    private final TargetTrackingConfiguration configuration;
+    private int warmup = 300;
+
+    public TargetTrackingPolicy(TargetTrackingConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * @param percent average CPU utilization to keep the group at
+     */
+    public static TargetTrackingPolicy cpu(double percent) {
+        return new TargetTrackingPolicy(new TargetTrackingConfiguration()
+                .withPredefinedMetricSpecification(new PredefinedMetricSpecification()
+                        .withPredefinedMetricType(MetricType.ASGAverageCPUUtilization))
+                .withTargetValue(percent));
+    }
+
+    /**
+     * Track the RPS per instance of the load generator log, published by {@link RpsMetricPublisher} for the
+     * group the policy is applied to.
+     *
+     * @param rps requests per second and instance to keep the group at
+     */
+    public static TargetTrackingPolicy rpsPerInstance(double rps) {
+        return new TargetTrackingPolicy(new TargetTrackingConfiguration()
+                .withCustomizedMetricSpecification(new CustomizedMetricSpecification()
+                        .withNamespace(RpsMetricPublisher.NAMESPACE)
+                        .withMetricName(RpsMetricPublisher.RPS_PER_INSTANCE)
+                        .withStatistic(MetricStatistic.Average))
+                .withTargetValue(rps));
+    }
+
+    /**
+     * @param seconds time a new instance needs before it counts towards the metric
+     */
+    public TargetTrackingPolicy warmup(int seconds) {
+        this.warmup = seconds;
+        return this;
+    }
+
+    /**
+     * Leave scale in to another policy.
+     */
+    public TargetTrackingPolicy disableScaleIn() {
+        configuration.setDisableScaleIn(true);
+        return this;
+    }
+
+    @Override
+    public List<String> apply(String asgName, AmazonAutoScaling autoScaling, AmazonCloudWatch cloudWatch) {
+        PutScalingPolicyRequest request = policyRequest(asgName);
+        System.out.println("Scaling policy: " + request);
+        PutScalingPolicyResult result = autoScaling.putScalingPolicy(request);
+        List<String> alarms = new ArrayList<>();
+        for (Alarm alarm : result.getAlarms()) {
+            alarms.add(alarm.getAlarmName());
+        }
+        return alarms;
+    }
+
+    /**
+     * Sizes the group so the metric comes back to the target, counting instances still booting as already
+     * serving. Scale in waits for 15 minutes below the target and for no instance to be warming,
+     * as the alarms Auto Scaling creates do. The CPU policy is replayed from the CPU of the group, the RPS per
+     * instance policy from the recorded RPS; other metrics cannot be replayed.
+     */
+    @Override
+    public Model model() {
+        PredefinedMetricSpecification predefined = configuration.getPredefinedMetricSpecification();
+        CustomizedMetricSpecification customized = configuration.getCustomizedMetricSpecification();
+        boolean cpu = predefined != null
+                && MetricType.ASGAverageCPUUtilization.toString().equals(predefined.getPredefinedMetricType());
+        boolean rps = customized != null && RpsMetricPublisher.NAMESPACE.equals(customized.getNamespace())
+                && RpsMetricPublisher.RPS_PER_INSTANCE.equals(customized.getMetricName());
+        if (!cpu && !rps) {
+            throw new IllegalArgumentException("Only CPU and RPS per instance target tracking can be replayed");
+        }
+        double target = configuration.getTargetValue();
+        boolean scaleIn = !Boolean.TRUE.equals(configuration.getDisableScaleIn());
+        return new Model() {
+            private int lowMinutes;
+
+            @Override
+            public int adjust(double metric, int serving, int capacity, int warming) {
+                int desired = (int) Math.ceil(serving * metric / target);
+                if (desired > capacity) {
+                    lowMinutes = 0;
+                    return desired - capacity;
+                }
+                lowMinutes = desired < capacity ? lowMinutes + 1 : 0;
+                if (scaleIn && warming == 0 && lowMinutes >= 15) {
+                    lowMinutes = 0;
+                    return Math.max(1, desired) - capacity;
+                }
+                return 0;
+            }
+
+            @Override
+            public int warmupSeconds() {
+                return warmup;
+            }
+
+            @Override
+            public boolean perInstanceRps() {
+                return rps;
+            }
+        };
+    }
+
+    PutScalingPolicyRequest policyRequest(String asgName) {
+        TargetTrackingConfiguration tracked = configuration;
+        CustomizedMetricSpecification customized = configuration.getCustomizedMetricSpecification();
+        if (customized != null && (customized.getDimensions() == null || customized.getDimensions().isEmpty())) {
+            //A custom metric without dimensions is the one of the group, as for rpsPerInstance
+            tracked = new TargetTrackingConfiguration()
+                    .withCustomizedMetricSpecification(new CustomizedMetricSpecification()
+                            .withNamespace(customized.getNamespace())
+                            .withMetricName(customized.getMetricName())
+                            .withStatistic(customized.getStatistic())
+                            .withDimensions(new MetricDimension().withName("AutoScalingGroupName").withValue(asgName)))
+                    .withTargetValue(configuration.getTargetValue())
+                    .withDisableScaleIn(configuration.getDisableScaleIn());
+        }
+        PutScalingPolicyRequest request = new PutScalingPolicyRequest();
+        request.withAutoScalingGroupName(asgName)
+                .withPolicyName("TargetTracking")
+                .withPolicyType("TargetTrackingScaling")
+                .withTargetTrackingConfiguration(tracked)
+                .withEstimatedInstanceWarmup(warmup);
+        return request;
+    }
+}
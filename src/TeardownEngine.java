@@ -0,0 +1,330 @@
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.autoscaling.model.DeleteAutoScalingGroupRequest;
+import com.amazonaws.services.autoscaling.model.DeleteLaunchConfigurationRequest;
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsRequest;
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsResult;
+import com.amazonaws.services.autoscaling.model.SetInstanceProtectionRequest;
+import com.amazonaws.services.autoscaling.model.TagDescription;
+import com.amazonaws.services.autoscaling.model.UpdateAutoScalingGroupRequest;
+import com.amazonaws.services.cloudwatch.model.DeleteAlarmsRequest;
+import com.amazonaws.services.cloudwatch.model.DescribeAlarmsRequest;
+import com.amazonaws.services.cloudwatch.model.DescribeAlarmsResult;
+import com.amazonaws.services.cloudwatch.model.MetricAlarm;
+import com.amazonaws.services.ec2.model.DeleteSecurityGroupRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeSecurityGroupsRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.SecurityGroup;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.amazonaws.services.elasticloadbalancing.model.DeleteLoadBalancerRequest;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeLoadBalancersRequest;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeLoadBalancersResult;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeTagsRequest;
+import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Deletes everything a scaling run created, found by its Project tag rather than by what the run remembers:
+ * auto scaling groups with their launch configurations and alarms, load balancers, instances and security
+ * groups. Deletions run in parallel where dependencies allow, wait on the real state of the resources, and
+ * treat "not found" as done, so the engine can be re-run after a crash until nothing is left.
+ */
+public class TeardownEngine {
+    private static final String[] LIVE_STATES = {"pending", "running", "shutting-down", "stopping", "stopped"};
+
+    private final CloudProvider cloud;
+    private final String tagKey;
+    private final String tagValue;
+
+    public TeardownEngine(CloudProvider cloud) {
+        this(cloud, AwsScalingHelper.PROJECT_TAG, AwsScalingHelper.PROJECT);
+    }
+
+    public TeardownEngine(CloudProvider cloud, String tagKey, String tagValue) {
+        this.cloud = cloud;
+        this.tagKey = tagKey;
+        this.tagValue = tagValue;
+    }
+
+    /**
+     * Tear down a crashed run: {@code java -Dcloud=sim|aws TeardownEngine}.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        CloudProvider cloud = CloudProvider.create(TeardownEngine.class);
+        try {
+            new TeardownEngine(cloud).run();
+        } finally {
+            cloud.shutdown();
+        }
+    }
+
+    /**
+     * Discover every tagged resource and delete it.
+     */
+    public void run() throws IOException, InterruptedException {
+        List<AutoScalingGroup> groups = taggedGroups();
+        List<String> loadBalancers = taggedLoadBalancers();
+        List<String> instances = taggedStandaloneInstances();
+        List<String> securityGroups = taggedSecurityGroups();
+        List<String> alarms = alarmsOf(groups);
+        System.out.println("Tearing down groups " + names(groups) + ", load balancers " + loadBalancers
+                + ", instances " + instances + ", security groups " + securityGroups + ", alarms " + alarms);
+
+        ProvisioningGraph graph = new ProvisioningGraph(8);
+        List<ProvisioningGraph.Step<?>> beforeGroups = new ArrayList<>();
+        beforeGroups.add(graph.task("delete alarms", () -> deleteAlarms(alarms)));
+        for (String name : loadBalancers) {
+            beforeGroups.add(graph.task("delete " + name, () -> deleteLoadBalancer(name)));
+        }
+        if (!instances.isEmpty()) {
+            beforeGroups.add(graph.task("terminate instances", () -> terminateInstances(instances)));
+        }
+        for (AutoScalingGroup group : groups) {
+            //Scale to zero while the load balancer is being deleted, delete once the instances are gone
+            String name = group.getAutoScalingGroupName();
+            ProvisioningGraph.Step<Void> drained = graph.task("scale " + name + " to zero", () -> scaleToZero(name));
+            ProvisioningGraph.Step<Void> deleted = graph.task("delete " + name, () -> deleteGroup(name), drained);
+            if (group.getLaunchConfigurationName() != null) {
+                beforeGroups.add(graph.task("delete " + group.getLaunchConfigurationName(),
+                        () -> deleteLaunchConfiguration(group.getLaunchConfigurationName()), deleted));
+            } else {
+                beforeGroups.add(deleted);
+            }
+        }
+        ProvisioningGraph.Step<Void> gone = graph.task("wait for instances to terminate",
+                this::awaitInstancesTerminated, beforeGroups.toArray(new ProvisioningGraph.Step<?>[0]));
+        for (String groupId : securityGroups) {
+            graph.task("delete " + groupId, () -> deleteSecurityGroup(groupId), gone);
+        }
+        try {
+            graph.await();
+        } catch (ExecutionException e) {
+            throw new IOException("Teardown failed, re-run to finish it", e.getCause());
+        } finally {
+            System.out.println(graph.report());
+            graph.shutdown();
+        }
+    }
+
+    private List<AutoScalingGroup> taggedGroups() {
+        List<AutoScalingGroup> groups = new ArrayList<>();
+        String token = null;
+        do {
+            DescribeAutoScalingGroupsResult result = cloud.autoScaling()
+                    .describeAutoScalingGroups(new DescribeAutoScalingGroupsRequest().withNextToken(token));
+            for (AutoScalingGroup group : result.getAutoScalingGroups()) {
+                for (TagDescription tag : group.getTags()) {
+                    if (tagKey.equals(tag.getKey()) && tagValue.equals(tag.getValue())) {
+                        groups.add(group);
+                        break;
+                    }
+                }
+            }
+            token = result.getNextToken();
+        } while (token != null);
+        return groups;
+    }
+
+    private List<String> taggedLoadBalancers() {
+        List<String> names = new ArrayList<>();
+        String marker = null;
+        do {
+            DescribeLoadBalancersResult result = cloud.elb()
+                    .describeLoadBalancers(new DescribeLoadBalancersRequest().withMarker(marker));
+            for (LoadBalancerDescription description : result.getLoadBalancerDescriptions()) {
+                names.add(description.getLoadBalancerName());
+            }
+            marker = result.getNextMarker();
+        } while (marker != null);
+        List<String> tagged = new ArrayList<>();
+        //DescribeTags takes at most 20 load balancers per call
+        for (int from = 0; from < names.size(); from += 20) {
+            List<String> batch = names.subList(from, Math.min(names.size(), from + 20));
+            for (com.amazonaws.services.elasticloadbalancing.model.TagDescription description : cloud.elb()
+                    .describeTags(new DescribeTagsRequest().withLoadBalancerNames(batch)).getTagDescriptions()) {
+                for (com.amazonaws.services.elasticloadbalancing.model.Tag tag : description.getTags()) {
+                    if (tagKey.equals(tag.getKey()) && tagValue.equals(tag.getValue())) {
+                        tagged.add(description.getLoadBalancerName());
+                    }
+                }
+            }
+        }
+        return tagged;
+    }
+
+    /**
+     * @return live tagged instances not managed by an auto scaling group
+     */
+    private List<String> taggedStandaloneInstances() {
+        List<String> standalone = new ArrayList<>();
+        for (Instance instance : liveTaggedInstances()) {
+            boolean managed = false;
+            for (Tag tag : instance.getTags()) {
+                managed |= tag.getKey().equals("aws:autoscaling:groupName");
+            }
+            if (!managed) {
+                standalone.add(instance.getInstanceId());
+            }
+        }
+        return standalone;
+    }
+
+    private List<Instance> liveTaggedInstances() {
+        DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(
+                new Filter("tag:" + tagKey, Arrays.asList(tagValue)),
+                new Filter("instance-state-name", Arrays.asList(LIVE_STATES)));
+        List<Instance> instances = new ArrayList<>();
+        String token = null;
+        do {
+            com.amazonaws.services.ec2.model.DescribeInstancesResult result =
+                    cloud.ec2().describeInstances(request.withNextToken(token));
+            for (Reservation reservation : result.getReservations()) {
+                instances.addAll(reservation.getInstances());
+            }
+            token = result.getNextToken();
+        } while (token != null);
+        return instances;
+    }
+
+    private List<String> taggedSecurityGroups() {
+        List<String> groupIds = new ArrayList<>();
+        for (SecurityGroup group : cloud.ec2().describeSecurityGroups(new DescribeSecurityGroupsRequest()
+                .withFilters(new Filter("tag:" + tagKey, Arrays.asList(tagValue)))).getSecurityGroups()) {
+            groupIds.add(group.getGroupId());
+        }
+        return groupIds;
+    }
+
+    /**
+     * @return alarms whose actions run scaling policies of the given groups
+     */
+    private List<String> alarmsOf(List<AutoScalingGroup> groups) {
+        Set<String> alarms = new LinkedHashSet<>();
+        if (groups.isEmpty()) {
+            return new ArrayList<>(alarms);
+        }
+        //Only alarms acting on scaling policies, a page of at most 50 at a time
+        String token = null;
+        do {
+            DescribeAlarmsResult result = cloud.cloudWatch().describeAlarms(new DescribeAlarmsRequest()
+                    .withActionPrefix("arn:aws:autoscaling:").withNextToken(token));
+            for (MetricAlarm alarm : result.getMetricAlarms()) {
+                if (alarm.getAlarmName().startsWith("TargetTracking-")) {
+                    //Owned by a target tracking policy, deleted with its group
+                    continue;
+                }
+                for (String action : alarm.getAlarmActions()) {
+                    for (AutoScalingGroup group : groups) {
+                        if (action.contains(":autoScalingGroupName/" + group.getAutoScalingGroupName() + ":")) {
+                            alarms.add(alarm.getAlarmName());
+                        }
+                    }
+                }
+            }
+            token = result.getNextToken();
+        } while (token != null);
+        return new ArrayList<>(alarms);
+    }
+
+    private void deleteAlarms(List<String> alarms) {
+        //DeleteAlarms takes at most 100 alarms per call
+        for (int from = 0; from < alarms.size(); from += 100) {
+            cloud.cloudWatch().deleteAlarms(new DeleteAlarmsRequest()
+                    .withAlarmNames(alarms.subList(from, Math.min(alarms.size(), from + 100))));
+        }
+    }
+
+    private void deleteLoadBalancer(String name) {
+        //Deleting a load balancer which does not exist succeeds
+        cloud.elb().deleteLoadBalancer(new DeleteLoadBalancerRequest(name));
+    }
+
+    private void terminateInstances(List<String> instanceIds) {
+        ignoreNotFound(() -> cloud.ec2().terminateInstances(new TerminateInstancesRequest(instanceIds)));
+        AwsScalingHelper.forgetLaunches(instanceIds);
+    }
+
+    private void scaleToZero(String name) {
+        ignoreNotFound(() -> cloud.autoScaling().updateAutoScalingGroup(new UpdateAutoScalingGroupRequest()
+                .withAutoScalingGroupName(name)
+                .withMinSize(0)
+                .withMaxSize(0)
+                .withDesiredCapacity(0)));
+        //Instances protected from scale in would keep the group from emptying
+        List<AutoScalingGroup> groups = cloud.autoScaling().describeAutoScalingGroups(
+                new DescribeAutoScalingGroupsRequest().withAutoScalingGroupNames(name)).getAutoScalingGroups();
+        List<String> protectedIds = new ArrayList<>();
+        for (AutoScalingGroup group : groups) {
+            for (com.amazonaws.services.autoscaling.model.Instance instance : group.getInstances()) {
+                if (Boolean.TRUE.equals(instance.getProtectedFromScaleIn())) {
+                    protectedIds.add(instance.getInstanceId());
+                }
+            }
+        }
+        if (!protectedIds.isEmpty()) {
+            ignoreNotFound(() -> cloud.autoScaling().setInstanceProtection(new SetInstanceProtectionRequest()
+                    .withAutoScalingGroupName(name)
+                    .withInstanceIds(protectedIds)
+                    .withProtectedFromScaleIn(false)));
+        }
+        AwsScalingHelper.waitFor(StateWatcher.shared().await(name + " to have no instances", () -> {
+            List<AutoScalingGroup> found = cloud.autoScaling().describeAutoScalingGroups(
+                    new DescribeAutoScalingGroupsRequest().withAutoScalingGroupNames(name)).getAutoScalingGroups();
+            return found.isEmpty() ? 0 : found.get(0).getInstances().size();
+        }, count -> count == 0, StateWatcher.Backoff.api()));
+    }
+
+    private void deleteGroup(String name) {
+        ignoreNotFound(() -> cloud.autoScaling().deleteAutoScalingGroup(
+                new DeleteAutoScalingGroupRequest().withAutoScalingGroupName(name)));
+    }
+
+    private void deleteLaunchConfiguration(String name) {
+        ignoreNotFound(() -> cloud.autoScaling().deleteLaunchConfiguration(
+                new DeleteLaunchConfigurationRequest().withLaunchConfigurationName(name)));
+    }
+
+    private void awaitInstancesTerminated() {
+        AwsScalingHelper.waitFor(StateWatcher.shared().await("tagged instances to terminate",
+                () -> liveTaggedInstances().size(), count -> count == 0, StateWatcher.Backoff.api()));
+    }
+
+    private void deleteSecurityGroup(String groupId) {
+        //The load balancer can hold the group for a short while after it is deleted
+        AwsScalingHelper.waitFor(StateWatcher.shared().retry("delete " + groupId, () -> {
+            ignoreNotFound(() -> cloud.ec2().deleteSecurityGroup(new DeleteSecurityGroupRequest().withGroupId(groupId)));
+            return groupId;
+        }, StateWatcher.Backoff.api()));
+    }
+
+    private static void ignoreNotFound(Runnable call) {
+        try {
+            call.run();
+        } catch (AmazonServiceException e) {
+            String code = e.getErrorCode() == null ? "" : e.getErrorCode();
+            String message = e.getErrorMessage() == null ? "" : e.getErrorMessage();
+            if (!code.contains("NotFound") && !message.contains("not found")) {
+                throw e;
+            }
+        }
+    }
+
+    private static List<String> names(List<AutoScalingGroup> groups) {
+        List<String> names = new ArrayList<>();
+        for (AutoScalingGroup group : groups) {
+            names.add(group.getAutoScalingGroupName());
+        }
+        return names;
+    }
+}
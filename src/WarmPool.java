@@ -0,0 +1,180 @@
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.StartInstancesRequest;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reserve of booted, health-checked data center instances. Taking from the pool replaces the boot and
+ * app start of a scale out: a running reserve is handed over at once, a stopped reserve only restarts.
+ * The pool refills in the background after each take and shrinks to its idle size once nothing has been
+ * taken for a while.
+ */
+public class WarmPool {
+    private final AmazonEC2 ec2;
+    private final CapacityPlanner.Plan plan;
+    private final String imageId;
+    private final String securityGroup;
+    private final Map<String, String> tags;
+    private final boolean stopped;
+    private final int size;
+    private final int idleSize;
+    private final long idleMillis;
+    private final Deque<Instance> reserve = new ArrayDeque<>();
+    private int warming;
+    private long lastTake;
+
+    /**
+     * @param ec2           the EC2 client
+     * @param plan          types and zones the data centers are launched with
+     * @param imageId       AMI of the data centers
+     * @param securityGroup security group of the data centers
+     * @param tags          tags of the data centers
+     * @param stopped       keep the reserve stopped rather than running: cheaper, slower to hand over
+     * @param size          instances to keep in reserve while scaling
+     * @param idleSize      instances to keep in reserve once idle
+     * @param idleMinutes   minutes without a take after which the pool shrinks to its idle size
+     */
+    public WarmPool(AmazonEC2 ec2, CapacityPlanner.Plan plan, String imageId, String securityGroup,
+                    Map<String, String> tags, boolean stopped, int size, int idleSize, long idleMinutes) {
+        this.ec2 = ec2;
+        this.plan = plan;
+        this.imageId = imageId;
+        this.securityGroup = securityGroup;
+        this.tags = tags;
+        this.stopped = stopped;
+        this.size = size;
+        this.idleSize = Math.min(idleSize, size);
+        this.idleMillis = TimeUnit.MINUTES.toMillis(idleMinutes);
+        this.lastTake = RunClock.now();
+    }
+
+    /**
+     * Create the pool configured by the {@code warmPool.*} system properties: {@code size} (default 2),
+     * {@code idleSize} (0), {@code idleMinutes} (10) and {@code stopped} (false).
+     */
+    public static WarmPool fromSystemProperties(AmazonEC2 ec2, CapacityPlanner.Plan plan, String imageId,
+                                                String securityGroup, Map<String, String> tags) {
+        return new WarmPool(ec2, plan, imageId, securityGroup, tags,
+                Boolean.getBoolean("warmPool.stopped"),
+                Integer.getInteger("warmPool.size", 2),
+                Integer.getInteger("warmPool.idleSize", 0),
+                Long.getLong("warmPool.idleMinutes", 10));
+    }
+
+    /**
+     * Hand over data centers, from the reserve first and launched cold for the rest, and refill the reserve.
+     *
+     * @param count number of data centers wanted
+     * @return one future per data center, completed once it is running and answers HTTP
+     */
+    public List<CompletableFuture<Instance>> take(int count) {
+        List<Instance> taken = new ArrayList<>();
+        synchronized (this) {
+            lastTake = RunClock.now();
+            while (taken.size() < count && !reserve.isEmpty()) {
+                taken.add(reserve.poll());
+            }
+        }
+        List<CompletableFuture<Instance>> futures = new ArrayList<>();
+        if (!taken.isEmpty()) {
+            System.out.println("Taking " + taken.size() + " data centers from the warm pool");
+            futures.addAll(stopped ? restart(taken) : completed(taken));
+        }
+        if (count > taken.size()) {
+            for (CompletableFuture<Instance> launched : plan.launch(ec2, imageId, securityGroup, count - taken.size(), tags)) {
+                futures.add(launched.thenCompose(AwsScalingHelper::awaitServing));
+            }
+        }
+        maintain();
+        return futures;
+    }
+
+    /**
+     * Refill the reserve to its size, or shrink it to its idle size when nothing has been taken for the idle
+     * time. Launches run in the background; call once per iteration of the scaling loop.
+     */
+    public void maintain() {
+        int missing;
+        List<String> surplus = new ArrayList<>();
+        synchronized (this) {
+            int target = RunClock.now() - lastTake >= idleMillis ? idleSize : size;
+            missing = target - reserve.size() - warming;
+            while (reserve.size() > target) {
+                surplus.add(reserve.pollLast().getInstanceId());
+            }
+            warming += Math.max(0, missing);
+        }
+        if (!surplus.isEmpty()) {
+            System.out.println("Warm pool is idle, terminating " + surplus);
+            AwsScalingHelper.terminateInstance(ec2, surplus);
+        }
+        if (missing > 0) {
+            for (CompletableFuture<Instance> launched : plan.launch(ec2, imageId, securityGroup, missing, tags)) {
+                launched.thenCompose(AwsScalingHelper::awaitServing)
+                        .thenCompose(instance -> stopped ? stop(instance) : CompletableFuture.completedFuture(instance))
+                        .whenComplete((instance, failure) -> {
+                            synchronized (this) {
+                                warming--;
+                                if (instance != null) {
+                                    reserve.add(instance);
+                                }
+                            }
+                            if (failure != null) {
+                                System.out.println("Warm pool instance failed: " + failure.getMessage());
+                            }
+                        });
+            }
+        }
+    }
+
+    /**
+     * @return ids of the instances held in reserve
+     */
+    public synchronized List<String> reserved() {
+        List<String> ids = new ArrayList<>();
+        for (Instance instance : reserve) {
+            ids.add(instance.getInstanceId());
+        }
+        return ids;
+    }
+
+    private CompletableFuture<Instance> stop(Instance instance) {
+        ec2.stopInstances(new StopInstancesRequest(Collections.singletonList(instance.getInstanceId())));
+        return AwsScalingHelper.statePoller(ec2).awaitStopped(instance.getInstanceId());
+    }
+
+    /**
+     * Start stopped reserves with one call. The public DNS name changes on restart, so the running
+     * instance is described again before its web server is checked.
+     */
+    private List<CompletableFuture<Instance>> restart(List<Instance> taken) {
+        List<String> instanceIds = new ArrayList<>();
+        for (Instance instance : taken) {
+            instanceIds.add(instance.getInstanceId());
+        }
+        ec2.startInstances(new StartInstancesRequest(instanceIds));
+        List<CompletableFuture<Instance>> futures = new ArrayList<>();
+        for (String instanceId : instanceIds) {
+            futures.add(AwsScalingHelper.statePoller(ec2).awaitRunning(instanceId)
+                    .thenCompose(AwsScalingHelper::awaitServing));
+        }
+        return futures;
+    }
+
+    private static List<CompletableFuture<Instance>> completed(List<Instance> taken) {
+        List<CompletableFuture<Instance>> futures = new ArrayList<>();
+        for (Instance instance : taken) {
+            futures.add(CompletableFuture.completedFuture(instance));
+        }
+        return futures;
+    }
+}
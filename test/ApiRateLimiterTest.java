@@ -0,0 +1,178 @@
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AbstractAmazonEC2;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The DescribeInstances coalescer of {@link ApiRateLimiter}, against a fake EC2 that holds its first call in
+ * flight until the other callers are queued behind it.
+ */
+public class ApiRateLimiterTest {
+    private FakeEc2 fake;
+    private AmazonEC2 ec2;
+
+    @Before
+    public void setUp() {
+        fake = new FakeEc2();
+        ApiRateLimiter limiter = new ApiRateLimiter();
+        //No pacing, so the test only sees the merging
+        limiter.configure("ec2", "1000/1000");
+        ec2 = limiter.wrap(AmazonEC2.class, fake, "ec2");
+    }
+
+    @Test
+    public void describesWaitingBehindAnInFlightCallAreMerged() throws Exception {
+        List<CompletableFuture<List<String>>> callers = describeWhileInFlight(
+                Arrays.asList("i-1"), Arrays.asList("i-2", "i-3"), Arrays.asList("i-4"));
+
+        assertEquals(Arrays.asList("i-1"), callers.get(0).get());
+        assertEquals(Arrays.asList("i-2", "i-3"), callers.get(1).get());
+        assertEquals(Arrays.asList("i-4"), callers.get(2).get());
+        assertEquals(2, fake.calls.size());
+        assertEquals(Arrays.asList("i-1"), fake.calls.get(0));
+        assertEquals(Arrays.asList("i-2", "i-3", "i-4"), sorted(fake.calls.get(1)));
+    }
+
+    @Test
+    public void eachCallerGetsOnlyItsOwnInstances() throws Exception {
+        //The same id asked twice goes out once, and both callers get it
+        List<CompletableFuture<List<String>>> callers = describeWhileInFlight(
+                Arrays.asList("i-1"), Arrays.asList("i-2", "i-5"), Arrays.asList("i-5", "i-6"));
+
+        assertEquals(Arrays.asList("i-2", "i-5"), callers.get(1).get());
+        assertEquals(Arrays.asList("i-5", "i-6"), callers.get(2).get());
+        assertEquals(Arrays.asList("i-2", "i-5", "i-6"), sorted(fake.calls.get(1)));
+    }
+
+    @Test
+    public void failedMergedCallFallsBackToOneCallPerCaller() throws Exception {
+        List<CompletableFuture<List<String>>> callers = describeWhileInFlight(
+                Arrays.asList("i-1"), Arrays.asList("i-2"), Arrays.asList("i-gone"));
+
+        assertEquals(Arrays.asList("i-2"), callers.get(1).get());
+        try {
+            callers.get(2).get();
+            fail("i-gone was described");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AmazonServiceException);
+            assertEquals("InvalidInstanceID.NotFound", ((AmazonServiceException) e.getCause()).getErrorCode());
+        }
+        assertEquals(4, fake.calls.size());
+        assertEquals(Arrays.asList("i-2", "i-gone"), sorted(fake.calls.get(1)));
+        assertTrue(fake.calls.subList(2, 4).containsAll(Arrays.asList(Arrays.asList("i-2"), Arrays.asList("i-gone"))));
+    }
+
+    /**
+     * Start the first describe, hold it in flight until every other caller waits for its turn, then let it
+     * finish.
+     *
+     * @return the ids each caller got back, in the order of the id lists
+     */
+    @SafeVarargs
+    private final List<CompletableFuture<List<String>>> describeWhileInFlight(List<String>... ids)
+            throws InterruptedException {
+        List<CompletableFuture<List<String>>> callers = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (List<String> callerIds : ids) {
+            CompletableFuture<List<String>> result = new CompletableFuture<>();
+            Thread thread = new Thread(() -> {
+                try {
+                    result.complete(instanceIds(ec2.describeInstances(
+                            new DescribeInstancesRequest().withInstanceIds(callerIds))));
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+            callers.add(result);
+            threads.add(thread);
+            if (threads.size() == 1) {
+                assertTrue(fake.inFlight.await(10, TimeUnit.SECONDS));
+            }
+        }
+        for (Thread thread : threads.subList(1, threads.size())) {
+            awaitWaiting(thread);
+        }
+        fake.release.countDown();
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        return callers;
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue(thread.getName() + " never queued", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static List<String> instanceIds(DescribeInstancesResult result) {
+        List<String> ids = new ArrayList<>();
+        for (Reservation reservation : result.getReservations()) {
+            for (Instance instance : reservation.getInstances()) {
+                ids.add(instance.getInstanceId());
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static List<String> sorted(List<String> ids) {
+        List<String> copy = new ArrayList<>(ids);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    /**
+     * Describes any id but {@code i-gone}, one reservation per call, and holds its first call until released.
+     */
+    private static class FakeEc2 extends AbstractAmazonEC2 {
+        private final List<List<String>> calls = Collections.synchronizedList(new ArrayList<>());
+        private final CountDownLatch inFlight = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public DescribeInstancesResult describeInstances(DescribeInstancesRequest request) {
+            calls.add(new ArrayList<>(request.getInstanceIds()));
+            if (calls.size() == 1) {
+                inFlight.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            List<Instance> instances = new ArrayList<>();
+            for (String id : request.getInstanceIds()) {
+                if (id.equals("i-gone")) {
+                    throw SimulatedCloud.error("AmazonEC2", "InvalidInstanceID.NotFound",
+                            "The instance ID '" + id + "' does not exist");
+                }
+                instances.add(new Instance().withInstanceId(id));
+            }
+            return new DescribeInstancesResult().withReservations(new Reservation().withReservationId("r-"
+                    + calls.size()).withInstances(instances));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsRequest;
+import com.amazonaws.services.autoscaling.model.DescribeLaunchConfigurationsRequest;
+import com.amazonaws.services.cloudwatch.model.DescribeAlarmsRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeSecurityGroupsRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeLoadBalancersRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A whole {@link AwsAutoScaling} run, provisioning to teardown, against the simulator with a fixed seed and a
+ * short junior test on a fast clock.
+ */
+public class AwsAutoScalingSimulationTest {
+    private static final String STACK = "simtest";
+    private static final String DATA_CENTER_IMAGE = "ami-349fbb5e";
+    private static final double SPEEDUP = 1200;
+    private static final long TEST_MINUTES = 10;
+
+    private SimulatedCloud cloud;
+
+    @Before
+    public void setUp() throws IOException {
+        deleteFiles();
+        RunClock.accelerate(SPEEDUP);
+        SimulatedCloud.Config config = SimulatedCloud.Config.fromSystemProperties();
+        config.seed = 42;
+        config.testMillis = TEST_MINUTES * SimulatedCloud.MINUTE;
+        cloud = SimulatedCloud.start(config);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        cloud.shutdown();
+        Bootstrap.shared().close();
+        RunClock.accelerate(1);
+        deleteFiles();
+    }
+
+    @Test(timeout = 600_000)
+    public void runScalesOutAndLeavesNothingBehind() throws Exception {
+        CapacityPlanner.Plan plan = AwsAutoScaling.plan(CapacityPlanner.fromSystemProperties(), null);
+        new AwsAutoScaling(new StackContext(STACK, "a", "b", cloud, ScalingPolicy.forName("step"), plan,
+                new Semaphore(1))).run();
+
+        RunRecorder.Recording recording = RunRecorder.read(Paths.get(STACK + ".rec"));
+        assertTrue("the junior test never ended", recording.getTestEnd() != null);
+        assertEquals(TEST_MINUTES, recording.getMinutes().size());
+        List<String> actions = new ArrayList<>();
+        for (RunRecorder.Action action : recording.getActions()) {
+            actions.add(action.getName() + " " + action.getDetail());
+        }
+        assertTrue(actions.toString(), actions.stream().anyMatch(action -> action.startsWith("junior test ")));
+        //The load outgrows one instance, so the scale out alarm fires and the group launches more
+        assertTrue(actions.toString(), actions.contains("alarm " + STACK + "-ASG-ScaleUpAlarm ALARM"));
+        List<Instance> dataCenters = instances(new Filter("image-id").withValues(DATA_CENTER_IMAGE));
+        assertTrue("group never scaled out: " + dataCenters.size(), dataCenters.size() > 1);
+
+        //Teardown deleted every resource of the stack and terminated every instance
+        String tag = "tag:" + StackContext.STACK_TAG;
+        assertTrue(cloud.autoScaling().describeAutoScalingGroups(new DescribeAutoScalingGroupsRequest())
+                .getAutoScalingGroups().isEmpty());
+        assertTrue(cloud.autoScaling().describeLaunchConfigurations(new DescribeLaunchConfigurationsRequest())
+                .getLaunchConfigurations().isEmpty());
+        assertTrue(cloud.elb().describeLoadBalancers(new DescribeLoadBalancersRequest())
+                .getLoadBalancerDescriptions().isEmpty());
+        assertTrue(cloud.cloudWatch().describeAlarms(new DescribeAlarmsRequest()).getMetricAlarms().isEmpty());
+        assertTrue(cloud.ec2().describeSecurityGroups(new DescribeSecurityGroupsRequest()
+                .withFilters(new Filter(tag).withValues(STACK))).getSecurityGroups().isEmpty());
+        for (Instance instance : instances(new Filter(tag).withValues(STACK))) {
+            assertEquals(instance.getInstanceId() + " terminated", "terminated", instance.getState().getName());
+        }
+    }
+
+    private List<Instance> instances(Filter filter) {
+        List<Instance> instances = new ArrayList<>();
+        for (Reservation reservation : cloud.ec2().describeInstances(new DescribeInstancesRequest()
+                .withFilters(filter)).getReservations()) {
+            instances.addAll(reservation.getInstances());
+        }
+        return instances;
+    }
+
+    private static void deleteFiles() throws IOException {
+        for (Path path : new Path[]{Paths.get(STACK + ".journal"), Paths.get(STACK + ".rec")}) {
+            Files.deleteIfExists(path);
+        }
+    }
+}
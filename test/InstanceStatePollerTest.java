@@ -0,0 +1,103 @@
+import com.amazonaws.services.ec2.AbstractAmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Reservation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The batched probe of {@link InstanceStatePoller} when one of the ids it waits on does not exist.
+ */
+public class InstanceStatePollerTest {
+    private FakeEc2 fake;
+    private InstanceStatePoller poller;
+
+    @Before
+    public void setUp() {
+        //Backoff delays of seconds pass in milliseconds
+        RunClock.accelerate(1000);
+        fake = new FakeEc2();
+        poller = new InstanceStatePoller(fake, new StateWatcher(1));
+    }
+
+    @After
+    public void tearDown() {
+        RunClock.accelerate(1);
+    }
+
+    @Test
+    public void missingIdIsDescribedAloneAndTheOthersStillArrive() throws Exception {
+        Map<String, Instance> instances = poller.describe(Arrays.asList("i-1", "i-gone", "i-2"));
+
+        assertEquals(new HashSet<>(Arrays.asList("i-1", "i-2")), instances.keySet());
+        assertEquals(4, fake.calls.size());
+        assertEquals(Arrays.asList("i-1", "i-gone", "i-2"), fake.calls.get(0));
+        assertEquals(Arrays.asList(Arrays.asList("i-1"), Arrays.asList("i-gone"), Arrays.asList("i-2")),
+                fake.calls.subList(1, 4));
+    }
+
+    @Test
+    public void onlyTheWaitOnTheMissingIdFails() throws Exception {
+        CompletableFuture<Instance> running = poller.awaitRunning("i-1");
+        CompletableFuture<Instance> gone = poller.awaitRunning("i-gone");
+
+        assertEquals("i-1", running.get(10, TimeUnit.SECONDS).getInstanceId());
+        try {
+            gone.get(10, TimeUnit.SECONDS);
+            fail("i-gone was found");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void idUnknownRightAfterLaunchIsWaitedFor() throws Exception {
+        //EC2 is eventually consistent: a new id can be unknown to the first describe
+        fake.unknownFor.add("i-3");
+        CompletableFuture<Instance> launched = poller.awaitRunning("i-3");
+
+        assertEquals("i-3", launched.get(10, TimeUnit.SECONDS).getInstanceId());
+    }
+
+    /**
+     * Describes every id as running but {@code i-gone}, which never exists, and the ids of
+     * {@code unknownFor}, which are unknown to the first call asking for them.
+     */
+    private static class FakeEc2 extends AbstractAmazonEC2 {
+        private final List<List<String>> calls = Collections.synchronizedList(new ArrayList<>());
+        private final Set<String> unknownFor = Collections.synchronizedSet(new HashSet<>());
+
+        @Override
+        public DescribeInstancesResult describeInstances(DescribeInstancesRequest request) {
+            calls.add(new ArrayList<>(request.getInstanceIds()));
+            List<Reservation> reservations = new ArrayList<>();
+            for (String id : request.getInstanceIds()) {
+                if (id.equals("i-gone") || unknownFor.remove(id)) {
+                    throw SimulatedCloud.error("AmazonEC2", "InvalidInstanceID.NotFound",
+                            "The instance ID '" + id + "' does not exist");
+                }
+                reservations.add(new Reservation().withReservationId("r-" + id).withInstances(new Instance()
+                        .withInstanceId(id).withState(new InstanceState().withCode(16).withName("running"))));
+            }
+            return new DescribeInstancesResult().withReservations(reservations);
+        }
+    }
+}
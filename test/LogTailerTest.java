@@ -0,0 +1,137 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The incremental parser of {@link LogTailer}, fed a growing log in chunks split mid-line and mid-section, as
+ * polls of a log the load generator is still writing return them.
+ */
+public class LogTailerTest {
+    private static final String HEADER = "[Test]\ntype=horizontal\ntestFile=test.1.log\n\n";
+    private static final String MINUTE_1 = "[Minute 1]\ndc-1=812.34\ndc-2=790.10\n\n";
+    private static final String MINUTE_2 = "[Minute 2]\ndc-1=1650.25\n\n";
+    private static final String TEST_END = "[Test End]\nrps=2896.89\n\n";
+
+    private LogTailer tailer;
+    private List<LogSample> published;
+    private String log;
+
+    @Before
+    public void setUp() {
+        tailer = new LogTailer("lg", "test.1.log");
+        published = new ArrayList<>();
+        tailer.addListener(published::add);
+        log = "";
+    }
+
+    @Test
+    public void lineCutShortIsLeftForTheNextPoll() {
+        List<LogSample> samples = append(HEADER + "[Minute 1]\ndc-1=812.34\ndc-2=79");
+
+        assertEquals(1, samples.size());
+        assertEquals(1, samples.get(0).getMinute());
+        assertEquals(1, samples.get(0).getValues().size());
+        assertEquals(812.34, samples.get(0).getValues().get("dc-1"), 1e-9);
+        //The minute may still grow, so the offset stays at its header
+        assertEquals(HEADER.length(), tailer.offset());
+
+        samples = append("0.10\n\n");
+
+        assertEquals(1, samples.size());
+        assertEquals(790.10, samples.get(0).getValues().get("dc-2"), 1e-9);
+        assertEquals(1602.44, samples.get(0).getTotal(), 1e-9);
+        assertEquals(HEADER.length(), tailer.offset());
+    }
+
+    @Test
+    public void trailingSectionIsRepublishedOnlyWhenItGrows() {
+        append(HEADER + "[Minute 1]\ndc-1=812.34\n");
+
+        assertTrue(append("").isEmpty());
+        assertTrue(append("dc-2=7").isEmpty());
+        assertEquals(2, append("90.10\n").get(0).getValues().size());
+        assertEquals(2, published.size());
+    }
+
+    @Test
+    public void finishedSectionsAreCommittedAndNotParsedAgain() {
+        append(HEADER + MINUTE_1 + "[Minu");
+        assertEquals(HEADER.length(), tailer.offset());
+
+        List<LogSample> samples = append("te 2]\ndc-1=1650.25\n");
+
+        //Minute 1 is re-read unchanged, so only the new minute is published
+        assertEquals(1, samples.size());
+        assertEquals(2, samples.get(0).getMinute());
+        assertEquals(HEADER.length() + MINUTE_1.length(), tailer.offset());
+        assertEquals(2, tailer.latestMinute().getMinute());
+    }
+
+    @Test
+    public void testEndSplitMidSection() {
+        List<LogSample> samples = append(HEADER + MINUTE_1 + MINUTE_2 + "[Test End]\nrp");
+
+        //The header of the Test End alone is no sample yet
+        assertEquals(2, samples.size());
+        assertFalse(tailer.isTestEnded());
+
+        samples = append("s=2896.89\n\n");
+
+        assertEquals(1, samples.size());
+        assertTrue(samples.get(0).isTestEnd());
+        assertEquals(2896.89, samples.get(0).getTotal(), 1e-9);
+        assertTrue(tailer.isTestEnded());
+        assertEquals(2, tailer.latestMinute().getMinute());
+        assertEquals(log.length() - TEST_END.length(), tailer.offset());
+    }
+
+    @Test
+    public void wholeLogWhenRangeIsIgnored() {
+        String whole = HEADER + MINUTE_1 + MINUTE_2;
+        byte[] first = whole.getBytes(StandardCharsets.US_ASCII);
+        tailer.parse(first, 0, first.length);
+        long offset = tailer.offset();
+
+        //A server ignoring Range sends the whole log again, and the parser starts at the committed offset
+        byte[] second = (whole + TEST_END).getBytes(StandardCharsets.US_ASCII);
+        List<LogSample> samples = tailer.parse(second, (int) offset, second.length);
+
+        assertEquals(1, samples.size());
+        assertTrue(samples.get(0).isTestEnd());
+        assertEquals(whole.length(), tailer.offset());
+    }
+
+    @Test
+    public void parseDouble() {
+        assertEquals(812.34, parse("812.34"), 1e-9);
+        assertEquals(-3.5, parse("-3.5"), 1e-9);
+        assertEquals(42, parse("42"), 1e-9);
+        assertEquals(0.25, parse(".25"), 1e-9);
+        //Anything but a plain decimal falls back to Double.parseDouble, or 0 when that fails too
+        assertEquals(1500, parse("1.5e3"), 1e-9);
+        assertEquals(12345678901234567890.0, parse("12345678901234567890"), 1e4);
+        assertEquals(0, parse("n/a"), 0);
+        assertEquals(0, parse(""), 0);
+    }
+
+    /**
+     * Append to the log and poll it, as a server honouring Range returns it: the bytes from the offset on.
+     */
+    private List<LogSample> append(String text) {
+        log += text;
+        byte[] chunk = log.substring((int) tailer.offset()).getBytes(StandardCharsets.US_ASCII);
+        return tailer.parse(chunk, 0, chunk.length);
+    }
+
+    private static double parse(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        return LogTailer.parseDouble(bytes, 0, bytes.length);
+    }
+}